@@ -19,10 +19,15 @@
 
 package at.ac.tuwien.detlef;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import at.ac.tuwien.detlef.db.CachingEpisodeDAO;
 import at.ac.tuwien.detlef.db.CachingPodcastDAO;
 import at.ac.tuwien.detlef.db.DatabaseHelper;
@@ -32,9 +37,16 @@ import at.ac.tuwien.detlef.db.EpisodeDAO;
 import at.ac.tuwien.detlef.db.PlaylistDAO;
 import at.ac.tuwien.detlef.db.PlaylistDAOImpl;
 import at.ac.tuwien.detlef.db.PodcastDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.EpisodePersistence;
 import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.domain.PodcastLogoLoader;
 import at.ac.tuwien.detlef.download.DetlefDownloadManager;
+import at.ac.tuwien.detlef.download.PlaylistPrefetcher;
+import at.ac.tuwien.detlef.download.PrefetchPolicy;
+import at.ac.tuwien.detlef.download.StreamProxy;
 import at.ac.tuwien.detlef.gpodder.GPodderSync;
+import at.ac.tuwien.detlef.gpodder.PodcastDetailsFetcher;
 import at.ac.tuwien.detlef.gpodder.responders.SynchronousSyncResponder;
 import at.ac.tuwien.detlef.settings.ConnectionTester;
 import at.ac.tuwien.detlef.settings.ConnectionTesterGpodderNet;
@@ -54,6 +66,8 @@ import at.ac.tuwien.detlef.settings.GpodderSettingsDAOAndroid;
  */
 public class Singletons {
 
+    private static final String TAG = Singletons.class.getName();
+
     private static Singletons dependencyAssistant = null;
 
     private DatabaseHelper databaseHelper = null;
@@ -63,6 +77,10 @@ public class Singletons {
     private EpisodeDAO episodeDAO = null;
     private EpisodeActionDAO episodeActionDAO = null;
     private PlaylistDAO playlistDAO = null;
+    private PodcastDetailsFetcher podcastDetailsFetcher = null;
+    private PodcastLogoLoader podcastLogoLoader = null;
+    private StreamProxy streamProxy = null;
+    private PlaylistPrefetcher playlistPrefetcher = null;
 
     public DatabaseHelper getDatabaseHelper() {
         if (databaseHelper == null) {
@@ -94,6 +112,80 @@ public class Singletons {
         return downloadManager;
     }
 
+    /**
+     * @return The fetcher shared by everything that retrieves podcast details
+     *         from gpodder.net, so that they share its limits and cache.
+     */
+    public synchronized PodcastDetailsFetcher getPodcastDetailsFetcher() {
+        if (podcastDetailsFetcher == null) {
+            podcastDetailsFetcher = new PodcastDetailsFetcher();
+        }
+        return podcastDetailsFetcher;
+    }
+
+    /**
+     * @return The loader shared by all views displaying podcast logos, so
+     *         that they share its memory cache.
+     */
+    public synchronized PodcastLogoLoader getPodcastLogoLoader() {
+        if (podcastLogoLoader == null) {
+            Context context = Detlef.getAppContext();
+            podcastLogoLoader = new PodcastLogoLoader(context.getResources(),
+                    new File(context.getCacheDir(), "logos"));
+        }
+        return podcastLogoLoader;
+    }
+
+    /**
+     * @return The proxy through which episodes which aren't downloaded are
+     *         streamed, or null if it could not be started. Its cache lives
+     *         next to the downloads if possible, so that completely cached
+     *         episodes can be moved there.
+     */
+    public synchronized StreamProxy getStreamProxy() {
+        if (streamProxy == null) {
+            Context context = Detlef.getAppContext();
+            File musicDir = context.getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+            File dir = (musicDir == null) ? new File(context.getCacheDir(), "streams")
+                       : new File(musicDir, ".streams");
+            try {
+                streamProxy = new StreamProxy(dir, StreamProxy.DEFAULT_MAX_CACHE_BYTES,
+                new StreamProxy.OnStreamCachedListener() {
+                    @Override
+                    public File onStreamCached(long id, File file) {
+                        Episode episode = getEpisodeDAO().getEpisode(id);
+                        if (episode == null) {
+                            return null;
+                        }
+                        return EpisodePersistence.promoteCachedStream(episode, file);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+        return streamProxy;
+    }
+
+    /**
+     * @return The prefetcher downloading upcoming playlist episodes. It is
+     *         registered with the playlist, the episodes and the settings
+     *         when it is created.
+     */
+    public synchronized PlaylistPrefetcher getPlaylistPrefetcher() {
+        if (playlistPrefetcher == null) {
+            SharedPreferences prefs =
+                PreferenceManager.getDefaultSharedPreferences(Detlef.getAppContext());
+            playlistPrefetcher = new PlaylistPrefetcher(getPlaylistDAO(),
+                    PlaylistPrefetcher.EPISODE_PERSISTENCE_DOWNLOADER,
+                    PrefetchPolicy.fromPreferences(prefs));
+            getPlaylistDAO().addPlaylistChangedListener(playlistPrefetcher);
+            getEpisodeDAO().addEpisodeChangedListener(playlistPrefetcher);
+            prefs.registerOnSharedPreferenceChangeListener(playlistPrefetcher);
+        }
+        return playlistPrefetcher;
+    }
+
     /**
      * The DAO class that is used to store and retrieve {@link GpodderSettings}.
      * @return an implementation of {@link GpodderSettingsDAO}.
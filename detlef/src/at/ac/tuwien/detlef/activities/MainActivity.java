@@ -17,6 +17,7 @@
 
 package at.ac.tuwien.detlef.activities;
 
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -63,8 +64,8 @@ import at.ac.tuwien.detlef.fragments.EpisodeListSortDialogFragment;
 import at.ac.tuwien.detlef.fragments.PlayerFragment;
 import at.ac.tuwien.detlef.fragments.PodListFragment;
 import at.ac.tuwien.detlef.fragments.SettingsGpodderNet;
+import at.ac.tuwien.detlef.gpodder.FeedRefreshScheduler;
 import at.ac.tuwien.detlef.gpodder.NoDataResultHandler;
-import at.ac.tuwien.detlef.gpodder.PullFeedAsyncTask;
 import at.ac.tuwien.detlef.gpodder.ReliableResultHandler;
 import at.ac.tuwien.detlef.gpodder.SyncEpisodeActionsAsyncTask;
 import at.ac.tuwien.detlef.gpodder.SyncSubscriptionsAsyncTask;
@@ -129,6 +130,7 @@ public class MainActivity extends FragmentActivity
 
         if (refreshBg == null) {
             refreshBg = Executors.newSingleThreadExecutor();
+            feedRefresher = new FeedRefreshScheduler();
         }
 
         MediaPlayerNotification.create(this, false, null);
@@ -176,6 +178,10 @@ public class MainActivity extends FragmentActivity
         }
 
         playlistDAO = Singletons.i().getPlaylistDAO();
+
+        /* Start prefetching for the playlist left from the last run. */
+
+        Singletons.i().getPlaylistPrefetcher().schedule();
     }
 
     private void startSettingsActivityIfNoDeviceIdSet() {
@@ -342,6 +348,11 @@ public class MainActivity extends FragmentActivity
      */
     private static ExecutorService refreshBg = null;
 
+    /**
+     * Fetches the feeds in parallel during a refresh.
+     */
+    private static FeedRefreshScheduler feedRefresher = null;
+
     /**
      * The Toast with the Output of the refresh operation is shown this long.
      */
@@ -400,12 +411,11 @@ public class MainActivity extends FragmentActivity
 
             synchronized (getRcv().numPodSync) {
 
-                for (Podcast p : pDao.getNonDeletedPodcasts()) {
+                List<Podcast> podcasts = pDao.getNonDeletedPodcasts();
 
-                    feedHandler.setBundle(getBundle());
-                    refreshBg.execute(new PullFeedAsyncTask(feedHandler, p));
-                    getRcv().numPodSync.incrementAndGet();
-                }
+                feedHandler.setBundle(getBundle());
+                getRcv().numPodSync.addAndGet(podcasts.size());
+                feedRefresher.refresh(podcasts, feedHandler);
 
                 if (getRcv().numPodSync.get() == 0) {
                     getRcv().runOnUiThread(new Runnable() {
@@ -477,7 +487,7 @@ public class MainActivity extends FragmentActivity
     }
 
     /**
-     * The Handler for receiving PullFeedAsyncTask's results.
+     * The Handler for receiving FeedRefreshScheduler's results.
      */
     private static final class FeedHandler
         extends ReliableResultHandler<MainActivity>
@@ -872,8 +882,8 @@ public class MainActivity extends FragmentActivity
         Episode episode = getEpisodeFromView(v);
 
         if (episode != null) {
-            if (playlistDAO.getNonCachedEpisodes().contains(v.getTag())) {
-                playlistDAO.removeEpisodesById(((Episode) v.getTag()).getId());
+            if (playlistDAO.isInPlaylist(episode.getId())) {
+                playlistDAO.removeEpisodesById(episode.getId());
                 text = R.string.episode_removed_from_playlist;
             } else {
                 if (playlistDAO.addEpisodeToEndOfPlaylist(episode)) {
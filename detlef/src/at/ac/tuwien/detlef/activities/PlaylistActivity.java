@@ -19,6 +19,7 @@ package at.ac.tuwien.detlef.activities;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import android.app.ListActivity;
 import android.content.ComponentName;
@@ -87,7 +88,7 @@ public class PlaylistActivity extends ListActivity implements PlaylistDAO.OnPlay
 
         playlistDAO = Singletons.i().getPlaylistDAO();
         playlistDAO.addPlaylistChangedListener(this);
-        playlistItems = playlistDAO.getNonCachedEpisodes();
+        playlistItems = new ArrayList<Episode>(playlistDAO.getEpisodes());
         Singletons.i().getEpisodeDAO().addEpisodeChangedListener(this);
 
         downloadManager = Singletons.i().getDownloadManager(
@@ -157,20 +158,26 @@ public class PlaylistActivity extends ListActivity implements PlaylistDAO.OnPlay
 
     @Override
     public void onPlaylistEpisodeAdded(int position, Episode episode) {
-        playlistItems.add(position, episode);
-        adapter.notifyDataSetChanged();
+        showSnapshot();
     }
 
     @Override
     public void onPlaylistEpisodePositionChanged(int firstPosition, int secondPosition) {
-        Episode ep = playlistItems.remove(firstPosition);
-        playlistItems.add(secondPosition, ep);
-        adapter.notifyDataSetChanged();
+        showSnapshot();
     }
 
     @Override
     public void onPlaylistEpisodeRemoved(int position) {
-        playlistItems.remove(position);
+        showSnapshot();
+    }
+
+    /**
+     * Displays the current playlist snapshot of the DAO, which already
+     * contains the change a listener method is called for.
+     */
+    private void showSnapshot() {
+        playlistItems.clear();
+        playlistItems.addAll(playlistDAO.getEpisodes());
         adapter.notifyDataSetChanged();
     }
 
@@ -263,13 +270,35 @@ public class PlaylistActivity extends ListActivity implements PlaylistDAO.OnPlay
 
     @Override
     public void onEpisodeChanged(Episode episode) {
-        adapter.notifyDataSetChanged();
+        notifyDataSetChangedOnUiThread();
+    }
+
+    @Override
+    public void onEpisodesChanged(List<Episode> episodes) {
+        notifyDataSetChangedOnUiThread();
+    }
+
+    /**
+     * Episodes are changed from background threads as well, e.g. when a
+     * download finishes or a streamed episode has been cached completely.
+     */
+    private void notifyDataSetChangedOnUiThread() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                adapter.notifyDataSetChanged();
+            }
+        });
     }
 
     @Override
     public void onEpisodeAdded(Episode episode) {
     }
 
+    @Override
+    public void onEpisodesAdded(List<Episode> episodes) {
+    }
+
     @Override
     public void onEpisodeDeleted(Episode episode) {
         // we get this automatically from the playlistDAO
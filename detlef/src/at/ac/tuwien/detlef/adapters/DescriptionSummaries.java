@@ -0,0 +1,172 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.adapters;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Html;
+import android.text.Html.ImageGetter;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.util.LruCache;
+
+/**
+ * Renders episode descriptions into short Spanned summaries on a background
+ * thread. Html.fromHtml() calls seem to generate lots of objects and cause
+ * loads of slowdown and garbage collection, so they are kept off the UI
+ * thread: {@link #get(String)} only ever returns summaries which have already
+ * been rendered, and summaries are rendered ahead of time through
+ * {@link #prepare(String)}.
+ */
+class DescriptionSummaries {
+
+    /**
+     * Is notified on the UI thread after summaries have been rendered. A
+     * number of summaries rendered in quick succession are reported at once.
+     */
+    public interface OnSummariesReadyListener {
+        void onSummariesReady();
+    }
+
+    /** The rows show two lines of the description at most. */
+    static final int MAX_SUMMARY_LENGTH = 300;
+
+    /**
+     * Descriptions are cut off before being parsed, so that huge ones don't
+     * take long to parse. This is generously more than the summary needs even
+     * with lots of markup.
+     */
+    static final int MAX_HTML_LENGTH = 8 * 1024;
+
+    private static final int MAX_SUMMARIES = 256;
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private static final Spanned EMPTY = new SpannedString("");
+
+    private static final Drawable NOTHING = new ColorDrawable(android.R.color.transparent);
+
+    private static final ImageGetter DUMMY_IMAGE_GETTER = new ImageGetter() {
+        @Override
+        public Drawable getDrawable(String source) {
+            return NOTHING;
+        }
+    };
+
+    private final LruCache<String, Spanned> summaries =
+        new LruCache<String, Spanned>(MAX_SUMMARIES);
+
+    /** Descriptions queued for rendering, guarded by itself. */
+    private final Set<String> pending = new HashSet<String>();
+
+    private final ThreadPoolExecutor renderBg;
+    private final Handler ui = new Handler(Looper.getMainLooper());
+    private final OnSummariesReadyListener listener;
+
+    /** Whether a notification of the listener is posted, guarded by pending. */
+    private boolean notifyPosted = false;
+
+    private final Runnable notifyListener = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (pending) {
+                notifyPosted = false;
+            }
+            listener.onSummariesReady();
+        }
+    };
+
+    public DescriptionSummaries(OnSummariesReadyListener listener) {
+        this.listener = listener;
+
+        renderBg = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>());
+        renderBg.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The summary of the description, or null if it hasn't been
+     *         rendered yet.
+     */
+    public Spanned get(String description) {
+        if (description == null) {
+            return EMPTY;
+        }
+        return summaries.get(description);
+    }
+
+    /**
+     * Renders the summary of the description in the background unless it
+     * has been rendered or queued already. May be called from any thread.
+     */
+    public void prepare(final String description) {
+        if (description == null || summaries.get(description) != null) {
+            return;
+        }
+
+        synchronized (pending) {
+            if (!pending.add(description)) {
+                return;
+            }
+        }
+
+        renderBg.execute(new Runnable() {
+            @Override
+            public void run() {
+                summaries.put(description, render(description));
+
+                synchronized (pending) {
+                    pending.remove(description);
+                    if (notifyPosted) {
+                        return;
+                    }
+                    notifyPosted = true;
+                }
+                ui.post(notifyListener);
+            }
+        });
+    }
+
+    /**
+     * Parses the description and cuts the result off after
+     * {@link #MAX_SUMMARY_LENGTH} characters.
+     */
+    static Spanned render(String description) {
+        String html = description;
+        if (html.length() > MAX_HTML_LENGTH) {
+            html = html.substring(0, MAX_HTML_LENGTH);
+        }
+
+        Spanned parsed = Html.fromHtml(html, DUMMY_IMAGE_GETTER, null);
+        if (parsed.length() <= MAX_SUMMARY_LENGTH) {
+            return parsed;
+        }
+
+        /* A copy, so that the full parse result can be collected. */
+
+        return new SpannedString(parsed.subSequence(0, MAX_SUMMARY_LENGTH));
+    }
+}
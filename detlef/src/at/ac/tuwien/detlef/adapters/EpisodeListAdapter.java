@@ -17,18 +17,10 @@
 
 package at.ac.tuwien.detlef.adapters;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import android.content.Context;
-import android.graphics.Color;
 import android.graphics.Typeface;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.text.Html;
-import android.text.Html.ImageGetter;
-import android.text.Spanned;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -38,6 +30,7 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import at.ac.tuwien.detlef.R;
 import at.ac.tuwien.detlef.Singletons;
+import at.ac.tuwien.detlef.adapters.DescriptionSummaries.OnSummariesReadyListener;
 import at.ac.tuwien.detlef.db.PlaylistDAO;
 import at.ac.tuwien.detlef.domain.Episode;
 import at.ac.tuwien.detlef.domain.Episode.ActionState;
@@ -47,15 +40,35 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
 
     private static final String TAG = EpisodeListAdapter.class.getName();
 
+    private static final int COLOR_READ = 0xFF11AADD;
+    private static final int COLOR_UNREAD = 0xFF0099CC;
+
+    /** The number of rows beyond the bound one whose descriptions are prepared. */
+    private static final int PREFETCH_ROWS = 10;
+
     private final List<Episode> episodes;
     private final PlaylistDAO playlistDAO;
-    private final FromHtmlCache fromHtmlCache = new FromHtmlCache();
+    private final EpisodeRowCache rows;
 
     public EpisodeListAdapter(Context context, int textViewResourceId,
                               List<Episode> episodes) {
         super(context, textViewResourceId, episodes);
         this.episodes = episodes;
         playlistDAO = Singletons.i().getPlaylistDAO();
+        rows = new EpisodeRowCache(new OnSummariesReadyListener() {
+            @Override
+            public void onSummariesReady() {
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    /**
+     * Renders the descriptions of the episodes in the background, so that
+     * they are ready when the episodes are displayed.
+     */
+    public void prepare(List<Episode> newEpisodes) {
+        rows.prepare(newEpisodes);
     }
 
     @Override
@@ -64,54 +77,66 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
 
         Episode episode = episodes.get(position);
 
+        ViewHolder holder;
         if (v == null) {
             LayoutInflater vi = (LayoutInflater) this.getContext()
                                 .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             v = vi.inflate(R.layout.episode_list_layout, null);
+            holder = new ViewHolder(v);
+            v.setTag(R.id.view_holder, holder);
+        } else {
+            holder = (ViewHolder) v.getTag(R.id.view_holder);
         }
 
         v.setTag(episode);
 
-        TextView title = (TextView) v.findViewById(R.id.episodeListEpisode);
-        title.setText(formatTitle(episode));
+        EpisodeRow row = rows.get(episode);
 
-        ImageButton episodeListMarkRead = (ImageButton) v.findViewById(R.id.episodeListMarkRead);
-        episodeListMarkRead.setTag(episode);
+        holder.title.setText(row.getTitle());
 
-        toggleEpisodeReadAppearance(episode, title, episodeListMarkRead);
+        holder.markRead.setTag(episode);
+        toggleEpisodeReadAppearance(episode, holder.title, holder.markRead);
 
-        TextView description = (TextView) v.findViewById(R.id.episodeListDescription);
-        description.setText(fromHtmlCache.get(episode.getDescription()));
+        holder.description.setText(row.getDescription() == null ? "" : row.getDescription());
 
-        TextView size = (TextView) v.findViewById(R.id.episodeListDlSize);
-        size.setText(byteToHumanSize(episode.getFileSize()));
-        size.setCompoundDrawablesWithIntrinsicBounds(null,
-                episode.getPodcast().getLogoIcon(), null, null);
+        holder.size.setText(row.getSize());
+        Singletons.i().getPodcastLogoLoader().bindTop(holder.size, episode.getPodcast());
 
-        ImageButton episodeListDownload = (ImageButton) v.findViewById(R.id.episodeListDownload);
-        episodeListDownload.setImageResource(stateToImageResource(episode.getStorageState()));
-        episodeListDownload.setTag(episode);
+        holder.download.setImageResource(stateToImageResource(episode.getStorageState()));
+        holder.download.setTag(episode);
 
-        ImageButton episodeListAddToPlaylist =
-            (ImageButton) v.findViewById(R.id.episodeListAddToPlaylist);
-        episodeListAddToPlaylist.setTag(episode);
-        if (playlistDAO.getNonCachedEpisodes().contains(episode)) {
-            episodeListAddToPlaylist.setImageResource(R.drawable.ic_pl_remove);
+        holder.addToPlaylist.setTag(episode);
+        if (playlistDAO.isInPlaylist(episode.getId())) {
+            holder.addToPlaylist.setImageResource(R.drawable.ic_pl_remove);
         } else {
-            episodeListAddToPlaylist.setImageResource(R.drawable.ic_pl_add);
+            holder.addToPlaylist.setImageResource(R.drawable.ic_pl_add);
         }
+
+        prefetch(position);
+
         return v;
     }
 
+    /**
+     * Prepares the descriptions of the rows around the given one, since they
+     * are likely to be scrolled into view next.
+     */
+    private void prefetch(int position) {
+        int end = Math.min(episodes.size(), position + PREFETCH_ROWS + 1);
+        for (int i = Math.max(0, position - PREFETCH_ROWS); i < end; i++) {
+            rows.prepare(episodes.get(i));
+        }
+    }
+
     private void toggleEpisodeReadAppearance(Episode episode, TextView title,
             ImageButton markRead) {
         if (episode.getActionState() == ActionState.DELETE) {
             title.setTypeface(Typeface.DEFAULT);
-            title.setTextColor(Color.parseColor("#11AADD"));
+            title.setTextColor(COLOR_READ);
             markRead.setImageResource(R.drawable.ic_cross);
         } else {
             title.setTypeface(Typeface.DEFAULT_BOLD);
-            title.setTextColor(Color.parseColor("#0099CC"));
+            title.setTextColor(COLOR_UNREAD);
             markRead.setImageResource(R.drawable.ic_read);
         }
     }
@@ -130,69 +155,25 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
         }
     }
 
-    private static final int MAX_TITLE_LENGTH = 16;
-    private static final String ELLIPSIS = "...";
-
-    private String formatTitle(Episode episode) {
-        String podcastTitle = episode.getPodcast().getTitle();
-        if (podcastTitle.length() > MAX_TITLE_LENGTH) {
-            podcastTitle = String.format("%s%s",
-                                         podcastTitle.substring(0, MAX_TITLE_LENGTH - ELLIPSIS.length()),
-                                         ELLIPSIS);
-        }
-        return String.format("%s: %s", podcastTitle, episode.getTitle());
-    }
-
-    private static final int MAX_VALUE = 1024;
-    private static final int SUBUNITS_PER_UNIT = 1024;
-
-    private CharSequence byteToHumanSize(long fileSize) {
-        final String[] units = {
-            "B", "KB", "MB", "GB", "TB"
-        };
-
-        double value = fileSize;
-        int unitIndex;
-
-        for (unitIndex = 0; unitIndex < units.length; unitIndex++) {
-            if (value < MAX_VALUE) {
-                break;
-            }
-            value /= SUBUNITS_PER_UNIT;
-        }
-
-        return String.format("%.2f %s", value, units[unitIndex]);
-    }
-
     /**
-     * Html.fromHtml() calls seem to generate lots of objects and cause loads of
-     * slowdown and garbage collection. Cache results to avoid this situation.
+     * The views of a row, so that they don't have to be looked up on every
+     * bind.
      */
-    private static class FromHtmlCache {
-
-        private final Map<String, Spanned> cache = new HashMap<String, Spanned>();
-        private final ImageGetter dummyImageGetter;
-        private static final Drawable NOTHING = new ColorDrawable(android.R.color.transparent);
-
-        public FromHtmlCache() {
-            dummyImageGetter = new ImageGetter() {
-
-                @Override
-                public Drawable getDrawable(String source) {
-                    return NOTHING;
-                }
-            };
-        }
-
-        public Spanned get(String in) {
-            Spanned out = cache.get(in);
-
-            if (out == null) {
-                out = Html.fromHtml(in, dummyImageGetter, null);
-                cache.put(in, out);
-            }
-
-            return out;
+    private static class ViewHolder {
+        private final TextView title;
+        private final ImageButton markRead;
+        private final TextView description;
+        private final TextView size;
+        private final ImageButton download;
+        private final ImageButton addToPlaylist;
+
+        public ViewHolder(View v) {
+            title = (TextView) v.findViewById(R.id.episodeListEpisode);
+            markRead = (ImageButton) v.findViewById(R.id.episodeListMarkRead);
+            description = (TextView) v.findViewById(R.id.episodeListDescription);
+            size = (TextView) v.findViewById(R.id.episodeListDlSize);
+            download = (ImageButton) v.findViewById(R.id.episodeListDownload);
+            addToPlaylist = (ImageButton) v.findViewById(R.id.episodeListAddToPlaylist);
         }
     }
 }
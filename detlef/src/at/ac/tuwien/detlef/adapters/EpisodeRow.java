@@ -0,0 +1,123 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+package at.ac.tuwien.detlef.adapters;
+
+import java.util.Locale;
+
+import android.text.Spanned;
+import at.ac.tuwien.detlef.domain.Episode;
+
+/**
+ * The texts displayed in a row of the episode list, computed once for each
+ * version of an episode instead of on every bind.
+ */
+final class EpisodeRow {
+
+    private static final int MAX_TITLE_LENGTH = 16;
+    private static final String ELLIPSIS = "...";
+
+    private static final int MAX_VALUE = 1024;
+    private static final int SUBUNITS_PER_UNIT = 1024;
+
+    private static final String[] UNITS = {
+        "B", "KB", "MB", "GB", "TB"
+    };
+
+    /* The values the texts have been computed from. */
+
+    private final String podcastTitle;
+    private final String episodeTitle;
+    private final String rawDescription;
+    private final long fileSize;
+
+    private final String title;
+    private final String size;
+    private final Spanned description;
+
+    EpisodeRow(Episode episode, Spanned description) {
+        podcastTitle = episode.getPodcast().getTitle();
+        episodeTitle = episode.getTitle();
+        rawDescription = episode.getDescription();
+        fileSize = episode.getFileSize();
+
+        title = formatTitle(podcastTitle, episodeTitle);
+        size = byteToHumanSize(fileSize);
+        this.description = description;
+    }
+
+    /**
+     * @return Whether the row has been computed from the current values of
+     *         the episode.
+     */
+    boolean isCurrent(Episode episode) {
+        return fileSize == episode.getFileSize()
+               && equal(podcastTitle, episode.getPodcast().getTitle())
+               && equal(episodeTitle, episode.getTitle())
+               && equal(rawDescription, episode.getDescription());
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    String getSize() {
+        return size;
+    }
+
+    /**
+     * @return The summary of the description, null if it hasn't been rendered
+     *         yet.
+     */
+    Spanned getDescription() {
+        return description;
+    }
+
+    static String formatTitle(String podcastTitle, String episodeTitle) {
+        StringBuilder sb = new StringBuilder();
+        if (podcastTitle.length() > MAX_TITLE_LENGTH) {
+            sb.append(podcastTitle, 0, MAX_TITLE_LENGTH - ELLIPSIS.length()).append(ELLIPSIS);
+        } else {
+            sb.append(podcastTitle);
+        }
+        return sb.append(": ").append(episodeTitle).toString();
+    }
+
+    static String byteToHumanSize(long fileSize) {
+        return byteToHumanSize(fileSize, Locale.getDefault());
+    }
+
+    /**
+     * @param locale The locale whose decimal separator is used.
+     */
+    static String byteToHumanSize(long fileSize, Locale locale) {
+        double value = fileSize;
+        int unitIndex;
+
+        for (unitIndex = 0; unitIndex < UNITS.length - 1; unitIndex++) {
+            if (value < MAX_VALUE) {
+                break;
+            }
+            value /= SUBUNITS_PER_UNIT;
+        }
+
+        return String.format(locale, "%.2f %s", value, UNITS[unitIndex]);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
@@ -0,0 +1,92 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+package at.ac.tuwien.detlef.adapters;
+
+import java.util.List;
+
+import android.text.Spanned;
+import android.util.LruCache;
+import at.ac.tuwien.detlef.adapters.DescriptionSummaries.OnSummariesReadyListener;
+import at.ac.tuwien.detlef.domain.Episode;
+
+/**
+ * Caches the {@link EpisodeRow}s of the most recently displayed episodes. The
+ * number of rows is bounded, so that memory doesn't grow with every
+ * description ever shown. Descriptions are rendered in the background by
+ * {@link DescriptionSummaries}; a row is displayed without its description
+ * until the summary is ready, and is rebuilt then.
+ */
+class EpisodeRowCache {
+
+    private static final int MAX_ROWS = 256;
+
+    /** At most this many episodes are prepared at once, see {@link #prepare(List)}. */
+    private static final int MAX_PREPARED = MAX_ROWS / 2;
+
+    private final LruCache<Long, EpisodeRow> rows = new LruCache<Long, EpisodeRow>(MAX_ROWS);
+    private final DescriptionSummaries summaries;
+
+    /**
+     * @param listener Is notified on the UI thread when descriptions have been
+     *            rendered, so that the rows displaying them can be rebound.
+     */
+    public EpisodeRowCache(OnSummariesReadyListener listener) {
+        summaries = new DescriptionSummaries(listener);
+    }
+
+    /**
+     * @return The row of the episode, computed if it isn't cached or the
+     *         episode has changed since. Its description is null if the
+     *         summary isn't ready yet; it is then rendered in the background.
+     */
+    public EpisodeRow get(Episode episode) {
+        EpisodeRow row = rows.get(episode.getId());
+        if (row != null && row.isCurrent(episode) && row.getDescription() != null) {
+            return row;
+        }
+
+        Spanned description = summaries.get(episode.getDescription());
+        if (description == null) {
+            summaries.prepare(episode.getDescription());
+        }
+
+        row = new EpisodeRow(episode, description);
+        rows.put(episode.getId(), row);
+        return row;
+    }
+
+    /**
+     * Renders the description of the episode in the background unless it is
+     * ready or queued already.
+     */
+    public void prepare(Episode episode) {
+        summaries.prepare(episode.getDescription());
+    }
+
+    /**
+     * Renders the descriptions of the episodes in the background, e.g. of
+     * newly added episodes or of those about to be scrolled into view. Only
+     * the first few episodes are prepared, since the summaries of the
+     * others would be evicted again before they are displayed.
+     */
+    public void prepare(List<Episode> episodes) {
+        int count = Math.min(episodes.size(), MAX_PREPARED);
+        for (int i = 0; i < count; i++) {
+            summaries.prepare(episodes.get(i).getDescription());
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 import at.ac.tuwien.detlef.R;
+import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Episode;
 
 public class PlaylistListAdapter extends ArrayAdapter<Episode> {
@@ -60,7 +61,7 @@ public class PlaylistListAdapter extends ArrayAdapter<Episode> {
             episodeName.setText(episode.getTitle());
 
             ImageView logo = (ImageView) v.findViewById(R.id.logo);
-            logo.setImageDrawable(episode.getPodcast().getLogoIcon());
+            Singletons.i().getPodcastLogoLoader().bind(logo, episode.getPodcast());
         }
 
         ImageButton removeButton = (ImageButton) v.findViewById(R.id.playListRemoveFromPlaylist);
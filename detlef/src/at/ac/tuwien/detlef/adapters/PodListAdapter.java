@@ -29,6 +29,7 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 import at.ac.tuwien.detlef.R;
+import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Podcast;
 
 public class PodListAdapter extends ArrayAdapter<Podcast> {
@@ -67,8 +68,7 @@ public class PodListAdapter extends ArrayAdapter<Podcast> {
             lastUpdate.setText(sdf.format(date));
         }
 
-        lastUpdate.setCompoundDrawablesWithIntrinsicBounds(null,
-                podcast.getLogoIcon(), null, null);
+        Singletons.i().getPodcastLogoLoader().bindTop(lastUpdate, podcast);
 
         TextView podcastName = (TextView)v.findViewById(R.id.podListPodcastName);
         podcastName.setText(podcast.getTitle());
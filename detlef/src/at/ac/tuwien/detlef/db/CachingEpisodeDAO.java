@@ -1,7 +1,11 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.Context;
@@ -13,6 +17,36 @@ public class CachingEpisodeDAO implements EpisodeDAO {
     private final HashMap<Long, Episode> cache;
     private final SimpleEpisodeDAO dao;
 
+    /** Indexes the cache by url and guid, guarded by cache. */
+    private final EpisodeIndex index = new EpisodeIndex();
+
+    /* The following are guarded by cache as well. The ids of the cached
+     * episodes of each podcast, and the podcasts whose episodes have all been
+     * loaded, so that their episodes are served without a query. */
+
+    private final HashMap<Long, HashSet<Long>> byPodcast = new HashMap<Long, HashSet<Long>>();
+    private final HashSet<Long> completePodcasts = new HashSet<Long>();
+    private boolean allComplete = false;
+
+    /* Unmodifiable lists handed out by the read methods, built on first
+     * request and dropped whenever an episode is added or removed, or its
+     * release date changes. */
+
+    private final HashMap<Long, List<Episode>> podcastSnapshots =
+        new HashMap<Long, List<Episode>>();
+    private List<Episode> allSnapshot = null;
+
+    /** The order of the lists returned by {@link SimpleEpisodeDAO}. */
+    private static final Comparator<Episode> NEWEST_FIRST = new Comparator<Episode>() {
+        @Override
+        public int compare(Episode lhs, Episode rhs) {
+            if (lhs.getReleased() == rhs.getReleased()) {
+                return 0;
+            }
+            return (lhs.getReleased() > rhs.getReleased()) ? -1 : 1;
+        }
+    };
+
     public CachingEpisodeDAO(Context context) {
         cache = new HashMap<Long, Episode>();
         dao = new SimpleEpisodeDAO(context);
@@ -25,50 +59,249 @@ public class CachingEpisodeDAO implements EpisodeDAO {
         }
 
         synchronized (cache) {
-            cache.put(episode.getId(), episode);
+            cachePut(episode);
         }
 
         return episode;
     }
 
+    @Override
+    public List<Episode> insertEpisodes(Collection<Episode> episodes) {
+        List<Episode> inserted = dao.insertEpisodes(episodes);
+        if (inserted == null) {
+            return null;
+        }
+
+        synchronized (cache) {
+            for (Episode e : inserted) {
+                cachePut(e);
+            }
+        }
+
+        return inserted;
+    }
+
+    @Override
+    public List<Episode> upsertEpisodes(Podcast podcast, Collection<Episode> episodes) {
+        List<Episode> inserted = new ArrayList<Episode>();
+        List<Episode> changed = new ArrayList<Episode>();
+        if (!dao.upsertEpisodes(podcast, episodes, inserted, changed)) {
+            return null;
+        }
+
+        /* Keep handing out the instances other components already hold, and
+         * only tell the listeners about those. */
+
+        synchronized (cache) {
+            for (Episode e : inserted) {
+                cachePut(e);
+            }
+
+            for (int i = 0; i < changed.size(); i++) {
+                Episode e = changed.get(i);
+                Episode cached = cache.get(e.getId());
+                if (cached == null) {
+                    cachePut(e);
+                } else {
+                    long released = cached.getReleased();
+                    SimpleEpisodeDAO.mergeFeedColumns(cached, e);
+                    index.put(cached);
+                    if (cached.getReleased() != released) {
+                        invalidateSnapshots(cached.getPodcast().getId());
+                    }
+                    changed.set(i, cached);
+                }
+            }
+        }
+
+        dao.notifyListenersAdded(inserted);
+        dao.notifyListenersChanged(changed);
+
+        List<Episode> result = new ArrayList<Episode>(inserted);
+        result.addAll(changed);
+        return result;
+    }
+
     @Override
     public int deleteEpisode(Episode episode) {
         synchronized (cache) {
-            cache.remove(episode.getId());
+            Episode cached = cache.get(episode.getId());
+            if (cached != null) {
+                cacheRemove(cached);
+            }
         }
 
         return dao.deleteEpisode(episode);
     }
 
+    /**
+     * @return An unmodifiable list of all episodes.
+     */
     @Override
     public List<Episode> getAllEpisodes() {
-        return cacheResults(dao.getAllEpisodes());
+        synchronized (cache) {
+            if (allComplete) {
+                return allSnapshot();
+            }
+        }
+
+        List<Episode> es = dao.getAllEpisodes();
+
+        synchronized (cache) {
+            cacheAbsent(es);
+            allComplete = true;
+            return allSnapshot();
+        }
     }
 
-    private List<Episode> cacheResults(List<Episode> es) {
-        if (es == null) {
-            return null;
+    /**
+     * @return An unmodifiable list of the podcast's episodes.
+     */
+    @Override
+    public List<Episode> getEpisodes(Podcast podcast) {
+        synchronized (cache) {
+            if (allComplete || completePodcasts.contains(podcast.getId())) {
+                return podcastSnapshot(podcast.getId());
+            }
         }
 
+        List<Episode> es = dao.getEpisodes(podcast);
+
+        synchronized (cache) {
+            cacheAbsent(es);
+            completePodcasts.add(podcast.getId());
+            return podcastSnapshot(podcast.getId());
+        }
+    }
+
+    /**
+     * Caches those of the given episodes which are not cached yet. Must be
+     * called while holding the lock on cache.
+     */
+    private void cacheAbsent(List<Episode> es) {
+        for (Episode e : es) {
+            if (!cache.containsKey(e.getId())) {
+                cachePut(e);
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on cache.
+     */
+    private List<Episode> allSnapshot() {
+        if (allSnapshot == null) {
+            allSnapshot = snapshot(cache.values());
+        }
+        return allSnapshot;
+    }
+
+    /**
+     * Must be called while holding the lock on cache.
+     */
+    private List<Episode> podcastSnapshot(long podcastId) {
+        List<Episode> snapshot = podcastSnapshots.get(podcastId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        HashSet<Long> ids = byPodcast.get(podcastId);
+        List<Episode> es = new ArrayList<Episode>((ids == null) ? 0 : ids.size());
+        if (ids != null) {
+            for (Long id : ids) {
+                es.add(cache.get(id));
+            }
+        }
+
+        snapshot = snapshot(es);
+        podcastSnapshots.put(podcastId, snapshot);
+        return snapshot;
+    }
+
+    private static List<Episode> snapshot(Collection<Episode> es) {
+        List<Episode> sorted = new ArrayList<Episode>(es);
+        Collections.sort(sorted, NEWEST_FIRST);
+        return Collections.unmodifiableList(sorted);
+    }
+
+    @Override
+    public List<Episode> getEpisodesReleasedBefore(Episode before, int count) {
+        return canonicalize(dao.getEpisodesReleasedBefore(before, count));
+    }
+
+    @Override
+    public List<Episode> getEpisodesReleasedAfter(Episode after, int count) {
+        return canonicalize(dao.getEpisodesReleasedAfter(after, count));
+    }
+
+    /**
+     * Replaces every episode which is cached already by the cached instance
+     * and caches the others, keeping the order of the given list.
+     */
+    private List<Episode> canonicalize(List<Episode> es) {
+        List<Episode> result = new ArrayList<Episode>(es.size());
         synchronized (cache) {
             for (Episode e : es) {
-                if (!cache.containsKey(e.getId())) {
-                    cache.put(e.getId(), e);
+                Episode cached = cache.get(e.getId());
+                if (cached == null) {
+                    cachePut(e);
+                    result.add(e);
+                } else {
+                    result.add(cached);
                 }
             }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int update(Episode episode) {
+        boolean reordered = episode.isDirty(Episode.Field.RELEASED);
+        int ret = dao.update(episode);
+
+        /* The url or guid may have been changed. */
 
-            return new ArrayList<Episode>(cache.values());
+        synchronized (cache) {
+            if (cache.get(episode.getId()) == episode) {
+                index.put(episode);
+                if (reordered) {
+                    invalidateSnapshots(episode.getPodcast().getId());
+                }
+            }
         }
+
+        return ret;
     }
 
     @Override
-    public List<Episode> getEpisodes(Podcast podcast) {
-        return cacheResults(dao.getEpisodes(podcast));
+    public int updateEpisodes(Collection<Episode> episodes) {
+        HashSet<Episode> reordered = new HashSet<Episode>();
+        for (Episode episode : episodes) {
+            if (episode.isDirty(Episode.Field.RELEASED)) {
+                reordered.add(episode);
+            }
+        }
+
+        int ret = dao.updateEpisodes(episodes);
+
+        synchronized (cache) {
+            for (Episode episode : episodes) {
+                if (cache.get(episode.getId()) == episode) {
+                    index.put(episode);
+                    if (reordered.contains(episode)) {
+                        invalidateSnapshots(episode.getPodcast().getId());
+                    }
+                }
+            }
+        }
+
+        return ret;
     }
 
     @Override
-    public int update(Episode episode) {
-        return dao.update(episode);
+    public int updatePlayPositions(Collection<Episode> episodes) {
+        return dao.updatePlayPositions(episodes);
     }
 
     @Override
@@ -88,7 +321,12 @@ public class CachingEpisodeDAO implements EpisodeDAO {
         }
 
         synchronized (cache) {
-            cache.put(e.getId(), e);
+            Episode cached = cache.get(id);
+            if (cached != null) {
+                return cached;
+            }
+
+            cachePut(e);
         }
 
         return e;
@@ -97,16 +335,9 @@ public class CachingEpisodeDAO implements EpisodeDAO {
     @Override
     public Episode getEpisodeByUrlOrGuid(String url, String guid) {
         synchronized (cache) {
-            for (Episode e : cache.values()) {
-                String otherUrl = e.getUrl();
-                if (otherUrl != null && otherUrl.equals(url)) {
-                    return e;
-                }
-
-                String otherGuid = e.getGuid();
-                if (otherGuid != null && otherGuid.equals(guid)) {
-                    return e;
-                }
+            Episode e = index.get(url, guid);
+            if (e != null) {
+                return e;
             }
         }
 
@@ -116,12 +347,61 @@ public class CachingEpisodeDAO implements EpisodeDAO {
         }
 
         synchronized (cache) {
-            cache.put(e.getId(), e);
+            Episode cached = cache.get(e.getId());
+            if (cached != null) {
+                return cached;
+            }
+
+            cachePut(e);
         }
 
         return e;
     }
 
+    /**
+     * Adds the episode to the cache and its indices. Must be called while
+     * holding the lock on cache.
+     */
+    private void cachePut(Episode e) {
+        cache.put(e.getId(), e);
+        index.put(e);
+
+        long podcastId = e.getPodcast().getId();
+        HashSet<Long> ids = byPodcast.get(podcastId);
+        if (ids == null) {
+            ids = new HashSet<Long>();
+            byPodcast.put(podcastId, ids);
+        }
+        ids.add(e.getId());
+
+        invalidateSnapshots(podcastId);
+    }
+
+    /**
+     * Removes the episode from the cache and its indices. Must be called
+     * while holding the lock on cache.
+     */
+    private void cacheRemove(Episode e) {
+        cache.remove(e.getId());
+        index.remove(e);
+
+        long podcastId = e.getPodcast().getId();
+        HashSet<Long> ids = byPodcast.get(podcastId);
+        if (ids != null) {
+            ids.remove(e.getId());
+            if (ids.isEmpty()) {
+                byPodcast.remove(podcastId);
+            }
+        }
+
+        invalidateSnapshots(podcastId);
+    }
+
+    private void invalidateSnapshots(long podcastId) {
+        podcastSnapshots.remove(podcastId);
+        allSnapshot = null;
+    }
+
     @Override
     public void addEpisodeChangedListener(OnEpisodeChangeListener listener) {
         dao.addEpisodeChangedListener(listener);
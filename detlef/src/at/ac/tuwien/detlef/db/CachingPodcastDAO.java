@@ -12,6 +12,12 @@ public class CachingPodcastDAO implements PodcastDAO {
     private final HashMap<Long, Podcast> cache;
     private final SimplePodcastDAO dao;
 
+    /* Indexes the cache by url, guarded by cache. Since update() may be called
+     * after the url of a cached podcast has been changed, the url each podcast
+     * is indexed under is remembered as well. */
+    private final HashMap<String, Podcast> byUrl = new HashMap<String, Podcast>();
+    private final HashMap<Long, String> indexedUrls = new HashMap<Long, String>();
+
     public CachingPodcastDAO(Context context) {
         dao = new SimplePodcastDAO(context);
         cache = new HashMap<Long, Podcast>();
@@ -24,7 +30,7 @@ public class CachingPodcastDAO implements PodcastDAO {
         }
 
         synchronized (cache) {
-            cache.put(podcast.getId(), podcast);
+            cachePut(podcast);
         }
 
         return podcast;
@@ -33,10 +39,9 @@ public class CachingPodcastDAO implements PodcastDAO {
     @Override
     public Podcast getPodcastByUrl(String url) {
         synchronized (cache) {
-            for (Podcast p : cache.values()) {
-                if (p.getUrl().equals(url)) {
-                    return p;
-                }
+            Podcast p = byUrl.get(url);
+            if (p != null) {
+                return p;
             }
         }
 
@@ -46,7 +51,12 @@ public class CachingPodcastDAO implements PodcastDAO {
         }
 
         synchronized (cache) {
-            cache.put(p.getId(), p);
+            Podcast cached = cache.get(p.getId());
+            if (cached != null) {
+                return cached;
+            }
+
+            cachePut(p);
         }
 
         return p;
@@ -55,7 +65,7 @@ public class CachingPodcastDAO implements PodcastDAO {
     @Override
     public int deletePodcast(Podcast podcast) {
         synchronized (cache) {
-            cache.remove(podcast.getId());
+            cacheRemove(podcast);
         }
 
         return dao.deletePodcast(podcast);
@@ -65,6 +75,8 @@ public class CachingPodcastDAO implements PodcastDAO {
     public int deleteAllPodcasts() {
         synchronized (cache) {
             cache.clear();
+            byUrl.clear();
+            indexedUrls.clear();
         }
 
         return dao.deleteAllPodcasts();
@@ -85,7 +97,7 @@ public class CachingPodcastDAO implements PodcastDAO {
         synchronized (cache) {
             for (Podcast p : ps) {
                 if (!cache.containsKey(p.getId())) {
-                    cache.put(p.getId(), p);
+                    cachePut(p);
                 }
             }
 
@@ -95,7 +107,17 @@ public class CachingPodcastDAO implements PodcastDAO {
 
     @Override
     public int update(Podcast podcast) {
-        return dao.update(podcast);
+        int ret = dao.update(podcast);
+
+        /* The url may have been rewritten. */
+
+        synchronized (cache) {
+            if (cache.get(podcast.getId()) == podcast) {
+                index(podcast);
+            }
+        }
+
+        return ret;
     }
 
     @Override
@@ -115,7 +137,7 @@ public class CachingPodcastDAO implements PodcastDAO {
         }
 
         synchronized (cache) {
-            cache.put(p.getId(), p);
+            cachePut(p);
         }
 
         return p;
@@ -124,7 +146,7 @@ public class CachingPodcastDAO implements PodcastDAO {
     @Override
     public boolean localDeletePodcast(Podcast podcast) {
         synchronized (cache) {
-            cache.remove(podcast.getId());
+            cacheRemove(podcast);
         }
 
         return dao.localDeletePodcast(podcast);
@@ -160,4 +182,32 @@ public class CachingPodcastDAO implements PodcastDAO {
         dao.removePodListChangeListener(listener);
     }
 
+    /**
+     * Adds the podcast to the cache and the url index. Must be called while
+     * holding the lock on cache.
+     */
+    private void cachePut(Podcast p) {
+        cache.put(p.getId(), p);
+        index(p);
+    }
+
+    private void cacheRemove(Podcast p) {
+        cache.remove(p.getId());
+        unindex(p.getId());
+    }
+
+    private void index(Podcast p) {
+        unindex(p.getId());
+        if (p.getUrl() != null) {
+            byUrl.put(p.getUrl(), p);
+            indexedUrls.put(p.getId(), p.getUrl());
+        }
+    }
+
+    private void unindex(long id) {
+        String url = indexedUrls.remove(id);
+        if (url != null && byUrl.get(url) != null && byUrl.get(url).getId() == id) {
+            byUrl.remove(url);
+        }
+    }
 }
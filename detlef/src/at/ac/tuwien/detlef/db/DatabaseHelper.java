@@ -17,7 +17,12 @@
 
 package at.ac.tuwien.detlef.db;
 
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -29,7 +34,7 @@ import at.ac.tuwien.detlef.settings.GpodderSettings;
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
 
-    static final int VERSION = 15;
+    static final int VERSION = 18;
 
     public static final String DB_NAME = "detlefDB";
 
@@ -100,6 +105,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String COLUMN_PODCAST_ADD_ID = "_ID";
 
     public static final String EPISODE_RELEASED_INDEX = "Episode_Released_Index";
+    public static final String EPISODE_PODCAST_GUID_INDEX = "Episode_Podcast_Guid_Index";
+    public static final String EPISODE_PODCAST_URL_INDEX = "Episode_Podcast_Url_Index";
+    public static final String EPISODE_URL_INDEX = "Episode_Url_Index";
+    public static final String EPISODE_GUID_INDEX = "Episode_Guid_Index";
+    public static final String PODCAST_URL_INDEX = "Podcast_Url_Index";
 
     /* Create statement for the podcast table. */
     static final String CREATE_PODCAST_TABLE =
@@ -204,6 +214,65 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                       + "( %s DESC );",
                       EPISODE_RELEASED_INDEX, TABLE_EPISODE, COLUMN_EPISODE_RELEASED);
 
+    /* unique index identifying an episode by its guid within a podcast */
+    static final String CREATE_EPISODE_PODCAST_GUID_INDEX =
+        String.format("create unique index %s ON %s "
+                      + "( %s, %s );",
+                      EPISODE_PODCAST_GUID_INDEX, TABLE_EPISODE, COLUMN_EPISODE_PODCAST,
+                      COLUMN_EPISODE_GUID);
+
+    /* unique index identifying an episode by its url within a podcast */
+    static final String CREATE_EPISODE_PODCAST_URL_INDEX =
+        String.format("create unique index %s ON %s "
+                      + "( %s, %s );",
+                      EPISODE_PODCAST_URL_INDEX, TABLE_EPISODE, COLUMN_EPISODE_PODCAST,
+                      COLUMN_EPISODE_URL);
+
+    /*
+     * indices on the episode url and guid across all podcasts, used to look up
+     * the episode of a remote episode action
+     */
+    static final String CREATE_EPISODE_URL_INDEX =
+        String.format("create index %s ON %s ( %s );",
+                      EPISODE_URL_INDEX, TABLE_EPISODE, COLUMN_EPISODE_URL);
+
+    static final String CREATE_EPISODE_GUID_INDEX =
+        String.format("create index %s ON %s ( %s );",
+                      EPISODE_GUID_INDEX, TABLE_EPISODE, COLUMN_EPISODE_GUID);
+
+    /* unique index on the podcast url, used to look up podcasts by url */
+    static final String CREATE_PODCAST_URL_INDEX =
+        String.format("create unique index %s ON %s "
+                      + "( %s );",
+                      PODCAST_URL_INDEX, TABLE_PODCAST, COLUMN_PODCAST_URL);
+
+    /* Removes all but the oldest podcast with the same url. */
+    private static final String DELETE_DUPLICATE_PODCASTS =
+        String.format("delete from %1$s where %2$s not in "
+                      + "(select min(%2$s) from %1$s group by %3$s);",
+                      TABLE_PODCAST, COLUMN_PODCAST_ID, COLUMN_PODCAST_URL);
+
+    /*
+     * Removes all rows of a table which reference a missing parent row. Needed
+     * during upgrades, where foreign keys are not enforced.
+     */
+    private static final String DELETE_ORPHANS =
+        "delete from %s where %s not in (select %s from %s);";
+
+    /*
+     * Points playlist entries of duplicate episodes at the oldest row with the
+     * same podcast and %s (the one which survives DELETE_DUPLICATE_EPISODES).
+     */
+    private static final String REMAP_DUPLICATE_PLAYLIST_EPISODES =
+        "update %1$s set %2$s = (select min(b.%3$s) from %4$s a join %4$s b "
+        + "on a.%5$s = b.%5$s and a.%6$s = b.%6$s where a.%3$s = %1$s.%2$s) "
+        + "where %2$s in (select %3$s from %4$s where %6$s is not null);";
+
+    /* Selects all but the oldest episode with the same podcast and %s. */
+    private static final String DUPLICATE_EPISODES =
+        "%3$s is not null and %2$s not in "
+        + "(select min(%2$s) from %1$s where %3$s is not null group by %4$s, %3$s)";
+
     public DatabaseHelper(Context context) {
         super(context, DB_NAME, null, VERSION);
     }
@@ -219,6 +288,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_PODCAST_LOCAL_DEL_TABLE);
         db.execSQL(CREATE_PODCAST_LOCAL_ADD_TABLE);
         db.execSQL(CREATE_EPISODE_RELEASED_INDEX);
+        db.execSQL(CREATE_EPISODE_PODCAST_GUID_INDEX);
+        db.execSQL(CREATE_EPISODE_PODCAST_URL_INDEX);
+        db.execSQL(CREATE_EPISODE_URL_INDEX);
+        db.execSQL(CREATE_EPISODE_GUID_INDEX);
+        db.execSQL(CREATE_PODCAST_URL_INDEX);
     }
 
     @Override
@@ -246,6 +320,112 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             settings.setLastUpdate(0);
             Singletons.i().getGpodderSettingsDAO().writeSettings(settings);
             onCreate(db);
+            return;
         }
+
+        if (oldVersion < 16) {
+            /* Older versions could store the same episode several times. Merge those
+             * before the unique indices can be created. */
+
+            removeDuplicateEpisodes(db, COLUMN_EPISODE_URL);
+            removeDuplicateEpisodes(db, COLUMN_EPISODE_GUID);
+            db.execSQL(CREATE_EPISODE_PODCAST_GUID_INDEX);
+            db.execSQL(CREATE_EPISODE_PODCAST_URL_INDEX);
+        }
+
+        if (oldVersion < 17) {
+            /* Subscribing to the same url twice used to be possible. Keep the
+             * oldest podcast, the episodes of the others are removed along with
+             * them. */
+
+            db.execSQL(DELETE_DUPLICATE_PODCASTS);
+            String orphans = String.format("%s not in (select %s from %s)",
+                                           COLUMN_EPISODE_PODCAST, COLUMN_PODCAST_ID,
+                                           TABLE_PODCAST);
+            deleteEpisodeFiles(db, orphans);
+            deleteOrphans(db, TABLE_EPISODE, COLUMN_EPISODE_PODCAST,
+                          TABLE_PODCAST, COLUMN_PODCAST_ID);
+            deleteOrphans(db, TABLE_PLAYLIST, COLUMN_PLAYLIST_EPISODE,
+                          TABLE_EPISODE, COLUMN_EPISODE_ID);
+            deleteOrphans(db, TABLE_EPISODE_ACTION, COLUMN_EPISODE_ACTION_PODCAST,
+                          TABLE_PODCAST, COLUMN_PODCAST_ID);
+            deleteOrphans(db, TABLE_EPISODE_PLAY_ACTION, COLUMN_EPISODE_PLAY_ACTION_ID,
+                          TABLE_EPISODE_ACTION, COLUMN_EPISODE_ACTION_ID);
+            deleteOrphans(db, TABLE_PODCAST_LOCAL_DEL, COLUMN_PODCAST_DEL_ID,
+                          TABLE_PODCAST, COLUMN_PODCAST_ID);
+            deleteOrphans(db, TABLE_PODCAST_LOCAL_ADD, COLUMN_PODCAST_ADD_ID,
+                          TABLE_PODCAST, COLUMN_PODCAST_ID);
+            db.execSQL(CREATE_PODCAST_URL_INDEX);
+        }
+
+        if (oldVersion < 18) {
+            db.execSQL(CREATE_EPISODE_URL_INDEX);
+            db.execSQL(CREATE_EPISODE_GUID_INDEX);
+        }
+    }
+
+    /**
+     * Deletes all episodes which share the given column value with an older
+     * episode of the same podcast, along with their downloaded files. Playlist
+     * entries are moved over to the surviving episode, which may then appear in
+     * the playlist more than once, as the playlist allows.
+     *
+     * @param db The database to clean up.
+     * @param column The column which should be unique within a podcast.
+     */
+    private void removeDuplicateEpisodes(SQLiteDatabase db, String column) {
+        db.execSQL(String.format(REMAP_DUPLICATE_PLAYLIST_EPISODES, TABLE_PLAYLIST,
+                                 COLUMN_PLAYLIST_EPISODE, COLUMN_EPISODE_ID, TABLE_EPISODE,
+                                 COLUMN_EPISODE_PODCAST, column));
+
+        String duplicates = String.format(DUPLICATE_EPISODES, TABLE_EPISODE, COLUMN_EPISODE_ID,
+                                          column, COLUMN_EPISODE_PODCAST);
+        deleteEpisodeFiles(db, duplicates);
+        db.delete(TABLE_EPISODE, duplicates, null);
+    }
+
+    /**
+     * Deletes the downloaded files of the episodes matching the given
+     * selection, which are about to be deleted. Files which are still
+     * referenced by another episode (duplicates of an episode are usually
+     * stored under the same path) are kept.
+     */
+    private void deleteEpisodeFiles(SQLiteDatabase db, String selection) {
+        String[] columns = {
+            COLUMN_EPISODE_FILEPATH
+        };
+        String where = String.format("%s is not null and (%s)", COLUMN_EPISODE_FILEPATH,
+                                     selection);
+        String keep = String.format("%s is not null and not (%s)", COLUMN_EPISODE_FILEPATH,
+                                    selection);
+
+        Set<String> paths = queryStrings(db, columns, where);
+        paths.removeAll(queryStrings(db, columns, keep));
+
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.exists() && !file.delete()) {
+                Log.w(getClass().getName(), "Could not delete " + path);
+            }
+        }
+    }
+
+    private static Set<String> queryStrings(SQLiteDatabase db, String[] columns,
+                                            String selection) {
+        Set<String> result = new HashSet<String>();
+        Cursor c = db.query(TABLE_EPISODE, columns, selection, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                result.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private void deleteOrphans(SQLiteDatabase db, String table, String column,
+                               String parentTable, String parentColumn) {
+        db.execSQL(String.format(DELETE_ORPHANS, table, column, parentColumn, parentTable));
     }
 }
@@ -43,6 +43,18 @@ public interface EpisodeActionDAO {
      */
     List<RemoteEpisodeAction> getAllEpisodeActions();
 
+    /**
+     * Delivers a page of the episode actions stored in the database, in the
+     * order they have been inserted.
+     *
+     * @param afterId Only actions with a larger id are returned, 0 for the
+     *            first page. Pass the id of the last action of the previous
+     *            page to get the next one.
+     * @param count The maximum number of actions to return.
+     * @return Returns a list of at most count episode actions.
+     */
+    List<RemoteEpisodeAction> getEpisodeActions(long afterId, int count);
+
     /**
      * Deletes all specified episode actions from the database. This should be
      * called after they were persisted on the gpodder service.
@@ -52,4 +64,13 @@ public interface EpisodeActionDAO {
      */
     boolean flushEpisodeActions(List<RemoteEpisodeAction> episodeActions);
 
+    /**
+     * Deletes all episode actions which have been superseded by a later
+     * action of the same type on the same episode, e.g. all but the last play
+     * position. This should be called before the actions are uploaded.
+     *
+     * @return The number of deleted episode actions, or -1 on failure.
+     */
+    int compactEpisodeActions();
+
 }
@@ -25,6 +25,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.DeviceId;
@@ -101,7 +102,7 @@ public class EpisodeActionDAOImpl implements EpisodeActionDAO {
         return true;
     }
 
-    private static final String QUERY_ALL_EPISODE_ACTIONS = String.format("select "
+    private static final String QUERY_EPISODE_ACTIONS = String.format("select "
             + "ea.%s, "
             + "p.%s, "
             + "ea.%s, "
@@ -110,7 +111,7 @@ public class EpisodeActionDAOImpl implements EpisodeActionDAO {
             + "epa.%s, "
             + "epa.%s, "
             + "epa.%s "
-            + "from %s ea left outer join %s epa on ea.%s = epa.%s join %s p on ea.%s = p.%s;",
+            + "from %s ea left outer join %s epa on ea.%s = epa.%s join %s p on ea.%s = p.%s",
             DatabaseHelper.COLUMN_EPISODE_ACTION_ID,
             DatabaseHelper.COLUMN_PODCAST_URL, DatabaseHelper.COLUMN_EPISODE_ACTION_EPISODE_ID,
             DatabaseHelper.COLUMN_EPISODE_ACTION_ACTION,
@@ -122,18 +123,37 @@ public class EpisodeActionDAOImpl implements EpisodeActionDAO {
             DatabaseHelper.COLUMN_EPISODE_PLAY_ACTION_ID, DatabaseHelper.TABLE_PODCAST,
             DatabaseHelper.COLUMN_EPISODE_ACTION_PODCAST, DatabaseHelper.COLUMN_PODCAST_ID);
 
+    private static final String QUERY_ALL_EPISODE_ACTIONS = QUERY_EPISODE_ACTIONS + ";";
+
+    private static final String QUERY_EPISODE_ACTIONS_AFTER = String.format(
+                "%s where ea.%s > ? order by ea.%s limit ?;", QUERY_EPISODE_ACTIONS,
+                DatabaseHelper.COLUMN_EPISODE_ACTION_ID, DatabaseHelper.COLUMN_EPISODE_ACTION_ID);
+
     @Override
     public List<RemoteEpisodeAction> getAllEpisodeActions() {
+        return getEpisodeActions(QUERY_ALL_EPISODE_ACTIONS, null);
+    }
+
+    @Override
+    public List<RemoteEpisodeAction> getEpisodeActions(long afterId, int count) {
+        String[] selectionArgs = {
+            String.valueOf(afterId), String.valueOf(count)
+        };
+        return getEpisodeActions(QUERY_EPISODE_ACTIONS_AFTER, selectionArgs);
+    }
+
+    private List<RemoteEpisodeAction> getEpisodeActions(String query, String[] selectionArgs) {
         List<RemoteEpisodeAction> episodeActions = new LinkedList<RemoteEpisodeAction>();
 
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = db.rawQuery(QUERY_ALL_EPISODE_ACTIONS, null);
         DeviceId devId =
             Singletons.i().getGpodderSettings().getDeviceId();
         if (devId == null) {
             return episodeActions;
         }
 
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(query, selectionArgs);
+
         if (c.moveToFirst()) {
             do {
                 RemoteEpisodeAction a = new RemoteEpisodeAction(
@@ -165,28 +185,67 @@ public class EpisodeActionDAOImpl implements EpisodeActionDAO {
         return episodeActions;
     }
 
+    private static final String DELETE_EPISODE_ACTION = String.format(
+                "delete from %s where %s = ?;", DatabaseHelper.TABLE_EPISODE_ACTION,
+                DatabaseHelper.COLUMN_EPISODE_ACTION_ID);
+
+    /**
+     * Deletes the given episode actions within a single transaction. Their
+     * play action details are removed along with them by the foreign key.
+     */
     @Override
     public boolean flushEpisodeActions(List<RemoteEpisodeAction> episodeActions) {
-        SQLiteDatabase db = null;
+        if (episodeActions.isEmpty()) {
+            return true;
+        }
 
+        SQLiteDatabase db = null;
+        SQLiteStatement stmt = null;
         try {
             db = dbHelper.getWritableDatabase();
-            String selection = DatabaseHelper.COLUMN_EPISODE_ACTION_ID + " = ?";
+            db.beginTransaction();
 
+            stmt = db.compileStatement(DELETE_EPISODE_ACTION);
             for (RemoteEpisodeAction a : episodeActions) {
-                String[] selectionArgs = {
-                    String.valueOf(a.getId())
-                };
-
-                db.delete(DatabaseHelper.TABLE_EPISODE_ACTION, selection, selectionArgs);
+                stmt.bindLong(1, a.getId());
+                stmt.execute();
             }
 
+            db.setTransactionSuccessful();
         } catch (Exception ex) {
             Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
             return false;
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            if ((db != null) && db.isOpen()) {
+                db.endTransaction();
+            }
         }
 
         return true;
     }
 
+    /* Keeps the latest action of each type per episode. Action ids are
+     * assigned in ascending order, so the latest action has the highest id. */
+
+    private static final String WHERE_SUPERSEDED = String.format(
+                "%s not in (select max(%s) from %s group by %s, %s, %s)",
+                DatabaseHelper.COLUMN_EPISODE_ACTION_ID, DatabaseHelper.COLUMN_EPISODE_ACTION_ID,
+                DatabaseHelper.TABLE_EPISODE_ACTION, DatabaseHelper.COLUMN_EPISODE_ACTION_PODCAST,
+                DatabaseHelper.COLUMN_EPISODE_ACTION_EPISODE_ID,
+                DatabaseHelper.COLUMN_EPISODE_ACTION_ACTION);
+
+    @Override
+    public int compactEpisodeActions() {
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            return db.delete(DatabaseHelper.TABLE_EPISODE_ACTION, WHERE_SUPERSEDED, null);
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            return -1;
+        }
+    }
+
 }
@@ -18,6 +18,7 @@
 
 package at.ac.tuwien.detlef.db;
 
+import java.util.Collection;
 import java.util.List;
 
 import at.ac.tuwien.detlef.domain.Episode;
@@ -35,6 +36,25 @@ public interface EpisodeDAO {
         void onEpisodeChanged(Episode episode);
         void onEpisodeAdded(Episode episode);
         void onEpisodeDeleted(Episode episode);
+
+        /**
+         * Called once after a batch of episodes has been inserted through
+         * {@link EpisodeDAO#insertEpisodes(Collection)}. No individual
+         * onEpisodeAdded() calls are made for these episodes.
+         *
+         * @param episodes The inserted episodes.
+         */
+        void onEpisodesAdded(List<Episode> episodes);
+
+        /**
+         * Called once after a batch of episodes has been updated through
+         * {@link EpisodeDAO#updateEpisodes(Collection)} or
+         * {@link EpisodeDAO#upsertEpisodes(Podcast, Collection)}. No
+         * individual onEpisodeChanged() calls are made for these episodes.
+         *
+         * @param episodes The updated episodes.
+         */
+        void onEpisodesChanged(List<Episode> episodes);
     }
 
     /**
@@ -46,6 +66,32 @@ public interface EpisodeDAO {
      */
     Episode insertEpisode(Episode episode);
 
+    /**
+     * Inserts all given episodes within a single transaction. Either all or
+     * none of the episodes are inserted. Listeners are notified once for the
+     * whole batch.
+     *
+     * @param episodes The episodes to insert.
+     * @return The inserted episodes with their ids set, null if an error
+     *         occurs.
+     */
+    List<Episode> insertEpisodes(Collection<Episode> episodes);
+
+    /**
+     * Merges the given episodes of a podcast into the database. Episodes are
+     * matched against the stored ones by guid and then by url. Unknown
+     * episodes are inserted; for known episodes only the feed attributes which
+     * actually differ are written, local state such as the play position is
+     * kept. Everything happens within a single transaction, so calling this
+     * repeatedly with the same feed is a no-op.
+     *
+     * @param podcast The podcast all of the given episodes belong to.
+     * @param episodes The episodes as retrieved from the feed.
+     * @return The episodes which were inserted or changed, null if an error
+     *         occurs.
+     */
+    List<Episode> upsertEpisodes(Podcast podcast, Collection<Episode> episodes);
+
     /**
      * deletes an episode from the database.
      *
@@ -60,7 +106,7 @@ public interface EpisodeDAO {
     /**
      * delivers all episodes which are stored in the database.
      *
-     * @return returns a list of all episodes
+     * @return returns a list of all episodes, which may be unmodifiable
      */
     List<Episode> getAllEpisodes();
 
@@ -69,18 +115,64 @@ public interface EpisodeDAO {
      *
      * @param podcast
      *            : the podcast which contains the episodes
-     * @return returns a list of episodes which belongs to the given podcast
+     * @return returns a list of episodes which belongs to the given podcast,
+     *         which may be unmodifiable
      */
     List<Episode> getEpisodes(Podcast podcast);
 
+    /**
+     * Gets a page of episodes ordered by release date, newest first. Pages
+     * are addressed by the last episode of the previous page rather than by
+     * an offset, so that a page is found through the release date index no
+     * matter how deep into the list it is.
+     *
+     * @param before The last episode of the previous page, or null for the
+     *            first page.
+     * @param count The maximum number of episodes to return.
+     * @return The at most count episodes released directly before the given
+     *         one, newest first.
+     */
+    List<Episode> getEpisodesReleasedBefore(Episode before, int count);
+
+    /**
+     * The counterpart of {@link #getEpisodesReleasedBefore(Episode, int)} for
+     * paging back towards the newest episode.
+     *
+     * @param after The first episode of the following page.
+     * @param count The maximum number of episodes to return.
+     * @return The at most count episodes released directly after the given
+     *         one, newest first.
+     */
+    List<Episode> getEpisodesReleasedAfter(Episode after, int count);
+
     /**
      * Updates the the given episode.
      *
      * @param episode the episode which should be updated
-     * @return the number of updated rows
+     * @return the number of updated rows, 0 if none of the fields of the
+     *         episode has changed since it was last stored
      */
     int update(Episode episode);
 
+    /**
+     * Updates all given episodes like {@link #update(Episode)}, but within a
+     * single transaction. Listeners are notified once for all episodes.
+     *
+     * @param episodes the episodes which should be updated
+     * @return the number of updated rows, or -1 if the transaction failed
+     */
+    int updateEpisodes(Collection<Episode> episodes);
+
+    /**
+     * Writes the play positions of the given episodes in a single transaction
+     * and records a play action for each episode whose position changed.
+     * Nothing but the play position is written.
+     *
+     * @param episodes The episodes whose play positions should be written.
+     * @return The number of episodes whose play position changed.
+     */
+    int updatePlayPositions(Collection<Episode> episodes);
+
     /**
      * Gets an episode by ID.
      *
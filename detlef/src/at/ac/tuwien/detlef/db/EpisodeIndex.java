@@ -0,0 +1,122 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import at.ac.tuwien.detlef.domain.Episode;
+
+/**
+ * Secondary indices of cached episodes by url and by guid. Since an episode's
+ * url and guid may be changed by the time it is re-indexed, the keys each
+ * episode is currently indexed under are remembered as well. Urls and guids
+ * are only unique within a podcast, so every key maps to all episodes which
+ * own it.
+ *
+ * This class is not thread safe, callers have to synchronize.
+ */
+class EpisodeIndex {
+
+    private final HashMap<String, List<Episode>> byUrl = new HashMap<String, List<Episode>>();
+    private final HashMap<String, List<Episode>> byGuid = new HashMap<String, List<Episode>>();
+
+    private final HashMap<Long, String> indexedUrls = new HashMap<Long, String>();
+    private final HashMap<Long, String> indexedGuids = new HashMap<Long, String>();
+
+    /**
+     * Adds the episode to the index, or updates its entries if its url or guid
+     * have changed since it was last indexed.
+     */
+    public void put(Episode e) {
+        remove(e);
+
+        if (e.getUrl() != null) {
+            add(byUrl, e.getUrl(), e);
+            indexedUrls.put(e.getId(), e.getUrl());
+        }
+
+        if (e.getGuid() != null) {
+            add(byGuid, e.getGuid(), e);
+            indexedGuids.put(e.getId(), e.getGuid());
+        }
+    }
+
+    /**
+     * Removes all entries of the episode from the index. Other episodes
+     * sharing its url or guid stay indexed.
+     */
+    public void remove(Episode e) {
+        String url = indexedUrls.remove(e.getId());
+        if (url != null) {
+            remove(byUrl, url, e.getId());
+        }
+
+        String guid = indexedGuids.remove(e.getId());
+        if (guid != null) {
+            remove(byGuid, guid, e.getId());
+        }
+    }
+
+    /**
+     * @return An episode with the given url or, if there is none, with the
+     *         given guid. Of several episodes, the one indexed last is
+     *         returned. Null if neither is indexed.
+     */
+    public Episode get(String url, String guid) {
+        Episode e = (url == null) ? null : last(byUrl.get(url));
+        if (e != null) {
+            return e;
+        }
+
+        return (guid == null) ? null : last(byGuid.get(guid));
+    }
+
+    private static void add(HashMap<String, List<Episode>> index, String key, Episode e) {
+        List<Episode> es = index.get(key);
+        if (es == null) {
+            es = new ArrayList<Episode>(1);
+            index.put(key, es);
+        }
+        es.add(e);
+    }
+
+    private static void remove(HashMap<String, List<Episode>> index, String key, long id) {
+        List<Episode> es = index.get(key);
+        if (es == null) {
+            return;
+        }
+
+        Iterator<Episode> it = es.iterator();
+        while (it.hasNext()) {
+            if (it.next().getId() == id) {
+                it.remove();
+            }
+        }
+
+        if (es.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static Episode last(List<Episode> es) {
+        return (es == null) ? null : es.get(es.size() - 1);
+    }
+}
@@ -0,0 +1,154 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+/**
+ * A hash set of primitive longs which counts how often each value has been
+ * added, so that a value added twice is only gone after it has been removed
+ * twice. Uses open addressing with linear probing and does not box its
+ * values.
+ *
+ * This class is not thread safe, callers have to synchronize.
+ */
+class LongMultiset {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /* A slot is free iff its count is 0. */
+
+    private long[] values;
+    private int[] counts;
+    private int size = 0;
+
+    public LongMultiset() {
+        clear();
+    }
+
+    /**
+     * Adds one occurrence of value.
+     */
+    public void add(long value) {
+        int i = slot(value);
+        if (counts[i] > 0) {
+            counts[i]++;
+            return;
+        }
+
+        values[i] = value;
+        counts[i] = 1;
+        size++;
+
+        /* Keep the load factor at or below 1/2 so probe sequences stay short. */
+
+        if (size * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+    }
+
+    /**
+     * Removes one occurrence of value.
+     *
+     * @return true if value was contained.
+     */
+    public boolean remove(long value) {
+        int i = slot(value);
+        if (counts[i] == 0) {
+            return false;
+        }
+
+        if (--counts[i] > 0) {
+            return true;
+        }
+
+        size--;
+
+        /* Shift back following entries of the same probe sequence so that
+         * lookups never stop early at the slot that just became free. */
+
+        int mask = values.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (counts[j] == 0) {
+                break;
+            }
+
+            int home = hash(values[j]) & mask;
+            boolean movable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                values[i] = values[j];
+                counts[i] = counts[j];
+                counts[j] = 0;
+                i = j;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean contains(long value) {
+        return counts[slot(value)] > 0;
+    }
+
+    /**
+     * @return The number of distinct values.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        values = new long[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * @return The slot holding value or, if it is not contained, the free slot
+     *         where it would be inserted.
+     */
+    private int slot(long value) {
+        int mask = values.length - 1;
+        int i = hash(value) & mask;
+        while (counts[i] > 0 && values[i] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldValues = values;
+        int[] oldCounts = counts;
+
+        values = new long[capacity];
+        counts = new int[capacity];
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldCounts[i] > 0) {
+                int j = slot(oldValues[i]);
+                values[j] = oldValues[i];
+                counts[j] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,106 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import at.ac.tuwien.detlef.domain.Episode;
+
+/**
+ * Writes play positions behind the player's back. Positions of the same
+ * episode enqueued within one delay are coalesced, and everything pending is
+ * written by a single {@link EpisodeDAO#updatePlayPositions(java.util.Collection)}
+ * call once the delay has passed, so that scrubbing through an episode or
+ * pausing repeatedly doesn't cause a write and a play action each time.
+ */
+public class PlayPositionWriter {
+
+    private final EpisodeDAO dao;
+    private final long delayMs;
+
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor();
+
+    /** The episodes with pending positions by id, guarded by itself. */
+    private final LinkedHashMap<Long, Episode> pending = new LinkedHashMap<Long, Episode>();
+
+    /** Whether a flush is scheduled, guarded by pending. */
+    private boolean scheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param dao The DAO to write the positions with.
+     * @param delayMs The time between the first enqueued position and the
+     *            write.
+     */
+    public PlayPositionWriter(EpisodeDAO dao, long delayMs) {
+        this.dao = dao;
+        this.delayMs = delayMs;
+    }
+
+    /**
+     * Schedules the current play position of the episode to be written. The
+     * position is read when it is written, so later changes to it are picked
+     * up as well.
+     */
+    public void enqueue(Episode episode) {
+        synchronized (pending) {
+            pending.put(episode.getId(), episode);
+            if (!scheduled) {
+                scheduled = true;
+                executor.schedule(flushTask, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes all pending positions on the calling thread.
+     */
+    public void flush() {
+        List<Episode> episodes;
+        synchronized (pending) {
+            episodes = new ArrayList<Episode>(pending.values());
+            pending.clear();
+            scheduled = false;
+        }
+
+        if (!episodes.isEmpty()) {
+            dao.updatePlayPositions(episodes);
+        }
+    }
+
+    /**
+     * Writes all pending positions and stops the writer. No more positions
+     * may be enqueued afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        flush();
+    }
+}
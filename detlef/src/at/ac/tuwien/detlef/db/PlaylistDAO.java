@@ -18,6 +18,7 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import at.ac.tuwien.detlef.domain.Episode;
 
@@ -78,6 +79,26 @@ public interface PlaylistDAO {
      */
     ArrayList<Episode> getNonCachedEpisodes();
 
+    /**
+     * Returns the current snapshot of the playlist. The snapshot is immutable
+     * and shared by all readers; every change replaces it before the
+     * {@link OnPlaylistChangeListener}s are notified, so listeners see the
+     * playlist as it is after the change. This never touches the database.
+     *
+     * @return The episodes in playlist order.
+     */
+    List<Episode> getEpisodes();
+
+    /**
+     * Checks whether an episode is in the playlist. This is answered from
+     * memory and never touches the database, so it may be called for every
+     * row of a list while scrolling.
+     *
+     * @param episodeId The id of the episode.
+     * @return True if the episode is in the playlist at least once.
+     */
+    boolean isInPlaylist(long episodeId);
+
     /**
      * Removes an episode from playlist.
      *
@@ -18,29 +18,89 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Episode;
 
+/**
+ * Keeps the playlist in memory and mirrors every change to the database.
+ *
+ * The order is persisted through sparse ranks in the position column: an item
+ * which is added or moved gets a rank between those of its new neighbours,
+ * so that only its own row is written. Only when two neighbours' ranks are
+ * adjacent are all ranks spread out again. Each change is written in a
+ * transaction and applied to memory only once that has been committed.
+ *
+ * The episodes of the playlist are published as an immutable snapshot, see
+ * {@link #getEpisodes()}, which is replaced before the listeners are notified
+ * of a change. Listeners are notified while still synchronized on the DAO, so
+ * that they observe concurrent changes in the order they were made and each
+ * reported position is valid in the current snapshot. Listeners must
+ * therefore return quickly and not wait for other threads.
+ */
 public final class PlaylistDAOImpl
     implements PlaylistDAO, EpisodeDAO.OnEpisodeChangeListener {
 
     private static final String TAG = PlaylistDAOImpl.class.getName();
 
+    /** The distance between the ranks of neighbouring items after spreading. */
+    static final long RANK_GAP = 1L << 16;
+
+    private static final String UPDATE_RANK =
+        String.format("update %s set %s = ? where %s = ?", DatabaseHelper.TABLE_PLAYLIST,
+                      DatabaseHelper.COLUMN_PLAYLIST_POSITION, DatabaseHelper.COLUMN_PLAYLIST_ID);
+
+    private static final String DELETE_ITEM =
+        String.format("delete from %s where %s = ?", DatabaseHelper.TABLE_PLAYLIST,
+                      DatabaseHelper.COLUMN_PLAYLIST_ID);
+
     private final DatabaseHelper dbHelper;
     private final List<PlaylistDAO.OnPlaylistChangeListener> listeners =
         new ArrayList<PlaylistDAO.OnPlaylistChangeListener>();
     private final EpisodeDAO edao;
 
+    /**
+     * The playlist in order. Changes replace the list rather than modify it,
+     * and are serialized by synchronizing on the DAO.
+     */
+    private volatile List<PlaylistItem> items = new ArrayList<PlaylistItem>();
+
+    /** The episodes of items, see {@link #getEpisodes()}. */
+    private volatile List<Episode> snapshot = Collections.emptyList();
+
+    /** The ids of all episodes in the playlist, guarded by itself. */
+    private final LongMultiset members = new LongMultiset();
+
+    /**
+     * A row of the playlist table.
+     */
+    private static final class PlaylistItem {
+        private final long id;
+        private final Episode episode;
+        private final long episodeId;
+        private final long rank;
+
+        private PlaylistItem(long id, Episode episode, long episodeId, long rank) {
+            this.id = id;
+            this.episode = episode;
+            this.episodeId = episodeId;
+            this.rank = rank;
+        }
+
+        private PlaylistItem withRank(long newRank) {
+            return new PlaylistItem(id, episode, episodeId, newRank);
+        }
+    }
+
     public PlaylistDAOImpl(Context context) {
         dbHelper = Singletons.i().getDatabaseHelper();
         edao = Singletons.i().getEpisodeDAO();
@@ -48,7 +108,65 @@ public final class PlaylistDAOImpl
 
         /* Take care of any pending database upgrades. */
 
-        dbHelper.getWritableDatabase();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        load(db);
+    }
+
+    /**
+     * Reads the playlist and fills the membership set from the database.
+     *
+     * @param db The db with which to perform the query.
+     */
+    private synchronized void load(SQLiteDatabase db) {
+        Cursor c = db.query(DatabaseHelper.TABLE_PLAYLIST, new String[] {
+                                DatabaseHelper.COLUMN_PLAYLIST_ID,
+                                DatabaseHelper.COLUMN_PLAYLIST_EPISODE,
+                                DatabaseHelper.COLUMN_PLAYLIST_POSITION
+                            }, null, null, null, null,
+                            DatabaseHelper.COLUMN_PLAYLIST_POSITION + ", "
+                            + DatabaseHelper.COLUMN_PLAYLIST_ID);
+
+        List<PlaylistItem> loaded = new ArrayList<PlaylistItem>(c.getCount());
+        while (c.moveToNext()) {
+            loaded.add(new PlaylistItem(c.getLong(0), edao.getEpisode(c.getLong(1)),
+                                        c.getLong(1), c.getLong(2)));
+        }
+        c.close();
+
+        publish(loaded);
+        synchronized (members) {
+            members.clear();
+            for (PlaylistItem item : loaded) {
+                members.add(item.episodeId);
+            }
+        }
+    }
+
+    /**
+     * Replaces the playlist in memory along with its snapshot. Must be
+     * called while synchronized on the DAO.
+     */
+    private void publish(List<PlaylistItem> changed) {
+        List<Episode> episodes = new ArrayList<Episode>(changed.size());
+        for (PlaylistItem item : changed) {
+            episodes.add(item.episode);
+        }
+
+        items = changed;
+        snapshot = Collections.unmodifiableList(episodes);
+    }
+
+    @Override
+    public List<Episode> getEpisodes() {
+        return snapshot;
+    }
+
+    @Override
+    public boolean isInPlaylist(long episodeId) {
+        synchronized (members) {
+            return members.contains(episodeId);
+        }
     }
 
     @Override
@@ -98,203 +216,268 @@ public final class PlaylistDAOImpl
         }
     }
 
-    /**
-     * Gets the next free ordering item.
-     *
-     * @param db The db with which to perform the query.
-     * @return The next free ordering item; at least 0.
-     */
-    private int getNextFreePosition(SQLiteDatabase db) {
-        Cursor cursor = db.rawQuery("SELECT IFNULL(MAX("
-                                    + DatabaseHelper.COLUMN_PLAYLIST_POSITION + "), (-1)) FROM "
-                                    + DatabaseHelper.TABLE_PLAYLIST, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getInt(0) + 1;
-        } else {
-            return 0;
-        }
-    }
-
     @Override
     public boolean addEpisodeToEndOfPlaylist(Episode episode) {
-        SQLiteDatabase db = null;
-        try {
-            db = dbHelper.getWritableDatabase();
-            int nextPosition = getNextFreePosition(db);
-            ContentValues values = new ContentValues();
-            values.put(DatabaseHelper.COLUMN_PLAYLIST_EPISODE, episode.getId());
-            values.put(DatabaseHelper.COLUMN_PLAYLIST_POSITION, nextPosition);
-
-            long id = db.insert(DatabaseHelper.TABLE_PLAYLIST, null, values);
-            if (id == -1) {
-                throw new SQLiteException("Failed to insert playlist item");
+        synchronized (this) {
+            int position = items.size();
+            if (!insert(position, episode)) {
+                return false;
             }
 
-            notifyListenersAdded(nextPosition, episode);
-            return true;
-        } catch (Exception ex) {
-            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
-            return false;
+            notifyListenersAdded(position, episode);
         }
+        return true;
     }
 
     @Override
     public boolean addEpisodeToBeginningOfPlaylist(Episode episode) {
+        synchronized (this) {
+            if (!insert(0, episode)) {
+                return false;
+            }
+
+            notifyListenersAdded(0, episode);
+        }
+        return true;
+    }
+
+    /**
+     * Inserts the episode at the given position. Must be called while
+     * synchronized on the DAO.
+     *
+     * @return True if successful, false if not.
+     */
+    private boolean insert(int position, Episode episode) {
+        List<PlaylistItem> changed = new ArrayList<PlaylistItem>(items);
+        changed.add(position, new PlaylistItem(-1, episode, episode.getId(), 0));
+        List<Integer> reranked = assignRank(changed, position);
+
         SQLiteDatabase db = null;
         try {
             db = dbHelper.getWritableDatabase();
-            shiftPositionsFromBy(0, 1, db);
+            db.beginTransaction();
 
+            PlaylistItem item = changed.get(position);
             ContentValues values = new ContentValues();
-            values.put(DatabaseHelper.COLUMN_PLAYLIST_EPISODE, episode.getId());
-            values.put(DatabaseHelper.COLUMN_PLAYLIST_POSITION, 0);
+            values.put(DatabaseHelper.COLUMN_PLAYLIST_EPISODE, item.episodeId);
+            values.put(DatabaseHelper.COLUMN_PLAYLIST_POSITION, item.rank);
 
             long id = db.insert(DatabaseHelper.TABLE_PLAYLIST, null, values);
             if (id == -1) {
                 throw new SQLiteException("Failed to insert playlist item");
             }
+            changed.set(position, new PlaylistItem(id, item.episode, item.episodeId, item.rank));
 
-            notifyListenersAdded(0, episode);
-            return true;
+            reranked.remove(Integer.valueOf(position));
+            writeRanks(db, changed, reranked);
+
+            db.setTransactionSuccessful();
         } catch (Exception ex) {
             Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
             return false;
+        } finally {
+            if (db != null && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
+
+        publish(changed);
+        synchronized (members) {
+            members.add(episode.getId());
         }
+        return true;
     }
 
     /**
-     * Shifts the ordering by the specified amount, starting from the specified
-     * position.
+     * Gives the item at the given position a rank between those of its
+     * neighbours. If there is no room between them, the ranks of all items
+     * are spread out.
      *
-     * @param from All items >= from will be shifted.
-     * @param by The amount by which the items will be shifted. Can be negative
-     *            or positive.
-     * @param db The db with which to perform the shift.
+     * @param list The playlist, which is modified.
+     * @param position The position of the item to rank.
+     * @return The positions of all items whose rank has changed.
      */
-    private void shiftPositionsFromBy(int from, int by, SQLiteDatabase db) {
-        String[] selectionArgs = {
-            String.valueOf(from)
-        };
-        String operator;
-        if (by >= 0) {
-            operator = "+";
+    private static List<Integer> assignRank(List<PlaylistItem> list, int position) {
+        PlaylistItem item = list.get(position);
+        PlaylistItem prev = (position > 0) ? list.get(position - 1) : null;
+        PlaylistItem next = (position < list.size() - 1) ? list.get(position + 1) : null;
+
+        long rank;
+        if (prev == null && next == null) {
+            rank = 0;
+        } else if (prev == null) {
+            rank = next.rank - RANK_GAP;
+        } else if (next == null) {
+            rank = prev.rank + RANK_GAP;
+        } else if (next.rank - prev.rank > 1) {
+            rank = prev.rank + (next.rank - prev.rank) / 2;
         } else {
-            operator = "-";
-            by *= (-1);
+            return spreadRanks(list);
         }
-        db.execSQL("UPDATE " + DatabaseHelper.TABLE_PLAYLIST + " SET "
-                   + DatabaseHelper.COLUMN_PLAYLIST_POSITION + " = "
-                   + DatabaseHelper.COLUMN_PLAYLIST_POSITION + operator + by + " WHERE "
-                   + DatabaseHelper.COLUMN_PLAYLIST_POSITION + " >= ?", selectionArgs);
+
+        list.set(position, item.withRank(rank));
+
+        List<Integer> ret = new ArrayList<Integer>(1);
+        ret.add(position);
+        return ret;
     }
 
-    @Override
-    public ArrayList<Episode> getNonCachedEpisodes() {
-        SQLiteDatabase db = null;
-        ArrayList<Episode> allEpisodes = new ArrayList<Episode>();
-        db = dbHelper.getReadableDatabase();
-        Cursor c = db.rawQuery(
-                       "SELECT "
-                       + DatabaseHelper.COLUMN_PLAYLIST_EPISODE + " FROM "
-                       + DatabaseHelper.TABLE_PLAYLIST + " ORDER BY "
-                       + DatabaseHelper.COLUMN_PLAYLIST_POSITION + " ASC", null);
-        if (c.moveToFirst()) {
-            do {
-                Episode e = edao.getEpisode(c.getLong(0));
-                allEpisodes.add(e);
-            } while (c.moveToNext());
+    /**
+     * Spaces the ranks of all items {@link #RANK_GAP} apart.
+     *
+     * @param list The playlist, which is modified.
+     * @return The positions of all items whose rank has changed.
+     */
+    private static List<Integer> spreadRanks(List<PlaylistItem> list) {
+        List<Integer> ret = new ArrayList<Integer>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            PlaylistItem item = list.get(i);
+            long rank = i * RANK_GAP;
+            if (item.rank != rank) {
+                list.set(i, item.withRank(rank));
+                ret.add(i);
+            }
         }
-        c.close();
-        return allEpisodes;
+        return ret;
     }
 
     /**
-     * Removes an item from the playlist and shifts the ordering accordingly.
-     *
-     * @param position The position of the episode to remove.
-     * @param db The db with which to perform the operations.
-     * @return The number of affected rows.
+     * Writes the ranks of the items at the given positions. Must be called
+     * within a transaction.
      */
-    private int removePosition(int position, SQLiteDatabase db) {
-        int ret = 0;
-        String selection = DatabaseHelper.COLUMN_PLAYLIST_POSITION + " = ?";
-        String[] selectionArgs = {
-            String.valueOf(position)
-        };
+    private static void writeRanks(SQLiteDatabase db, List<PlaylistItem> list,
+                                   List<Integer> positions) {
+        if (positions.isEmpty()) {
+            return;
+        }
 
-        ret = db.delete(DatabaseHelper.TABLE_PLAYLIST, selection, selectionArgs);
+        SQLiteStatement stmt = db.compileStatement(UPDATE_RANK);
+        try {
+            for (int position : positions) {
+                PlaylistItem item = list.get(position);
+                stmt.bindLong(1, item.rank);
+                stmt.bindLong(2, item.id);
+                if (stmt.executeUpdateDelete() != 1) {
+                    throw new SQLiteException("Failed to update playlist item " + item.id);
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+    }
 
-        shiftPositionsFromBy(position, -1, db);
-        notifyListenersRemoved(position);
-        return ret;
+    @Override
+    public ArrayList<Episode> getNonCachedEpisodes() {
+        return new ArrayList<Episode>(snapshot);
     }
 
     @Override
     public boolean removeEpisode(int position) {
-        int ret = 0;
+        synchronized (this) {
+            if (position < 0 || position >= items.size()) {
+                return false;
+            }
+
+            List<Integer> positions = new ArrayList<Integer>(1);
+            positions.add(position);
+            if (!removePositions(positions)) {
+                return false;
+            }
+
+            notifyListenersRemoved(position);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the items at the given positions in one transaction. Must be
+     * called while synchronized on the DAO.
+     *
+     * @param positions The positions to remove in descending order.
+     * @return True if successful, false if not.
+     */
+    private boolean removePositions(List<Integer> positions) {
+        List<PlaylistItem> changed = new ArrayList<PlaylistItem>(items);
+        List<PlaylistItem> removed = new ArrayList<PlaylistItem>(positions.size());
+
         SQLiteDatabase db = null;
         try {
             db = dbHelper.getWritableDatabase();
-            ret = removePosition(position, db);
-            return (ret == 1);
+            db.beginTransaction();
+
+            SQLiteStatement stmt = db.compileStatement(DELETE_ITEM);
+            try {
+                for (int position : positions) {
+                    PlaylistItem item = changed.remove(position);
+                    stmt.bindLong(1, item.id);
+                    stmt.executeUpdateDelete();
+                    removed.add(item);
+                }
+            } finally {
+                stmt.close();
+            }
+
+            db.setTransactionSuccessful();
         } catch (Exception ex) {
-            Log.e(getClass().getName(),
-                  ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
             return false;
+        } finally {
+            if (db != null && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
+
+        publish(changed);
+        synchronized (members) {
+            for (PlaylistItem item : removed) {
+                members.remove(item.episodeId);
+            }
         }
+        return true;
     }
 
     @Override
     public boolean moveEpisode(int firstPosition, int secondPosition) {
-        SQLiteDatabase db = null;
-        int ret = 0;
+        synchronized (this) {
+            if (firstPosition < 0 || firstPosition >= items.size()
+                    || secondPosition < 0 || secondPosition >= items.size()) {
+                return false;
+            }
 
-        db = dbHelper.getWritableDatabase();
-        long id = getIdAt(firstPosition, db);
+            List<PlaylistItem> changed = new ArrayList<PlaylistItem>(items);
+            changed.add(secondPosition, changed.remove(firstPosition));
+            List<Integer> reranked = assignRank(changed, secondPosition);
+
+            SQLiteDatabase db = null;
+            try {
+                db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
 
-        shiftPositionsFromBy(firstPosition, -1, db);
-        shiftPositionsFromBy(secondPosition, 1, db);
+                writeRanks(db, changed, reranked);
 
-        ContentValues values = new ContentValues();
-        values.put(DatabaseHelper.COLUMN_PLAYLIST_POSITION, secondPosition);
+                db.setTransactionSuccessful();
+            } catch (Exception ex) {
+                Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+                return false;
+            } finally {
+                if (db != null && db.isOpen()) {
+                    db.endTransaction();
+                }
+            }
 
-        ret = db.update(DatabaseHelper.TABLE_PLAYLIST, values,
-                        DatabaseHelper.COLUMN_PLAYLIST_ID
-                        + " = ?", new String[] {
-                            String.valueOf(id)
-                        });
-        if (ret == 1) {
+            publish(changed);
             notifyListenersChanged(firstPosition, secondPosition);
         }
-        return ret == 1;
+        return true;
     }
 
-    /**
-     * Gets the playlist database id at the specified playlist position.
-     *
-     * @param position The position for which to get the id.
-     * @param db The DB with which to perform the query.
-     * @return The database ID.
-     */
-    private long getIdAt(int position, SQLiteDatabase db) {
-        String[] selectionArgs = {
-            String.valueOf(position)
-        };
-        Cursor c = db.rawQuery(
-                       "SELECT "
-                       + DatabaseHelper.COLUMN_PLAYLIST_ID + " FROM "
-                       + DatabaseHelper.TABLE_PLAYLIST + " WHERE "
-                       + DatabaseHelper.COLUMN_PLAYLIST_POSITION + " = ?", selectionArgs);
-        long ret = -1;
-        if (c.moveToFirst()) {
-            ret = c.getLong(0);
-        }
-        c.close();
-        return ret;
+    @Override
+    public void onEpisodeChanged(Episode episode) {
+        // do nothing
     }
 
     @Override
-    public void onEpisodeChanged(Episode episode) {
+    public void onEpisodesChanged(List<Episode> episodes) {
         // do nothing
     }
 
@@ -304,101 +487,101 @@ public final class PlaylistDAOImpl
     }
 
     @Override
-    public void onEpisodeDeleted(Episode episode) {
-        SQLiteDatabase db = null;
-        try {
-            db = dbHelper.getWritableDatabase();
-            Set<Integer> positions = getPositionsOfEpisode(episode, db);
-            for (int position : positions) {
-                removePosition(position, db);
-            }
-        } catch (Exception ex) {
-            Log.e(getClass().getName(),
-                  ex.getMessage() != null ? ex.getMessage() : ex.toString());
-        }
+    public void onEpisodesAdded(List<Episode> episodes) {
+        // not of interest
     }
 
-    /**
-     * Gets all the position of a specified episode in the playlist.
-     *
-     * @param episode The episode for which to search.
-     * @param db The database with which to perform the search.
-     * @return All the position of the specified episode in the playlist.
-     */
-    private Set<Integer> getPositionsOfEpisode(Episode episode, SQLiteDatabase db) {
-        HashSet<Integer> ret = new HashSet<Integer>();
-        String selection = DatabaseHelper.COLUMN_PLAYLIST_EPISODE + " = ?";
-        String[] selectionArgs = {
-            String.valueOf(episode.getId())
-        };
-        Cursor c = db.query(DatabaseHelper.TABLE_PLAYLIST, new String[] {
-                                DatabaseHelper.COLUMN_PLAYLIST_POSITION
-                            }, selection, selectionArgs, null, null, null);
-        if (c.moveToFirst()) {
-            do {
-                ret.add(c.getInt(0));
-            } while (c.moveToNext());
-        }
-        return ret;
+    @Override
+    public void onEpisodeDeleted(Episode episode) {
+        removeEpisodesById(episode.getId());
     }
 
     /**
-     * @return Returns true if there are no gaps in the playlist ordering in the
-     *         DB. This is not of general interest and exists for testing
-     *         purposes only.
+     * @return Returns true if the ordering in the DB is consistent: no two
+     *         items share a rank, and the DB order is the order of the
+     *         playlist in memory. This is not of general interest and exists
+     *         for testing purposes only.
      */
     public boolean checkNoGaps() {
         SQLiteDatabase db = null;
         db = dbHelper.getWritableDatabase();
-        List<Integer> positions = getAllPositions(db);
-        for (int i = 0; i < (positions.size() - 1); i++) {
-            if (positions.get(i + 1) != (positions.get(i) + 1)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /**
-     * @param db The DB with which to perform the query.
-     * @return A list of all occupied positions in the DB, including doubles and
-     *         gaps.
-     */
-    private List<Integer> getAllPositions(SQLiteDatabase db) {
-        List<Integer> ret = new ArrayList<Integer>();
         Cursor c = db.query(DatabaseHelper.TABLE_PLAYLIST, new String[] {
+                                DatabaseHelper.COLUMN_PLAYLIST_ID,
                                 DatabaseHelper.COLUMN_PLAYLIST_POSITION
                             }, null, null, null, null, DatabaseHelper.COLUMN_PLAYLIST_POSITION);
-        if (c.moveToFirst()) {
-            do {
-                ret.add(c.getInt(0));
-            } while (c.moveToNext());
+        try {
+            List<PlaylistItem> current = items;
+            if (c.getCount() != current.size()) {
+                return false;
+            }
+
+            long lastRank = Long.MIN_VALUE;
+            for (int i = 0; c.moveToNext(); i++) {
+                if (c.getLong(0) != current.get(i).id
+                        || (i > 0 && c.getLong(1) <= lastRank)) {
+                    return false;
+                }
+                lastRank = c.getLong(1);
+            }
+            return true;
+        } finally {
+            c.close();
         }
-        return ret;
     }
 
     @Override
     public void clearPlaylist() {
-        List<Episode> currentEpisodes = getNonCachedEpisodes();
-        for (int i = 0; i < currentEpisodes.size(); i++) {
-            removeEpisode(0);
+        synchronized (this) {
+            int count = items.size();
+
+            SQLiteDatabase db = null;
+            try {
+                db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
+
+                db.delete(DatabaseHelper.TABLE_PLAYLIST, null, null);
+
+                db.setTransactionSuccessful();
+            } catch (Exception ex) {
+                Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+                return;
+            } finally {
+                if (db != null && db.isOpen()) {
+                    db.endTransaction();
+                }
+            }
+
+            publish(new ArrayList<PlaylistItem>());
+            synchronized (members) {
+                members.clear();
+            }
+
+            for (int position = count - 1; position >= 0; position--) {
+                notifyListenersRemoved(position);
+            }
         }
-        SQLiteDatabase db = null;
-        db = dbHelper.getReadableDatabase();
-        db.execSQL("DELETE FROM " + DatabaseHelper.TABLE_PLAYLIST);
     }
 
     @Override
     public void removeEpisodesById(long id) {
-        List<Episode> currentEpisodes = getNonCachedEpisodes();
-        List<Integer> positionsToRemove = new ArrayList<Integer>();
-        for (int i = 0; i < currentEpisodes.size(); i++) {
-            if (currentEpisodes.get(i).getId() == id) {
-                positionsToRemove.add(i);
+        synchronized (this) {
+            List<Integer> positions = new ArrayList<Integer>();
+            List<PlaylistItem> current = items;
+            for (int i = current.size() - 1; i >= 0; i--) {
+                if (current.get(i).episodeId == id) {
+                    positions.add(i);
+                }
+            }
+
+            if (positions.isEmpty() || !removePositions(positions)) {
+                return;
+            }
+
+            /* Descending, so that each position is valid when it is reported. */
+
+            for (int position : positions) {
+                notifyListenersRemoved(position);
             }
-        }
-        for (int i = 0; i < positionsToRemove.size(); i++) {
-            removeEpisode(positionsToRemove.get(i) - i);
         }
     }
 }
@@ -38,7 +38,9 @@ public interface PodcastDAO {
     }
 
     /**
-     * Inserts a podcast into the Database.
+     * Inserts a podcast into the Database. If a podcast with the same url has
+     * been deleted locally, but the delete hasn't been pushed yet, its row is
+     * reused and the podcast is neither locally added nor deleted afterwards.
      *
      * @param podcast The podcast object
      * @return the inserted Podcast, null if an error occurs
@@ -87,7 +89,8 @@ public interface PodcastDAO {
      * Updates the database entry of the given podcast.
      *
      * @param podcast the podcast which should be updated
-     * @return the number of updated rows
+     * @return the number of updated rows, 0 if none of the fields of the
+     *         podcast has changed since it was last stored
      */
     int update(Podcast podcast);
 
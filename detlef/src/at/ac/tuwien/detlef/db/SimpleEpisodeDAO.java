@@ -20,8 +20,14 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import android.content.ContentValues;
@@ -29,6 +35,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Episode;
@@ -73,6 +80,7 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
             }
 
             episode.setId(id);
+            episode.markClean();
             notifyListenersAdded(episode);
 
         } catch (Exception ex) {
@@ -83,45 +91,417 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
         return episode;
     }
 
-    private ContentValues toContentValues(Episode episode) {
+    private static final String INSERT_EPISODE = String.format("insert into %s ("
+            + "%s, %s, %s, %s, %s, %s, %s, %s, %s, %s, %s, %s, %s, %s) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);",
+            DatabaseHelper.TABLE_EPISODE,
+            DatabaseHelper.COLUMN_EPISODE_AUTHOR, DatabaseHelper.COLUMN_EPISODE_DESCRIPTION,
+            DatabaseHelper.COLUMN_EPISODE_FILESIZE, DatabaseHelper.COLUMN_EPISODE_GUID,
+            DatabaseHelper.COLUMN_EPISODE_LINK, DatabaseHelper.COLUMN_EPISODE_MIMETYPE,
+            DatabaseHelper.COLUMN_EPISODE_PODCAST, DatabaseHelper.COLUMN_EPISODE_RELEASED,
+            DatabaseHelper.COLUMN_EPISODE_TITLE, DatabaseHelper.COLUMN_EPISODE_URL,
+            DatabaseHelper.COLUMN_EPISODE_FILEPATH, DatabaseHelper.COLUMN_EPISODE_STATE,
+            DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION, DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE);
+
+    private static final String UPDATE_PLAYPOSITION = String.format(
+                "update %s set %s = ? where %s = ?;", DatabaseHelper.TABLE_EPISODE,
+                DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION, DatabaseHelper.COLUMN_EPISODE_ID);
+
+    /**
+     * @see EpisodeDAO#insertEpisodes(Collection)
+     */
+    @Override
+    public List<Episode> insertEpisodes(Collection<Episode> episodes) {
+        List<Episode> inserted = new ArrayList<Episode>(episodes);
+        long[] ids;
+
+        SQLiteDatabase db = null;
+        try {
+            db = dbHelper.getWritableDatabase();
+
+            db.beginTransaction();
+
+            ids = insertAll(db, inserted);
+
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            return null;
+        } finally {
+            if (db != null && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
+
+        /* Only hand out ids once the transaction has been committed. */
+
+        for (int i = 0; i < inserted.size(); i++) {
+            inserted.get(i).setId(ids[i]);
+            inserted.get(i).markClean();
+        }
+
+        notifyListenersAdded(inserted);
+
+        return inserted;
+    }
+
+    /**
+     * Inserts all given episodes using a single compiled statement. Must be
+     * called within a transaction; the episode ids are not set.
+     *
+     * @return The row ids of the inserted episodes, in list order.
+     */
+    private long[] insertAll(SQLiteDatabase db, List<Episode> episodes) {
+        long[] ids = new long[episodes.size()];
+        if (episodes.isEmpty()) {
+            return ids;
+        }
+
+        SQLiteStatement stmt = db.compileStatement(INSERT_EPISODE);
+        try {
+            for (int i = 0; i < episodes.size(); i++) {
+                bindEpisode(stmt, episodes.get(i));
+
+                ids[i] = stmt.executeInsert();
+                if (ids[i] == -1) {
+                    throw new SQLiteException("Episode insert failed");
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+
+        return ids;
+    }
+
+    /**
+     * @see EpisodeDAO#upsertEpisodes(Podcast, Collection)
+     */
+    @Override
+    public List<Episode> upsertEpisodes(Podcast podcast, Collection<Episode> episodes) {
+        List<Episode> inserted = new ArrayList<Episode>();
+        List<Episode> changed = new ArrayList<Episode>();
+        if (!upsertEpisodes(podcast, episodes, inserted, changed)) {
+            return null;
+        }
+
+        notifyListenersAdded(inserted);
+        notifyListenersChanged(changed);
+
+        List<Episode> stored = new ArrayList<Episode>(inserted);
+        stored.addAll(changed);
+        return stored;
+    }
+
+    /**
+     * Does the work of {@link #upsertEpisodes(Podcast, Collection)} without
+     * notifying the listeners, so that the caching layer can notify them
+     * once it has merged the stored episodes into the instances it hands out.
+     *
+     * @param inserted Receives the inserted episodes.
+     * @param changed Receives the changed episodes, as loaded from the
+     *            database.
+     * @return false if an error occurs.
+     */
+    boolean upsertEpisodes(Podcast podcast, Collection<Episode> episodes,
+                           List<Episode> inserted, List<Episode> changed) {
+        /* Index the stored episodes of this podcast the same way the unique
+         * indices in the database do. */
+
+        Map<String, Episode> byGuid = new HashMap<String, Episode>();
+        Map<String, Episode> byUrl = new HashMap<String, Episode>();
+        for (Episode e : getEpisodes(podcast)) {
+            indexEpisode(e, byGuid, byUrl);
+        }
+
+        List<Episode> toInsert = new ArrayList<Episode>();
+        Set<Episode> pending = new HashSet<Episode>();
+        Map<Episode, ContentValues> toUpdate = new LinkedHashMap<Episode, ContentValues>();
+
+        for (Episode episode : episodes) {
+            Episode existing = byGuid.get(episode.getGuid());
+            if (existing == null) {
+                existing = byUrl.get(episode.getUrl());
+            }
+
+            if (existing == null) {
+                toInsert.add(episode);
+                pending.add(episode);
+                indexEpisode(episode, byGuid, byUrl);
+                continue;
+            }
+
+            if (collides(existing, episode.getGuid(), byGuid)
+                    || collides(existing, episode.getUrl(), byUrl)) {
+                /* The feed moved the guid or url of this episode over to another
+                 * stored one. Writing it would violate the unique indices and roll
+                 * back the whole refresh, so this single update is skipped. */
+
+                Log.w(TAG, String.format("Skipping update of episode %d (%s), its guid or"
+                                         + " url is taken by another episode",
+                                         existing.getId(), episode.getUrl()));
+                continue;
+            }
+
+            ContentValues values = mergeFeedColumns(existing, episode);
+            indexEpisode(existing, byGuid, byUrl);
+            if (values.size() == 0 || pending.contains(existing)) {
+                /* Unchanged, or a duplicate within the feed which is merged into
+                 * the pending insert. */
+                continue;
+            }
+
+            if (toUpdate.containsKey(existing)) {
+                toUpdate.get(existing).putAll(values);
+            } else {
+                toUpdate.put(existing, values);
+            }
+        }
+
+        if (toInsert.isEmpty() && toUpdate.isEmpty()) {
+            return true;
+        }
+
+        long[] ids;
+
+        SQLiteDatabase db = null;
+        try {
+            db = dbHelper.getWritableDatabase();
+
+            db.beginTransaction();
+
+            ids = insertAll(db, toInsert);
+
+            String selection = DatabaseHelper.COLUMN_EPISODE_ID + " = ?";
+            for (Map.Entry<Episode, ContentValues> entry : toUpdate.entrySet()) {
+                String[] selectionArgs = {
+                    String.valueOf(entry.getKey().getId())
+                };
+
+                db.update(DatabaseHelper.TABLE_EPISODE, entry.getValue(), selection,
+                          selectionArgs);
+            }
+
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            return false;
+        } finally {
+            if (db != null && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
+
+        for (int i = 0; i < toInsert.size(); i++) {
+            toInsert.get(i).setId(ids[i]);
+            toInsert.get(i).markClean();
+        }
+
+        inserted.addAll(toInsert);
+        changed.addAll(toUpdate.keySet());
+        return true;
+    }
+
+    /**
+     * @return true if key is already indexed for an episode other than
+     *         episode.
+     */
+    private static boolean collides(Episode episode, String key, Map<String, Episode> index) {
+        if (key == null) {
+            return false;
+        }
+
+        Episode other = index.get(key);
+        return other != null && other != episode;
+    }
+
+    private static void indexEpisode(Episode e, Map<String, Episode> byGuid,
+                                     Map<String, Episode> byUrl) {
+        if (e.getGuid() != null && !byGuid.containsKey(e.getGuid())) {
+            byGuid.put(e.getGuid(), e);
+        }
+        if (e.getUrl() != null && !byUrl.containsKey(e.getUrl())) {
+            byUrl.put(e.getUrl(), e);
+        }
+    }
+
+    /** The fields of an episode which are written by mergeFeedColumns. */
+    static final Set<Episode.Field> FEED_FIELDS = Collections.unmodifiableSet(EnumSet.of(
+                Episode.Field.GUID, Episode.Field.TITLE, Episode.Field.DESCRIPTION,
+                Episode.Field.RELEASED, Episode.Field.LINK, Episode.Field.AUTHOR,
+                Episode.Field.URL, Episode.Field.MIMETYPE, Episode.Field.FILE_SIZE));
+
+    /**
+     * Copies all attributes which originate from the feed (as opposed to local
+     * state such as the play position or the file path) from source to target.
+     * The caller is responsible for storing the returned values; the feed
+     * fields of target are marked clean.
+     *
+     * @param target The episode to update.
+     * @param source The episode to take the feed attributes from.
+     * @return The columns which differed between both episodes, empty if
+     *         target was already up to date.
+     */
+    static ContentValues mergeFeedColumns(Episode target, Episode source) {
         ContentValues values = new ContentValues();
-        values.put(DatabaseHelper.COLUMN_EPISODE_AUTHOR,
-                   episode.getAuthor());
-        values.put(DatabaseHelper.COLUMN_EPISODE_DESCRIPTION,
-                   episode.getDescription());
-        values.put(DatabaseHelper.COLUMN_EPISODE_FILESIZE,
-                   episode.getFileSize());
-        values.put(DatabaseHelper.COLUMN_EPISODE_GUID, episode.getGuid());
-        values.put(DatabaseHelper.COLUMN_EPISODE_LINK, episode.getLink());
-        values.put(DatabaseHelper.COLUMN_EPISODE_MIMETYPE,
-                   episode.getMimetype());
+
+        if (!equal(target.getGuid(), source.getGuid())) {
+            target.setGuid(source.getGuid());
+            values.put(DatabaseHelper.COLUMN_EPISODE_GUID, source.getGuid());
+        }
+        if (!equal(target.getTitle(), source.getTitle())) {
+            target.setTitle(source.getTitle());
+            values.put(DatabaseHelper.COLUMN_EPISODE_TITLE, source.getTitle());
+        }
+        if (!equal(target.getDescription(), source.getDescription())) {
+            target.setDescription(source.getDescription());
+            values.put(DatabaseHelper.COLUMN_EPISODE_DESCRIPTION, source.getDescription());
+        }
+        if (target.getReleased() != source.getReleased()) {
+            target.setReleased(source.getReleased());
+            values.put(DatabaseHelper.COLUMN_EPISODE_RELEASED, source.getReleased());
+        }
+        if (!equal(target.getLink(), source.getLink())) {
+            target.setLink(source.getLink());
+            values.put(DatabaseHelper.COLUMN_EPISODE_LINK, source.getLink());
+        }
+        if (!equal(target.getAuthor(), source.getAuthor())) {
+            target.setAuthor(source.getAuthor());
+            values.put(DatabaseHelper.COLUMN_EPISODE_AUTHOR, source.getAuthor());
+        }
+        if (!equal(target.getUrl(), source.getUrl())) {
+            target.setUrl(source.getUrl());
+            values.put(DatabaseHelper.COLUMN_EPISODE_URL, source.getUrl());
+        }
+        if (!equal(target.getMimetype(), source.getMimetype())) {
+            target.setMimetype(source.getMimetype());
+            values.put(DatabaseHelper.COLUMN_EPISODE_MIMETYPE, source.getMimetype());
+        }
+        if (target.getFileSize() != source.getFileSize()) {
+            target.setFileSize(source.getFileSize());
+            values.put(DatabaseHelper.COLUMN_EPISODE_FILESIZE, source.getFileSize());
+        }
+
+        target.markClean(FEED_FIELDS);
+
+        return values;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Binds all columns of the given episode to the INSERT_EPISODE statement.
+     */
+    private void bindEpisode(SQLiteStatement stmt, Episode episode) {
         if (episode.getPodcast() == null) {
             throw new IllegalArgumentException("The episode must belong to a podcast");
         }
-        values.put(DatabaseHelper.COLUMN_EPISODE_PODCAST, episode
-                   .getPodcast().getId());
-        values.put(DatabaseHelper.COLUMN_EPISODE_RELEASED,
-                   episode.getReleased());
-        values.put(DatabaseHelper.COLUMN_EPISODE_TITLE, episode.getTitle());
-        values.put(DatabaseHelper.COLUMN_EPISODE_URL, episode.getUrl());
-        if (episode.getFilePath() == null) {
-            values.putNull(DatabaseHelper.COLUMN_EPISODE_FILEPATH);
+
+        stmt.clearBindings();
+        bindStringOrNull(stmt, 1, episode.getAuthor());
+        bindStringOrNull(stmt, 2, episode.getDescription());
+        stmt.bindLong(3, episode.getFileSize());
+        bindStringOrNull(stmt, 4, episode.getGuid());
+        bindStringOrNull(stmt, 5, episode.getLink());
+        bindStringOrNull(stmt, 6, episode.getMimetype());
+        stmt.bindLong(7, episode.getPodcast().getId());
+        stmt.bindLong(8, episode.getReleased());
+        bindStringOrNull(stmt, 9, episode.getTitle());
+        bindStringOrNull(stmt, 10, episode.getUrl());
+        bindStringOrNull(stmt, 11, episode.getFilePath());
+        bindStringOrNull(stmt, 12, episode.getStorageState() == null ? null
+                         : episode.getStorageState().toString());
+        stmt.bindLong(13, episode.getPlayPosition());
+        bindStringOrNull(stmt, 14, episode.getActionState() == null ? null
+                         : episode.getActionState().toString());
+    }
+
+    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+        if (value == null) {
+            stmt.bindNull(index);
         } else {
-            values.put(DatabaseHelper.COLUMN_EPISODE_FILEPATH,
-                       episode.getFilePath());
+            stmt.bindString(index, value);
         }
-        if (episode.getStorageState() == null) {
-            values.putNull(DatabaseHelper.COLUMN_EPISODE_STATE);
-        } else {
-            values.put(DatabaseHelper.COLUMN_EPISODE_STATE, episode
-                       .getStorageState().toString());
+    }
+
+    private ContentValues toContentValues(Episode episode) {
+        if (episode.getPodcast() == null) {
+            throw new IllegalArgumentException("The episode must belong to a podcast");
         }
-        values.put(DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION, episode.getPlayPosition());
-        if (episode.getActionState() == null) {
-            values.putNull(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE);
-        } else {
-            values.put(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE,
-                       episode.getActionState().toString());
+
+        ContentValues values = toContentValues(episode, EnumSet.allOf(Episode.Field.class));
+        values.put(DatabaseHelper.COLUMN_EPISODE_PODCAST, episode
+                   .getPodcast().getId());
+        return values;
+    }
+
+    /**
+     * @return The values of the given fields of the episode.
+     */
+    private static ContentValues toContentValues(Episode episode, Set<Episode.Field> fields) {
+        ContentValues values = new ContentValues();
+        for (Episode.Field field : fields) {
+            switch (field) {
+            case AUTHOR:
+                values.put(DatabaseHelper.COLUMN_EPISODE_AUTHOR, episode.getAuthor());
+                break;
+            case DESCRIPTION:
+                values.put(DatabaseHelper.COLUMN_EPISODE_DESCRIPTION, episode.getDescription());
+                break;
+            case FILE_SIZE:
+                values.put(DatabaseHelper.COLUMN_EPISODE_FILESIZE, episode.getFileSize());
+                break;
+            case GUID:
+                values.put(DatabaseHelper.COLUMN_EPISODE_GUID, episode.getGuid());
+                break;
+            case LINK:
+                values.put(DatabaseHelper.COLUMN_EPISODE_LINK, episode.getLink());
+                break;
+            case MIMETYPE:
+                values.put(DatabaseHelper.COLUMN_EPISODE_MIMETYPE, episode.getMimetype());
+                break;
+            case RELEASED:
+                values.put(DatabaseHelper.COLUMN_EPISODE_RELEASED, episode.getReleased());
+                break;
+            case TITLE:
+                values.put(DatabaseHelper.COLUMN_EPISODE_TITLE, episode.getTitle());
+                break;
+            case URL:
+                values.put(DatabaseHelper.COLUMN_EPISODE_URL, episode.getUrl());
+                break;
+            case FILE_PATH:
+                if (episode.getFilePath() == null) {
+                    values.putNull(DatabaseHelper.COLUMN_EPISODE_FILEPATH);
+                } else {
+                    values.put(DatabaseHelper.COLUMN_EPISODE_FILEPATH,
+                               episode.getFilePath());
+                }
+                break;
+            case STORAGE_STATE:
+                if (episode.getStorageState() == null) {
+                    values.putNull(DatabaseHelper.COLUMN_EPISODE_STATE);
+                } else {
+                    values.put(DatabaseHelper.COLUMN_EPISODE_STATE, episode
+                               .getStorageState().toString());
+                }
+                break;
+            case PLAY_POSITION:
+                values.put(DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION,
+                           episode.getPlayPosition());
+                break;
+            case ACTION_STATE:
+                if (episode.getActionState() == null) {
+                    values.putNull(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE);
+                } else {
+                    values.put(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE,
+                               episode.getActionState().toString());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown episode field " + field);
+            }
         }
         return values;
     }
@@ -180,50 +560,230 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
     }
 
     /**
-     * @see EpisodeDAO#update(Episode)
+     * @see EpisodeDAO#getEpisodesReleasedBefore(Episode, int)
      */
     @Override
-    public int update(Episode episode) {
-        ContentValues values = toContentValues(episode);
-        SQLiteDatabase db = null;
-        int rows = 0;
+    public List<Episode> getEpisodesReleasedBefore(Episode before, int count) {
+        String orderBy = String.format("%s DESC, %s ASC",
+                                       DatabaseHelper.COLUMN_EPISODE_RELEASED,
+                                       DatabaseHelper.COLUMN_EPISODE_ID);
+        if (before == null) {
+            return getEpisodesWhere(null, null, orderBy, String.valueOf(count));
+        }
 
-        /* We need the old state of the episode in order to deduct current changes
-         * for episode actions. */
+        return getEpisodesWhere(keysetSelection("<=", "<="), keysetArgs(before), orderBy,
+                                String.valueOf(count));
+    }
+
+    /**
+     * @see EpisodeDAO#getEpisodesReleasedAfter(Episode, int)
+     */
+    @Override
+    public List<Episode> getEpisodesReleasedAfter(Episode after, int count) {
+        String orderBy = String.format("%s ASC, %s DESC",
+                                       DatabaseHelper.COLUMN_EPISODE_RELEASED,
+                                       DatabaseHelper.COLUMN_EPISODE_ID);
+        List<Episode> episodes = getEpisodesWhere(keysetSelection(">=", ">="),
+                                 keysetArgs(after), orderBy, String.valueOf(count));
+        Collections.reverse(episodes);
+        return episodes;
+    }
+
+    /**
+     * Pages follow the order of the release date index: newest first, and
+     * episodes released at the same time by ascending id, since that is how
+     * the index stores them. The selection is a range on the released column
+     * so that the index can be used for it, minus the given episode and the
+     * ones preceding it at the same release date.
+     *
+     * @param releasedOp "<=" to page towards older episodes, ">=" to page
+     *            towards newer ones.
+     * @param idOp "<=" resp. ">=", excludes the episodes released at the same
+     *            time which are not on the requested side of the given one.
+     * @return A selection to be used with {@link #keysetArgs(Episode)}.
+     */
+    private static String keysetSelection(String releasedOp, String idOp) {
+        return String.format("%1$s %2$s ? AND NOT (%1$s = ? AND %3$s %4$s ?)",
+                             DatabaseHelper.COLUMN_EPISODE_RELEASED, releasedOp,
+                             DatabaseHelper.COLUMN_EPISODE_ID, idOp);
+    }
+
+    private static String[] keysetArgs(Episode episode) {
+        String released = String.valueOf(episode.getReleased());
+        String[] args = {
+            released, released, String.valueOf(episode.getId())
+        };
+        return args;
+    }
 
-        Episode oldEpisode = getEpisode(episode.getId());
+    /**
+     * @see EpisodeDAO#updatePlayPositions(Collection)
+     */
+    @Override
+    public int updatePlayPositions(Collection<Episode> episodes) {
+        List<Episode> changed = new ArrayList<Episode>(episodes.size());
+        List<Episode> taken = new ArrayList<Episode>(episodes.size());
+        EpisodeActionDAO epDao = Singletons.i().getEpisodeActionDAO();
 
+        SQLiteDatabase db = null;
+        SQLiteStatement update = null;
         try {
             db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
 
-            String selection = DatabaseHelper.COLUMN_EPISODE_ID + " = ?";
-            String[] selectionArgs = {
-                String.valueOf(episode.getId())
-            };
+            update = db.compileStatement(UPDATE_PLAYPOSITION);
 
-            rows = db.update(DatabaseHelper.TABLE_EPISODE, values, selection, selectionArgs);
+            for (Episode episode : episodes) {
+                if (!episode.takeDirtyField(Episode.Field.PLAY_POSITION)) {
+                    continue;
+                }
+                taken.add(episode);
 
-            /* Trigger download and play position episode actions if applicable. */
+                update.bindLong(1, episode.getPlayPosition());
+                update.bindLong(2, episode.getId());
+                if (update.executeUpdateDelete() == 0) {
 
-            EpisodeActionDAO epDao = Singletons.i().getEpisodeActionDAO();
-            if (episode.getStorageState() == Episode.StorageState.DOWNLOADED &&
-                    oldEpisode.getStorageState() != episode.getStorageState()) {
-                LocalEpisodeAction action = new LocalEpisodeAction(episode.getPodcast(),
-                        episode.getUrl(), Episode.ActionState.DOWNLOAD, null, null, null);
-                epDao.insertEpisodeAction(action);
-            }
+                    /* The episode has been deleted in the meantime. */
+
+                    continue;
+                }
 
-            if (oldEpisode.getPlayPosition() != episode.getPlayPosition()) {
                 LocalEpisodeAction action = new LocalEpisodeAction(episode.getPodcast(),
                         episode.getUrl(), Episode.ActionState.PLAY, null,
                         episode.getPlayPosition() / 1000,
                         null);
                 epDao.insertEpisodeAction(action);
+
+                changed.add(episode);
+            }
+
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            for (Episode episode : taken) {
+                episode.markDirty(EnumSet.of(Episode.Field.PLAY_POSITION));
+            }
+            return 0;
+        } finally {
+            if (update != null) {
+                update.close();
             }
+            if ((db != null) && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
 
+        for (Episode episode : changed) {
             notifyListenersChanged(episode);
+        }
+
+        return changed.size();
+    }
+
+    /**
+     * Writes only the fields which have been changed since the episode was
+     * last stored.
+     *
+     * @see EpisodeDAO#update(Episode)
+     */
+    @Override
+    public int update(Episode episode) {
+        Set<Episode.Field> dirty = episode.takeDirtyFields();
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+
+        int rows = 0;
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            rows = write(db, episode, dirty);
+            notifyListenersChanged(episode);
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            if (rows == 0) {
+                episode.markDirty(dirty);
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * @see EpisodeDAO#updateEpisodes(Collection)
+     */
+    @Override
+    public int updateEpisodes(Collection<Episode> episodes) {
+        Map<Episode, Set<Episode.Field>> taken =
+            new LinkedHashMap<Episode, Set<Episode.Field>>();
+        for (Episode episode : episodes) {
+            Set<Episode.Field> dirty = episode.takeDirtyFields();
+            if (!dirty.isEmpty()) {
+                taken.put(episode, dirty);
+            }
+        }
+
+        if (taken.isEmpty()) {
+            return 0;
+        }
+
+        int rows = 0;
+        SQLiteDatabase db = null;
+        try {
+            db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
+
+            for (Map.Entry<Episode, Set<Episode.Field>> entry : taken.entrySet()) {
+                rows += write(db, entry.getKey(), entry.getValue());
+            }
+
+            db.setTransactionSuccessful();
         } catch (Exception ex) {
             Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            for (Map.Entry<Episode, Set<Episode.Field>> entry : taken.entrySet()) {
+                entry.getKey().markDirty(entry.getValue());
+            }
+            return -1;
+        } finally {
+            if ((db != null) && db.isOpen()) {
+                db.endTransaction();
+            }
+        }
+
+        notifyListenersChanged(new ArrayList<Episode>(taken.keySet()));
+
+        return rows;
+    }
+
+    /**
+     * Writes the given fields of the episode and records download and play
+     * position episode actions if applicable.
+     *
+     * @return The number of updated rows.
+     */
+    private int write(SQLiteDatabase db, Episode episode, Set<Episode.Field> dirty) {
+        ContentValues values = toContentValues(episode, dirty);
+
+        String selection = DatabaseHelper.COLUMN_EPISODE_ID + " = ?";
+        String[] selectionArgs = {
+            String.valueOf(episode.getId())
+        };
+
+        int rows = db.update(DatabaseHelper.TABLE_EPISODE, values, selection, selectionArgs);
+
+        EpisodeActionDAO epDao = Singletons.i().getEpisodeActionDAO();
+        if (dirty.contains(Episode.Field.STORAGE_STATE)
+                && episode.getStorageState() == Episode.StorageState.DOWNLOADED) {
+            LocalEpisodeAction action = new LocalEpisodeAction(episode.getPodcast(),
+                    episode.getUrl(), Episode.ActionState.DOWNLOAD, null, null, null);
+            epDao.insertEpisodeAction(action);
+        }
+
+        if (dirty.contains(Episode.Field.PLAY_POSITION)) {
+            LocalEpisodeAction action = new LocalEpisodeAction(episode.getPodcast(),
+                    episode.getUrl(), Episode.ActionState.PLAY, null,
+                    episode.getPlayPosition() / 1000,
+                    null);
+            epDao.insertEpisodeAction(action);
         }
 
         return rows;
@@ -245,26 +805,48 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
         }
     }
 
+    void notifyListenersChanged(List<Episode> episodes) {
+        if (episodes.isEmpty()) {
+            return;
+        }
+
+        for (EpisodeDAO.OnEpisodeChangeListener listener : listeners) {
+            listener.onEpisodesChanged(episodes);
+        }
+    }
+
     private void notifyListenersAdded(Episode episode) {
         for (EpisodeDAO.OnEpisodeChangeListener listener : listeners) {
             listener.onEpisodeAdded(episode);
         }
     }
 
+    void notifyListenersAdded(List<Episode> episodes) {
+        if (episodes.isEmpty()) {
+            return;
+        }
+
+        for (EpisodeDAO.OnEpisodeChangeListener listener : listeners) {
+            listener.onEpisodesAdded(episodes);
+        }
+    }
+
     private void notifyListenersDeleted(Episode episode) {
         for (EpisodeDAO.OnEpisodeChangeListener listener : listeners) {
             listener.onEpisodeDeleted(episode);
         }
     }
 
+    /** Answered from the url and guid indices, see DatabaseHelper. */
+    static final String URL_OR_GUID_SELECTION = DatabaseHelper.COLUMN_EPISODE_URL + " = ? OR "
+            + DatabaseHelper.COLUMN_EPISODE_GUID + " = ?";
+
     @Override
     public Episode getEpisodeByUrlOrGuid(String url, String guid) {
-        String selection = DatabaseHelper.COLUMN_EPISODE_URL + " = ? OR "
-                           + DatabaseHelper.COLUMN_EPISODE_GUID + " = ?";
         String[] selectionArgs = {
             url, guid
         };
-        List<Episode> episodes = getEpisodesWhere(selection, selectionArgs);
+        List<Episode> episodes = getEpisodesWhere(URL_OR_GUID_SELECTION, selectionArgs);
         if (episodes.size() > 0) {
             return episodes.get(0);
         }
@@ -273,6 +855,12 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
 
     private List<Episode> getEpisodesWhere(String selection,
                                            String[] selectionArgs) {
+        return getEpisodesWhere(selection, selectionArgs,
+                                DatabaseHelper.COLUMN_EPISODE_RELEASED + " DESC", null);
+    }
+
+    private List<Episode> getEpisodesWhere(String selection, String[] selectionArgs,
+                                           String orderBy, String limit) {
         List<Episode> allEpisodes = new ArrayList<Episode>();
         SQLiteDatabase db = dbHelper.getReadableDatabase();
         String[] projection = {
@@ -301,44 +889,92 @@ public final class SimpleEpisodeDAO implements EpisodeDAO {
                      selectionArgs, // values for where clause
                      null, // group
                      null, // filter by row group
-                     DatabaseHelper.COLUMN_EPISODE_RELEASED + " DESC" // sort order
+                     orderBy, // sort order
+                     limit
                     );
 
-        if (c.moveToFirst()) {
-            do {
-                Episode e = getEpisode(c);
-                allEpisodes.add(e);
-            } while (c.moveToNext());
+        /* Column indices are resolved once per cursor, and every podcast is
+         * looked up once per result set rather than once per row. */
+
+        Columns columns = new Columns(c);
+        HashMap<Long, Podcast> podcasts = new HashMap<Long, Podcast>();
+
+        while (c.moveToNext()) {
+            long podcastId = c.getLong(columns.podcast);
+            Podcast p = podcasts.get(podcastId);
+            if (p == null) {
+                p = podcastDAO.getPodcastById(podcastId);
+                podcasts.put(podcastId, p);
+            }
+
+            allEpisodes.add(getEpisode(c, columns, p));
         }
         c.close();
         return allEpisodes;
     }
 
-    private Episode getEpisode(Cursor c) {
-        long key = c.getLong(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_ID));
-
-        Episode e = new Episode(podcastDAO.getPodcastById(c.getLong(
-                                    c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_PODCAST))));
-        e.setAuthor(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_AUTHOR)));
-        e.setDescription(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_DESCRIPTION)));
-        e.setFileSize(c.getLong(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_FILESIZE)));
-        e.setGuid(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_GUID)));
-        e.setId(key);
-        e.setLink(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_LINK)));
-        e.setMimetype(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_MIMETYPE)));
-        e.setReleased(c.getLong(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_RELEASED)));
-        e.setTitle(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_TITLE)));
-        e.setUrl(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_URL)));
-        e.setFilePath(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_FILEPATH)));
-        e.setPlayPosition(c.getInt(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION)));
-        String state = c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_STATE));
-        String aState = c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE));
+    /**
+     * The indices of the episode columns within a cursor.
+     */
+    private static final class Columns {
+        private final int author;
+        private final int description;
+        private final int fileSize;
+        private final int guid;
+        private final int id;
+        private final int link;
+        private final int mimetype;
+        private final int podcast;
+        private final int released;
+        private final int title;
+        private final int url;
+        private final int filePath;
+        private final int state;
+        private final int playPosition;
+        private final int actionState;
+
+        public Columns(Cursor c) {
+            author = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_AUTHOR);
+            description = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_DESCRIPTION);
+            fileSize = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_FILESIZE);
+            guid = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_GUID);
+            id = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_ID);
+            link = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_LINK);
+            mimetype = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_MIMETYPE);
+            podcast = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_PODCAST);
+            released = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_RELEASED);
+            title = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_TITLE);
+            url = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_URL);
+            filePath = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_FILEPATH);
+            state = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_STATE);
+            playPosition = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_PLAYPOSITION);
+            actionState = c.getColumnIndex(DatabaseHelper.COLUMN_EPISODE_ACTIONSTATE);
+        }
+    }
+
+    private static Episode getEpisode(Cursor c, Columns columns, Podcast podcast) {
+        Episode e = new Episode(podcast);
+        e.setAuthor(c.getString(columns.author));
+        e.setDescription(c.getString(columns.description));
+        e.setFileSize(c.getLong(columns.fileSize));
+        e.setGuid(c.getString(columns.guid));
+        e.setId(c.getLong(columns.id));
+        e.setLink(c.getString(columns.link));
+        e.setMimetype(c.getString(columns.mimetype));
+        e.setReleased(c.getLong(columns.released));
+        e.setTitle(c.getString(columns.title));
+        e.setUrl(c.getString(columns.url));
+        e.setFilePath(c.getString(columns.filePath));
+        e.setPlayPosition(c.getInt(columns.playPosition));
+        String state = c.getString(columns.state);
+        String aState = c.getString(columns.actionState);
         if (state != null) {
             e.setStorageState(StorageState.valueOf(state));
         }
         if (aState != null) {
             e.setActionState(ActionState.valueOf(aState));
         }
+        e.markClean();
 
         return e;
     }
@@ -20,6 +20,7 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -65,7 +66,25 @@ public class SimplePodcastDAO implements PodcastDAO {
 
             db.beginTransaction();
 
-            long id = db.insert(DatabaseHelper.TABLE_PODCAST, null, values);
+            /* A podcast deleted locally keeps its row until the delete has
+             * been pushed. Subscribing to it again revives that row, which
+             * is still subscribed on the service. */
+
+            long id = getLocallyDeletedId(db, podcast.getUrl());
+            if (id != -1) {
+                reviveLocallyDeleted(db, id, values);
+                podcast.setId(id);
+                podcast.setLocalAdd(false);
+                podcast.setLocalDel(false);
+                podcast.markClean();
+                notifyListenersAdded(podcast);
+
+                db.setTransactionSuccessful();
+
+                return podcast;
+            }
+
+            id = db.insert(DatabaseHelper.TABLE_PODCAST, null, values);
             if (id == -1) {
                 throw new SQLiteException("Failed to insert podcast");
             }
@@ -87,6 +106,7 @@ public class SimplePodcastDAO implements PodcastDAO {
             }
 
             podcast.setId(id);
+            podcast.markClean();
             notifyListenersAdded(podcast);
 
             db.setTransactionSuccessful();
@@ -102,25 +122,84 @@ public class SimplePodcastDAO implements PodcastDAO {
         }
     }
 
-    private ContentValues toContentValues(Podcast podcast) {
-        ContentValues values = new ContentValues();
+    /**
+     * @return The id of the locally deleted podcast with the given url, -1 if
+     *         there is none.
+     */
+    private static long getLocallyDeletedId(SQLiteDatabase db, String url) {
+        if (url == null) {
+            return -1;
+        }
 
-        values.put(DatabaseHelper.COLUMN_PODCAST_DESCRIPTION, podcast.getDescription());
-        values.put(DatabaseHelper.COLUMN_PODCAST_URL, podcast.getUrl());
-        values.put(DatabaseHelper.COLUMN_PODCAST_TITLE, podcast.getTitle());
-        values.put(DatabaseHelper.COLUMN_PODCAST_LAST_UPDATE, podcast.getLastUpdate());
+        String[] selectionArgs = {
+            url
+        };
 
-        if (podcast.getLogoUrl() == null) {
-            values.putNull(DatabaseHelper.COLUMN_PODCAST_LOGO_URL);
-        } else {
-            values.put(DatabaseHelper.COLUMN_PODCAST_LOGO_URL, podcast.getLogoUrl());
+        Cursor c = db.rawQuery(QUERY_LOCALLY_DELETED_ID_BY_URL, selectionArgs);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
         }
+    }
+
+    /**
+     * Overwrites the locally deleted podcast with the given values and removes
+     * it from the local delete table.
+     */
+    private static void reviveLocallyDeleted(SQLiteDatabase db, long id, ContentValues values) {
+        String[] selectionArgs = {
+            String.valueOf(id)
+        };
 
-        if (podcast.getLogoFilePath() == null) {
-            values.putNull(DatabaseHelper.COLUMN_PODCAST_LOGO_FILE_PATH);
-        } else {
-            values.put(DatabaseHelper.COLUMN_PODCAST_LOGO_FILE_PATH,
-                       podcast.getLogoFilePath());
+        db.update(DatabaseHelper.TABLE_PODCAST, values,
+                  DatabaseHelper.COLUMN_PODCAST_ID + " = ?", selectionArgs);
+        db.delete(DatabaseHelper.TABLE_PODCAST_LOCAL_DEL,
+                  DatabaseHelper.COLUMN_PODCAST_DEL_ID + " = ?", selectionArgs);
+    }
+
+    private ContentValues toContentValues(Podcast podcast) {
+        return toContentValues(podcast, EnumSet.allOf(Podcast.Field.class));
+    }
+
+    /**
+     * @return The values of the given fields of the podcast.
+     */
+    private ContentValues toContentValues(Podcast podcast, Set<Podcast.Field> fields) {
+        ContentValues values = new ContentValues();
+
+        for (Podcast.Field field : fields) {
+            switch (field) {
+            case DESCRIPTION:
+                values.put(DatabaseHelper.COLUMN_PODCAST_DESCRIPTION, podcast.getDescription());
+                break;
+            case URL:
+                values.put(DatabaseHelper.COLUMN_PODCAST_URL, podcast.getUrl());
+                break;
+            case TITLE:
+                values.put(DatabaseHelper.COLUMN_PODCAST_TITLE, podcast.getTitle());
+                break;
+            case LAST_UPDATE:
+                values.put(DatabaseHelper.COLUMN_PODCAST_LAST_UPDATE, podcast.getLastUpdate());
+                break;
+            case LOGO_URL:
+                if (podcast.getLogoUrl() == null) {
+                    values.putNull(DatabaseHelper.COLUMN_PODCAST_LOGO_URL);
+                } else {
+                    values.put(DatabaseHelper.COLUMN_PODCAST_LOGO_URL, podcast.getLogoUrl());
+                }
+                break;
+            case LOGO_FILE_PATH:
+                if (podcast.getLogoFilePath() == null) {
+                    values.putNull(DatabaseHelper.COLUMN_PODCAST_LOGO_FILE_PATH);
+                } else {
+                    values.put(DatabaseHelper.COLUMN_PODCAST_LOGO_FILE_PATH,
+                               podcast.getLogoFilePath());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown podcast field " + field);
+            }
         }
 
         return values;
@@ -189,6 +268,12 @@ public class SimplePodcastDAO implements PodcastDAO {
             DatabaseHelper.COLUMN_PODCAST_DEL_ID, QUERY_COLUMN_PODCAST_LOCAL_DEL,
             DatabaseHelper.TABLE_PODCAST_LOCAL_DEL, DatabaseHelper.COLUMN_PODCAST_ID);
 
+    private static final String QUERY_LOCALLY_DELETED_ID_BY_URL = String.format(
+                "select p.%s from %s p join %s d on p.%s = d.%s where p.%s = ?;",
+                DatabaseHelper.COLUMN_PODCAST_ID, DatabaseHelper.TABLE_PODCAST,
+                DatabaseHelper.TABLE_PODCAST_LOCAL_DEL, DatabaseHelper.COLUMN_PODCAST_ID,
+                DatabaseHelper.COLUMN_PODCAST_DEL_ID, DatabaseHelper.COLUMN_PODCAST_URL);
+
     /**
      * @see at.ac.tuwien.detlef.db.PodcastDAO#getAllPodcasts()
      */
@@ -209,22 +294,37 @@ public class SimplePodcastDAO implements PodcastDAO {
         p.setLogoFilePath(c.getString(c.getColumnIndex(DatabaseHelper.COLUMN_PODCAST_LOGO_FILE_PATH)));
         p.setLocalAdd(!c.isNull(c.getColumnIndex(QUERY_COLUMN_PODCAST_LOCAL_ADD)));
         p.setLocalDel(!c.isNull(c.getColumnIndex(QUERY_COLUMN_PODCAST_LOCAL_DEL)));
+        p.markClean();
 
         return p;
     }
 
     @Override
     public int update(Podcast podcast) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        ContentValues values = toContentValues(podcast);
+        /* Only the columns changed since the podcast was last stored are
+         * written, and nobody is told about an update which changed nothing. */
+
+        Set<Podcast.Field> dirty = podcast.takeDirtyFields();
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues values = toContentValues(podcast, dirty);
 
         String selection = DatabaseHelper.COLUMN_PODCAST_ID + " = ?";
         String[] selectionArgs = {
             String.valueOf(podcast.getId())
         };
 
-        int ret = db.update(DatabaseHelper.TABLE_PODCAST, values, selection, selectionArgs);
+        int ret;
+        try {
+            ret = db.update(DatabaseHelper.TABLE_PODCAST, values, selection, selectionArgs);
+        } catch (RuntimeException ex) {
+            podcast.markDirty(dirty);
+            throw ex;
+        }
 
         notifyListenersChanged(podcast);
 
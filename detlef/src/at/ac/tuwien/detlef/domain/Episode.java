@@ -18,6 +18,10 @@
 
 package at.ac.tuwien.detlef.domain;
 
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+
 import com.dragontek.mygpoclient.feeds.IFeed.IEpisode;
 
 /**
@@ -44,6 +48,26 @@ public class Episode implements IEpisode {
         NEW
     }
 
+    /**
+     * The persistent fields of an episode which can be changed after it has
+     * been stored, see {@link #takeDirtyFields()}.
+     */
+    public enum Field {
+        TITLE,
+        STORAGE_STATE,
+        FILE_SIZE,
+        AUTHOR,
+        DESCRIPTION,
+        MIMETYPE,
+        GUID,
+        LINK,
+        RELEASED,
+        URL,
+        FILE_PATH,
+        PLAY_POSITION,
+        ACTION_STATE
+    }
+
     private long id;
     private String title;
     private final Podcast podcast;
@@ -60,6 +84,9 @@ public class Episode implements IEpisode {
     private int playPosition = 0;
     private Episode.ActionState actionState;
 
+    /** The fields changed since the episode was last stored, guarded by itself. */
+    private final EnumSet<Field> dirty = EnumSet.noneOf(Field.class);
+
     public Episode(Podcast podcast) {
         this.podcast = podcast;
         this.storageState = StorageState.NOT_ON_DEVICE;
@@ -90,12 +117,20 @@ public class Episode implements IEpisode {
     }
 
     public Episode setStorageState(Episode.StorageState storageState) {
+        boolean changed = !equal(this.storageState, storageState);
         this.storageState = storageState;
+        if (changed) {
+            markDirty(Field.STORAGE_STATE);
+        }
         return this;
     }
 
     public Episode setTitle(String titleIn) {
+        boolean changed = !equal(this.title, titleIn);
         this.title = titleIn;
+        if (changed) {
+            markDirty(Field.TITLE);
+        }
         return this;
     }
 
@@ -108,7 +143,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setFileSize(long fileSizeIn) {
+        boolean changed = this.fileSize != fileSizeIn;
         this.fileSize = fileSizeIn;
+        if (changed) {
+            markDirty(Field.FILE_SIZE);
+        }
         return this;
     }
 
@@ -118,7 +157,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setAuthor(String authorIn) {
+        boolean changed = !equal(this.author, authorIn);
         this.author = authorIn;
+        if (changed) {
+            markDirty(Field.AUTHOR);
+        }
         return this;
     }
 
@@ -128,7 +171,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setDescription(String descriptionIn) {
+        boolean changed = !equal(this.description, descriptionIn);
         this.description = descriptionIn;
+        if (changed) {
+            markDirty(Field.DESCRIPTION);
+        }
         return this;
     }
 
@@ -138,7 +185,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setGuid(String guidIn) {
+        boolean changed = !equal(this.guid, guidIn);
         this.guid = guidIn;
+        if (changed) {
+            markDirty(Field.GUID);
+        }
         return this;
     }
 
@@ -148,7 +199,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setLink(String linkIn) {
+        boolean changed = !equal(this.link, linkIn);
         this.link = linkIn;
+        if (changed) {
+            markDirty(Field.LINK);
+        }
         return this;
     }
 
@@ -158,7 +213,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setReleased(long releasedIn) {
+        boolean changed = this.released != releasedIn;
         this.released = releasedIn;
+        if (changed) {
+            markDirty(Field.RELEASED);
+        }
         return this;
     }
 
@@ -167,7 +226,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setMimetype(String mimetypeIn) {
+        boolean changed = !equal(this.mimetype, mimetypeIn);
         this.mimetype = mimetypeIn;
+        if (changed) {
+            markDirty(Field.MIMETYPE);
+        }
         return this;
     }
 
@@ -198,7 +261,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setUrl(String urlIn) {
+        boolean changed = !equal(this.url, urlIn);
         this.url = urlIn;
+        if (changed) {
+            markDirty(Field.URL);
+        }
         return this;
     }
 
@@ -216,7 +283,11 @@ public class Episode implements IEpisode {
     }
 
     public Episode setFilePath(String filePathIn) {
+        boolean changed = !equal(this.filePath, filePathIn);
         this.filePath = filePathIn;
+        if (changed) {
+            markDirty(Field.FILE_PATH);
+        }
         return this;
     }
 
@@ -234,7 +305,11 @@ public class Episode implements IEpisode {
      * @return
      */
     public Episode setPlayPosition(int playPosition) {
+        boolean changed = this.playPosition != playPosition;
         this.playPosition = playPosition;
+        if (changed) {
+            markDirty(Field.PLAY_POSITION);
+        }
         return this;
     }
 
@@ -243,7 +318,81 @@ public class Episode implements IEpisode {
     }
 
     public Episode setActionState(Episode.ActionState actionState) {
+        boolean changed = !equal(this.actionState, actionState);
         this.actionState = actionState;
+        if (changed) {
+            markDirty(Field.ACTION_STATE);
+        }
         return this;
     }
+
+    /**
+     * Returns the fields which have been changed since the episode was last
+     * stored and marks them as stored. The values have to be read after this
+     * call, so that a change made concurrently is either included or marks
+     * its field dirty again.
+     */
+    public Set<Field> takeDirtyFields() {
+        synchronized (dirty) {
+            Set<Field> ret = EnumSet.copyOf(dirty);
+            dirty.clear();
+            return ret;
+        }
+    }
+
+    /**
+     * Like {@link #takeDirtyFields()}, but only for a single field.
+     *
+     * @return Whether the field was dirty.
+     */
+    public boolean takeDirtyField(Field field) {
+        synchronized (dirty) {
+            return dirty.remove(field);
+        }
+    }
+
+    public boolean isDirty(Field field) {
+        synchronized (dirty) {
+            return dirty.contains(field);
+        }
+    }
+
+    /**
+     * Marks the given fields dirty again, e.g. after storing them failed.
+     */
+    public void markDirty(Collection<Field> fields) {
+        synchronized (dirty) {
+            dirty.addAll(fields);
+        }
+    }
+
+    /**
+     * Marks all fields as stored, e.g. after the episode has been read from
+     * or inserted into the database.
+     */
+    public void markClean() {
+        synchronized (dirty) {
+            dirty.clear();
+        }
+    }
+
+    /**
+     * Marks the given fields as stored, e.g. after they have been written by
+     * somebody else.
+     */
+    public void markClean(Collection<Field> fields) {
+        synchronized (dirty) {
+            dirty.removeAll(fields);
+        }
+    }
+
+    private void markDirty(Field field) {
+        synchronized (dirty) {
+            dirty.add(field);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
 }
@@ -54,8 +54,23 @@ public final class EpisodePersistence {
      * @param episode The episode to download (episode != null, episode.getUrl() != null).
      */
     public static void download(Episode episode) throws IOException {
+        download(episode, false);
+    }
+
+    /**
+     * Same as {@link #download(Episode)}, but optionally restricts the
+     * download to Wi-Fi. The download then waits for a Wi-Fi connection.
+     * @param episode The episode to download (episode != null, episode.getUrl() != null).
+     * @param wifiOnly Whether the download may only use Wi-Fi.
+     */
+    public static void download(Episode episode, boolean wifiOnly) throws IOException {
+        int networkTypes = DownloadManager.Request.NETWORK_WIFI;
+        if (!wifiOnly) {
+            networkTypes |= DownloadManager.Request.NETWORK_MOBILE;
+        }
+
         try {
-            getDownloadManager().enqueue(new EpisodeDownloadCallback(episode));
+            getDownloadManager().enqueue(new EpisodeDownloadCallback(episode, networkTypes));
         } catch (IOException e) {
             Log.e(TAG, "IOException while trying to download: ", e);
             throw e;
@@ -91,6 +106,56 @@ public final class EpisodePersistence {
         }
     }
 
+    /**
+     * Moves a completely cached stream of the episode to where a download of
+     * it would have been stored, and marks the episode as DOWNLOADED. Nothing
+     * is done if the episode is being downloaded or has been downloaded
+     * already.
+     * @param episode The episode whose stream has been cached.
+     * @param file The complete cache file.
+     * @return The new location of the file, or null if it has been left in
+     *         place.
+     */
+    public static File promoteCachedStream(Episode episode, File file) {
+        if (episode.getStorageState() != StorageState.NOT_ON_DEVICE) {
+            return null;
+        }
+
+        File dir = getContext().getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+        if (dir == null) {
+            return null;
+        }
+
+        File destination = new File(dir, getDestinationSubPath(episode));
+        destination.getParentFile().mkdirs();
+        if (!file.renameTo(destination)) {
+            Log.w(TAG, String.format("Could not move cached stream to %s", destination));
+            return null;
+        }
+
+        episode.setFilePath(destination.getAbsolutePath());
+        episode.setStorageState(StorageState.DOWNLOADED);
+
+        Singletons.i().getEpisodeDAO().update(episode);
+
+        return destination;
+    }
+
+    private static String getDestinationSubPath(Episode episode) {
+        return String.format("%s/%s",
+                             removeUnwantedCharacters(episode.getPodcast().getTitle()),
+                             removeUnwantedCharacters(
+                                 new File(Uri.parse(episode.getUrl()).getPath()).getName()));
+    }
+
+    private static String removeUnwantedCharacters(String path) {
+        for (char unwantedChar : new char[] { '<', '>', ':', '"', '/', '\\', '|', '?', '*', '=', ' ' }) {
+            path = path.replace(unwantedChar, '_');
+        }
+
+        return path;
+    }
+
     private static DetlefDownloadManager getDownloadManager() {
         return Singletons.i().getDownloadManager(getContext());
     }
@@ -103,10 +168,12 @@ public final class EpisodePersistence {
 
         private final Episode episode;
         private final Podcast podcast;
+        private final int networkTypes;
 
-        public EpisodeDownloadCallback(Episode episode) {
+        public EpisodeDownloadCallback(Episode episode, int networkTypes) {
             this.episode = episode;
             this.podcast = episode.getPodcast();
+            this.networkTypes = networkTypes;
         }
 
         @Override
@@ -157,8 +224,7 @@ public final class EpisodePersistence {
 
         @Override
         public String getDestinationSubPath() {
-            return String.format("%s/%s", removeUnwantedCharacters(podcast.getTitle()),
-                                 removeUnwantedCharacters(new File(getSource().getPath()).getName()));
+            return EpisodePersistence.getDestinationSubPath(episode);
         }
 
         @Override
@@ -177,16 +243,13 @@ public final class EpisodePersistence {
         }
 
         @Override
-        public Object getObject() {
-            return episode;
+        public int getAllowedNetworkTypes() {
+            return networkTypes;
         }
 
-        private static String removeUnwantedCharacters(String path) {
-            for (char unwantedChar : new char[] { '<', '>', ':', '"', '/', '\\', '|', '?', '*', '=', ' ' }) {
-                path = path.replace(unwantedChar, '_');
-            }
-
-            return path;
+        @Override
+        public Object getObject() {
+            return episode;
         }
     }
 
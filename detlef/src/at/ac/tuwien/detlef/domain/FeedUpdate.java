@@ -74,8 +74,11 @@ public class FeedUpdate implements IFeed {
     }
 
     /**
-     * Constructs a FeedUpdate containing all Episodes which were added to the podcast after its
-     * last update time.
+     * Constructs a FeedUpdate containing all Episodes of the feed which have an enclosure.
+     * Episodes released before the podcast's last update are kept as well, since the feed
+     * service also returns episodes which have been edited or re-published since then. They
+     * are merged into the stored episodes by guid/url, see
+     * {@link at.ac.tuwien.detlef.db.EpisodeDAO#upsertEpisodes(Podcast, java.util.Collection)}.
      * @param iFeed The original feed
      * @param podcast The podcast it belongs to.
      */
@@ -93,9 +96,6 @@ public class FeedUpdate implements IFeed {
                 Log.i(TAG, "missing enclosure " + ex.getMessage());
                 continue;
             }
-            if (ie.getReleased() <= podcast.getLastUpdate()) {
-                continue;
-            }
             if (ie.getReleased() > lastRelease) {
                 lastRelease = ie.getReleased();
             }
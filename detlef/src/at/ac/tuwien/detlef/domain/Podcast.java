@@ -18,15 +18,14 @@
 package at.ac.tuwien.detlef.domain;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
 
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
-import at.ac.tuwien.detlef.Detlef;
-import at.ac.tuwien.detlef.R;
+import at.ac.tuwien.detlef.Singletons;
 
 import com.dragontek.mygpoclient.simple.IPodcast;
 
@@ -41,25 +40,32 @@ public class Podcast implements IPodcast, Serializable, Parcelable {
      */
     private static final long serialVersionUID = 1L;
 
-    private static final Drawable defaultLogo =
-        Detlef.getAppContext().getResources().getDrawable(R.drawable.ic_feed_icon);
-
-    private static final String TAG = Podcast.class.getName();
-
-    private static final int ICON_WIDTH = 80;
-    private static final int ICON_HEIGHT = 80;
+    /**
+     * The persistent fields of a podcast which can be changed after it has
+     * been stored, see {@link #takeDirtyFields()}.
+     */
+    public enum Field {
+        TITLE,
+        DESCRIPTION,
+        LOGO_URL,
+        LOGO_FILE_PATH,
+        URL,
+        LAST_UPDATE
+    }
 
     private long id;
     private String title;
     private String description;
     private String logoUrl;
     private String logoFilePath;
-    private transient Drawable logoIcon;
     private String url;
     private long lastUpdate;
     private boolean localAdd;
     private boolean localDel;
 
+    /** The fields changed since the podcast was last stored, guarded by this. */
+    private transient EnumSet<Field> dirty;
+
     public Podcast() {
         /* Deliberately empty. */
     }
@@ -72,47 +78,14 @@ public class Podcast implements IPodcast, Serializable, Parcelable {
     }
 
     /**
-     * Creates the logo icon.
-     *
-     * @return
-     */
-    private Drawable createLogoIcon() {
-        Drawable image = Drawable.createFromPath(getLogoFilePath());
-        if (image == null) {
-            return null;
-        }
-
-        Bitmap d = ((BitmapDrawable)image).getBitmap();
-        Bitmap bitmapOrig = Bitmap.createScaledBitmap(d, ICON_WIDTH, ICON_HEIGHT, false);
-
-        return new BitmapDrawable(Detlef.getAppContext().getResources(), bitmapOrig);
-    }
-
-    /**
-     * returns the icon for the podcast.
+     * returns the icon for the podcast. The logo is decoded on the calling
+     * thread if it isn't cached yet, so views should be bound through the
+     * {@link PodcastLogoLoader} instead.
      *
      * @return
      */
     public Drawable getLogoIcon() {
-        if (logoFilePath == null) {
-            return defaultLogo;
-        }
-
-        if (logoIcon == null) {
-            logoIcon = createLogoIcon();
-        }
-
-        /* If logoIcon is still null, we are storing an invalid logo path.
-         * TODO: This does not update the DB.
-         */
-
-        if (logoIcon == null) {
-            Log.w(TAG, String.format("Removing reference to invalid logo path %s", logoFilePath));
-            logoFilePath = null;
-            return defaultLogo;
-        }
-
-        return logoIcon;
+        return Singletons.i().getPodcastLogoLoader().getLogo(this);
     }
 
     @Override
@@ -136,24 +109,39 @@ public class Podcast implements IPodcast, Serializable, Parcelable {
     }
 
     public Podcast setUrl(String urlIn) {
+        boolean changed = !equal(this.url, urlIn);
         this.url = urlIn;
+        if (changed) {
+            markDirty(Field.URL);
+        }
         return this;
     }
 
     @Override
     public void setTitle(String title) {
+        boolean changed = !equal(this.title, title);
         this.title = title;
+        if (changed) {
+            markDirty(Field.TITLE);
+        }
     }
 
     @Override
     public void setDescription(String description) {
+        boolean changed = !equal(this.description, description);
         this.description = description;
-
+        if (changed) {
+            markDirty(Field.DESCRIPTION);
+        }
     }
 
     @Override
     public void setLogoUrl(String logoUrl) {
+        boolean changed = !equal(this.logoUrl, logoUrl);
         this.logoUrl = logoUrl;
+        if (changed) {
+            markDirty(Field.LOGO_URL);
+        }
     }
 
     public long getId() {
@@ -170,7 +158,11 @@ public class Podcast implements IPodcast, Serializable, Parcelable {
     }
 
     public Podcast setLastUpdate(long lastUpdateIn) {
+        boolean changed = this.lastUpdate != lastUpdateIn;
         this.lastUpdate = lastUpdateIn;
+        if (changed) {
+            markDirty(Field.LAST_UPDATE);
+        }
         return this;
     }
 
@@ -179,10 +171,63 @@ public class Podcast implements IPodcast, Serializable, Parcelable {
     }
 
     public Podcast setLogoFilePath(String logoFilePathIn) {
+        boolean changed = !equal(this.logoFilePath, logoFilePathIn);
         this.logoFilePath = logoFilePathIn;
+        if (changed) {
+            markDirty(Field.LOGO_FILE_PATH);
+        }
         return this;
     }
 
+    /**
+     * Returns the fields which have been changed since the podcast was last
+     * stored and marks them as stored. The values have to be read after this
+     * call, so that a change made concurrently is either included or marks
+     * its field dirty again.
+     */
+    public synchronized Set<Field> takeDirtyFields() {
+        Set<Field> ret = EnumSet.copyOf(dirtyFields());
+        dirtyFields().clear();
+        return ret;
+    }
+
+    public synchronized boolean isDirty(Field field) {
+        return dirtyFields().contains(field);
+    }
+
+    /**
+     * Marks the given fields dirty again, e.g. after storing them failed.
+     */
+    public synchronized void markDirty(Collection<Field> fields) {
+        dirtyFields().addAll(fields);
+    }
+
+    /**
+     * Marks all fields as stored, e.g. after the podcast has been read from
+     * or inserted into the database.
+     */
+    public synchronized void markClean() {
+        dirtyFields().clear();
+    }
+
+    private synchronized void markDirty(Field field) {
+        dirtyFields().add(field);
+    }
+
+    /**
+     * The set is created lazily since it isn't serialized.
+     */
+    private EnumSet<Field> dirtyFields() {
+        if (dirty == null) {
+            dirty = EnumSet.noneOf(Field.class);
+        }
+        return dirty;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
     @Override
     public int describeContents() {
         return 0;
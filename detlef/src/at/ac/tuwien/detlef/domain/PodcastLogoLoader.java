@@ -0,0 +1,474 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.domain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+import at.ac.tuwien.detlef.R;
+
+/**
+ * Loads the logos of podcasts from the files downloaded by
+ * {@link PodcastPersistence}. Logos are decoded on background threads,
+ * downsampled to the size they are displayed at, and kept in a memory cache
+ * bounded by the size of the decoded bitmaps. The cache is keyed by podcast
+ * id and logo path, so that it is shared by all instances of a podcast.
+ *
+ * Since logos may be several megapixels large, the downsampled logos are also
+ * stored as thumbnails in a cache directory. They are created once after a
+ * logo has been downloaded, see {@link #createThumbnails(Podcast)}, or when a
+ * logo is first needed at a size without a thumbnail, and are decoded instead
+ * of the original from then on.
+ *
+ * Views are bound with the placeholder logo first, which is swapped for the
+ * actual logo once it has been decoded, unless the view has been bound to
+ * another podcast in the meantime. All bind methods must be called from the
+ * UI thread.
+ */
+public class PodcastLogoLoader {
+
+    private static final String TAG = PodcastLogoLoader.class.getName();
+
+    /** The size logos are decoded at unless the view tells otherwise. */
+    public static final int DEFAULT_SIZE_PX = 80;
+
+    /**
+     * The sizes thumbnails are created at right after a logo has been
+     * downloaded. The list rows and the player currently all display logos
+     * at the default size.
+     */
+    private static final int[] THUMBNAIL_SIZES = {
+        DEFAULT_SIZE_PX
+    };
+
+    /** The share of the heap used for decoded logos. */
+    private static final int CACHE_HEAP_FRACTION = 8;
+
+    private static final int DECODE_THREADS = 2;
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private final Resources resources;
+    private final File thumbnailDir;
+    private final Drawable placeholder;
+    private final LruCache<String, Bitmap> cache;
+
+    /** Keys of logos which could not be decoded, so they aren't tried again. */
+    private final Set<String> broken = Collections.synchronizedSet(new HashSet<String>());
+
+    private final ThreadPoolExecutor decodeBg;
+    private final Handler ui = new Handler(Looper.getMainLooper());
+
+    /* The following are only accessed from the UI thread. The key of the logo
+     * each view is waiting for, and the views waiting for each key. */
+
+    private final Map<View, String> bound = new WeakHashMap<View, String>();
+    private final Map<String, List<Target>> waiting = new HashMap<String, List<Target>>();
+
+    /**
+     * @param resources The resources the placeholder is loaded from.
+     * @param thumbnailDir The directory thumbnails are stored in. It is
+     *            created if necessary.
+     */
+    public PodcastLogoLoader(Resources resources, File thumbnailDir) {
+        this.resources = resources;
+        this.thumbnailDir = thumbnailDir;
+        placeholder = resources.getDrawable(R.drawable.ic_feed_icon);
+
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION,
+                                      Integer.MAX_VALUE);
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        decodeBg = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, THREAD_KEEP_ALIVE_S,
+                                          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        decodeBg.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Where a logo is displayed.
+     */
+    private abstract static class Target {
+        private final View view;
+
+        Target(View view) {
+            this.view = view;
+        }
+
+        abstract void setLogo(Drawable logo);
+    }
+
+    /**
+     * Displays the logo of the podcast in the image view.
+     */
+    public void bind(final ImageView view, Podcast podcast) {
+        bind(new Target(view) {
+            @Override
+            void setLogo(Drawable logo) {
+                view.setImageDrawable(logo);
+            }
+        }, podcast, sizeOf(view));
+    }
+
+    /**
+     * Displays the logo of the podcast above the text of the text view.
+     */
+    public void bindTop(final TextView view, Podcast podcast) {
+        bind(new Target(view) {
+            @Override
+            void setLogo(Drawable logo) {
+                view.setCompoundDrawablesWithIntrinsicBounds(null, logo, null, null);
+            }
+        }, podcast, DEFAULT_SIZE_PX);
+    }
+
+    private void bind(Target target, Podcast podcast, int size) {
+        final String key = key(podcast, size);
+        if (key == null) {
+            bound.remove(target.view);
+            target.setLogo(placeholder);
+            return;
+        }
+
+        Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            bound.remove(target.view);
+            target.setLogo(new BitmapDrawable(resources, bitmap));
+            return;
+        }
+
+        bound.put(target.view, key);
+        target.setLogo(placeholder);
+
+        if (broken.contains(key)) {
+            return;
+        }
+
+        List<Target> targets = waiting.get(key);
+        if (targets != null) {
+            targets.add(target);
+            return;
+        }
+
+        targets = new ArrayList<Target>();
+        targets.add(target);
+        waiting.put(key, targets);
+
+        final long id = podcast.getId();
+        final String path = podcast.getLogoFilePath();
+        final int decodeSize = size;
+        decodeBg.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap decoded = decodeAndCache(key, id, path, decodeSize);
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(key, decoded);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(String key, Bitmap bitmap) {
+        List<Target> targets = waiting.remove(key);
+        if (targets == null) {
+            return;
+        }
+
+        for (Target target : targets) {
+            if (!key.equals(bound.get(target.view))) {
+                /* Bound to another podcast in the meantime. */
+                continue;
+            }
+
+            bound.remove(target.view);
+            if (bitmap != null) {
+                target.setLogo(new BitmapDrawable(resources, bitmap));
+            }
+        }
+    }
+
+    /**
+     * Returns the logo of the podcast right away, decoding it on the calling
+     * thread if it isn't cached. Prefer the bind methods on the UI thread.
+     *
+     * @return The logo, or the placeholder if the podcast has none.
+     */
+    public Drawable getLogo(Podcast podcast) {
+        String key = key(podcast, DEFAULT_SIZE_PX);
+        if (key == null) {
+            return placeholder;
+        }
+
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null && !broken.contains(key)) {
+            bitmap = decodeAndCache(key, podcast.getId(), podcast.getLogoFilePath(),
+                                    DEFAULT_SIZE_PX);
+        }
+
+        return (bitmap == null) ? placeholder : new BitmapDrawable(resources, bitmap);
+    }
+
+    /**
+     * Replaces the cached logos and thumbnails of the podcast with ones of its
+     * newly downloaded logo file. The thumbnails are created in the
+     * background.
+     */
+    public void createThumbnails(Podcast podcast) {
+        invalidate(podcast);
+
+        final long id = podcast.getId();
+        final String path = podcast.getLogoFilePath();
+        if (path == null) {
+            return;
+        }
+
+        decodeBg.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeThumbnails(id, path);
+            }
+        });
+    }
+
+    /**
+     * Drops all cached logos and thumbnails of the podcast, e.g. because its
+     * logo file has been deleted.
+     */
+    public void invalidate(Podcast podcast) {
+        String prefix = podcast.getId() + ":";
+        for (String key : cache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                cache.remove(key);
+            }
+        }
+        synchronized (broken) {
+            for (String key : new ArrayList<String>(broken)) {
+                if (key.startsWith(prefix)) {
+                    broken.remove(key);
+                }
+            }
+        }
+
+        File[] thumbnails = thumbnailDir.listFiles();
+        if (thumbnails == null) {
+            return;
+        }
+
+        String filePrefix = podcast.getId() + "-";
+        for (File thumbnail : thumbnails) {
+            if (thumbnail.getName().startsWith(filePrefix)) {
+                thumbnail.delete();
+            }
+        }
+    }
+
+    /**
+     * Decodes the logo from its thumbnail if there is an up to date one,
+     * and from the logo file otherwise, in which case the thumbnail is
+     * created. A thumbnail is only up to date if it is strictly newer than
+     * the logo, since file times may only have a resolution of seconds and a
+     * logo replaced within the same second must not keep its old thumbnail.
+     */
+    private Bitmap decodeAndCache(String key, long id, String path, int size) {
+        File thumbnail = thumbnailFile(id, size);
+        Bitmap bitmap = null;
+        if (thumbnail.lastModified() > new File(path).lastModified()) {
+            bitmap = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
+        }
+
+        if (bitmap == null) {
+            bitmap = decode(path, size);
+            if (bitmap != null) {
+                writeThumbnail(thumbnail, bitmap);
+            }
+        }
+
+        if (bitmap == null) {
+            Log.w(TAG, String.format("Could not decode logo %s", path));
+            broken.add(key);
+        } else {
+            cache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Creates the thumbnails of all {@link #THUMBNAIL_SIZES}, decoding the
+     * logo file only once.
+     */
+    private void writeThumbnails(long id, String path) {
+        int maxSize = 0;
+        for (int size : THUMBNAIL_SIZES) {
+            maxSize = Math.max(maxSize, size);
+        }
+
+        Bitmap largest = decode(path, maxSize);
+        if (largest == null) {
+            Log.w(TAG, String.format("Could not decode logo %s", path));
+            return;
+        }
+
+        for (int size : THUMBNAIL_SIZES) {
+            Bitmap thumbnail = (size == maxSize) ? largest
+                               : Bitmap.createScaledBitmap(largest, size, size, true);
+            writeThumbnail(thumbnailFile(id, size), thumbnail);
+            if (thumbnail != largest) {
+                thumbnail.recycle();
+            }
+        }
+        largest.recycle();
+    }
+
+    /**
+     * Writes the thumbnail to a temporary file first, so that a concurrent
+     * decode never sees a partially written thumbnail.
+     */
+    private void writeThumbnail(File file, Bitmap bitmap) {
+        if (!thumbnailDir.isDirectory() && !thumbnailDir.mkdirs()) {
+            Log.w(TAG, String.format("Could not create %s", thumbnailDir));
+            return;
+        }
+
+        File tmp = new File(thumbnailDir, file.getName() + ".tmp"
+                            + Thread.currentThread().getId());
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                out.close();
+                out = null;
+                if (tmp.renameTo(file)) {
+                    return;
+                }
+            }
+            Log.w(TAG, String.format("Could not write thumbnail %s", file));
+        } catch (IOException ex) {
+            Log.e(TAG, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    /* Nothing to do. */
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    File thumbnailFile(long id, int size) {
+        return new File(thumbnailDir, String.format("%d-%d.png", id, size));
+    }
+
+    /**
+     * @return The key of the podcast's logo at the given size, null if the
+     *         podcast has no logo.
+     */
+    private static String key(Podcast podcast, int size) {
+        if (podcast == null || podcast.getLogoFilePath() == null) {
+            return null;
+        }
+        return String.format("%d:%d:%s", podcast.getId(), size, podcast.getLogoFilePath());
+    }
+
+    private static int sizeOf(ImageView view) {
+        ViewGroup.LayoutParams lp = view.getLayoutParams();
+        if (lp != null && lp.width > 0 && lp.height > 0) {
+            return Math.max(lp.width, lp.height);
+        }
+        return DEFAULT_SIZE_PX;
+    }
+
+    /**
+     * Decodes the image file, downsampled while decoding as far as possible
+     * and then scaled to size x size pixels.
+     *
+     * @return The decoded image, null if the file could not be decoded.
+     */
+    static Bitmap decode(String path, int size) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize(opts.outWidth, opts.outHeight, size);
+        Bitmap sampled = BitmapFactory.decodeFile(path, opts);
+        if (sampled == null) {
+            return null;
+        }
+
+        if (sampled.getWidth() == size && sampled.getHeight() == size) {
+            return sampled;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, size, size, true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return The largest power of two the image can be downsampled by
+     *         while decoding without getting smaller than size in either
+     *         dimension.
+     */
+    static int sampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -76,6 +76,8 @@ public final class PodcastPersistence {
             file.delete();
             podcast.setLogoFilePath(null);
         }
+
+        Singletons.i().getPodcastLogoLoader().invalidate(podcast);
     }
 
     private static DetlefDownloadManager getDownloadManager() {
@@ -126,6 +128,7 @@ public final class PodcastPersistence {
         @Override
         public void onFinish(Uri uri) {
             podcast.setLogoFilePath(uri.getPath());
+            Singletons.i().getPodcastLogoLoader().createThumbnails(podcast);
             Singletons.i().getPodcastDAO().update(podcast);
         }
 
@@ -160,6 +163,11 @@ public final class PodcastPersistence {
             return DownloadManager.Request.VISIBILITY_HIDDEN;
         }
 
+        @Override
+        public int getAllowedNetworkTypes() {
+            return DownloadManager.Request.NETWORK_WIFI | DownloadManager.Request.NETWORK_MOBILE;
+        }
+
         @Override
         public Object getObject() {
             return podcast;
@@ -73,6 +73,7 @@ public class DetlefDownloadManager {
         request.setTitle(callback.getTitle());
         request.setDescription(callback.getDescription());
         request.setNotificationVisibility(callback.getNotificationVisibility());
+        request.setAllowedNetworkTypes(callback.getAllowedNetworkTypes());
 
         long id = downloadManager.enqueue(request);
         activeDownloads.put(id, callback);
@@ -177,6 +178,12 @@ public class DetlefDownloadManager {
         String getTitle();
         String getDescription();
         int getNotificationVisibility();
+
+        /**
+         * @return The DownloadManager.Request.NETWORK_* flags of the networks
+         *         the download may use.
+         */
+        int getAllowedNetworkTypes();
         Object getObject();
     }
 }
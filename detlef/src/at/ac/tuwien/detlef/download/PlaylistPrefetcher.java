@@ -0,0 +1,330 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.StatFs;
+import android.util.Log;
+import at.ac.tuwien.detlef.Detlef;
+import at.ac.tuwien.detlef.db.EpisodeDAO;
+import at.ac.tuwien.detlef.db.PlaylistDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.domain.EpisodePersistence;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Action;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Decision;
+
+/**
+ * Downloads the upcoming playlist episodes ahead of playback, so that they are
+ * played from the device instead of being streamed. Which episodes are
+ * downloaded is decided by a {@link PrefetchPolicy} whenever the playlist,
+ * the playback position or the settings change. Prefetches of episodes which
+ * leave the playlist are cancelled, while episodes which just move further
+ * down keep downloading. Downloads started by the user are never touched.
+ *
+ * The decisions are made on a background thread, and the latest ones are
+ * available through {@link #getDecisions()}.
+ */
+public class PlaylistPrefetcher implements PlaylistDAO.OnPlaylistChangeListener,
+    EpisodeDAO.OnEpisodeChangeListener, SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = PlaylistPrefetcher.class.getName();
+
+    private static final String KEY_PREFIX = "prefetch_";
+
+    /**
+     * Starts and cancels downloads and reports the space left for them.
+     */
+    public interface Downloader {
+        /**
+         * @param wifiOnly Whether the download may only use Wi-Fi. It waits
+         *            for a Wi-Fi connection otherwise.
+         */
+        void download(Episode episode, boolean wifiOnly) throws IOException;
+
+        void cancel(Episode episode);
+
+        /**
+         * @return The free space where episodes are downloaded to, or -1 if
+         *         the storage isn't available.
+         */
+        long getFreeBytes();
+    }
+
+    /**
+     * Downloads through {@link EpisodePersistence} to the external music
+     * directory.
+     */
+    public static final Downloader EPISODE_PERSISTENCE_DOWNLOADER = new Downloader() {
+        @Override
+        public void download(Episode episode, boolean wifiOnly) throws IOException {
+            EpisodePersistence.download(episode, wifiOnly);
+        }
+
+        @Override
+        public void cancel(Episode episode) {
+            EpisodePersistence.cancelDownload(episode);
+        }
+
+        @Override
+        public long getFreeBytes() {
+            if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+                return -1;
+            }
+            File dir = Detlef.getAppContext().getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+            if (dir == null) {
+                return -1;
+            }
+            StatFs stat = new StatFs(dir.getPath());
+            return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        }
+    };
+
+    private final PlaylistDAO playlistDAO;
+    private final Downloader downloader;
+    private final ExecutorService updateBg = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean updatePending = new AtomicBoolean(false);
+
+    /** The prefetches started and not finished yet, by episode id. */
+    private final Map<Long, Episode> started = new ConcurrentHashMap<Long, Episode>();
+
+    /** Serializes updates, which start downloads and may take a while. */
+    private final Object updateLock = new Object();
+
+    /** The episodes not to prefetch again, guarded by updateLock. */
+    private final Set<Long> failed = new HashSet<Long>();
+
+    /* The following fields are guarded by this, which is only held briefly
+     * so that the main thread never waits for an update. */
+
+    private PrefetchPolicy policy;
+    private int position = 0;
+    private Episode playing;
+    private List<Decision> decisions = Collections.emptyList();
+
+    public PlaylistPrefetcher(PlaylistDAO playlistDAO, Downloader downloader,
+                              PrefetchPolicy policy) {
+        this.playlistDAO = playlistDAO;
+        this.downloader = downloader;
+        this.policy = policy;
+    }
+
+    public synchronized PrefetchPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(PrefetchPolicy policy) {
+        synchronized (this) {
+            this.policy = policy;
+        }
+        schedule();
+    }
+
+    /**
+     * Tells the prefetcher where playback is.
+     *
+     * @param position The playlist position of the episode being played or to
+     *            be played next.
+     * @param playing The episode being played, null if there is none.
+     */
+    public void setPlaybackState(int position, Episode playing) {
+        synchronized (this) {
+            if ((this.position == position) && (this.playing == playing)) {
+                return;
+            }
+            this.position = position;
+            this.playing = playing;
+        }
+        schedule();
+    }
+
+    /**
+     * @return The decisions of the latest update, in playlist order,
+     *         preceded by the cancellations.
+     */
+    public synchronized List<Decision> getDecisions() {
+        return decisions;
+    }
+
+    /**
+     * Updates the prefetches on the background thread. Calls made while an
+     * update is pending are coalesced.
+     */
+    public void schedule() {
+        if (!updatePending.compareAndSet(false, true)) {
+            return;
+        }
+        updateBg.execute(new Runnable() {
+            @Override
+            public void run() {
+                updatePending.set(false);
+                update();
+            }
+        });
+    }
+
+    /**
+     * Updates the prefetches on the calling thread.
+     *
+     * @return The decisions made.
+     */
+    public List<Decision> update() {
+        synchronized (updateLock) {
+            PrefetchPolicy policy;
+            int position;
+            Episode playing;
+            synchronized (this) {
+                policy = this.policy;
+                position = this.position;
+                playing = this.playing;
+            }
+
+            List<Decision> ret = update(policy, position, playing);
+            synchronized (this) {
+                decisions = ret;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Must be called while holding updateLock.
+     */
+    private List<Decision> update(PrefetchPolicy policy, int position, Episode playing) {
+        List<Episode> playlist = playlistDAO.getEpisodes();
+        Set<Long> inPlaylist = new HashSet<Long>();
+        for (Episode episode : playlist) {
+            inPlaylist.add(episode.getId());
+        }
+
+        List<Decision> ret = new ArrayList<Decision>();
+
+        /* Forget finished prefetches. Those which failed or have been
+         * cancelled by the user aren't retried while the episode stays in
+         * the playlist. */
+
+        Iterator<Episode> it = started.values().iterator();
+        while (it.hasNext()) {
+            Episode episode = it.next();
+            if (episode.getStorageState() == StorageState.DOWNLOADED) {
+                it.remove();
+            } else if (episode.getStorageState() == StorageState.NOT_ON_DEVICE) {
+                it.remove();
+                failed.add(episode.getId());
+            } else if (!inPlaylist.contains(episode.getId())) {
+                it.remove();
+                downloader.cancel(episode);
+                ret.add(new Decision(episode, Action.CANCEL));
+            }
+        }
+        failed.retainAll(inPlaylist);
+
+        for (Decision decision : policy.decide(playlist, position, playing, failed,
+                                               downloader.getFreeBytes())) {
+            if (decision.getAction() == Action.DOWNLOAD) {
+                Episode episode = decision.getEpisode();
+                try {
+                    downloader.download(episode, policy.isWifiOnly());
+                    started.put(episode.getId(), episode);
+                } catch (IOException e) {
+                    Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+                    failed.add(episode.getId());
+                    decision = new Decision(episode, Action.FAILED);
+                }
+            }
+            ret.add(decision);
+        }
+
+        for (Decision decision : ret) {
+            Log.d(TAG, decision.toString());
+        }
+
+        return Collections.unmodifiableList(ret);
+    }
+
+    @Override
+    public void onPlaylistEpisodeAdded(int position, Episode episode) {
+        schedule();
+    }
+
+    @Override
+    public void onPlaylistEpisodePositionChanged(int firstPosition, int secondPosition) {
+        schedule();
+    }
+
+    @Override
+    public void onPlaylistEpisodeRemoved(int position) {
+        schedule();
+    }
+
+    @Override
+    public void onEpisodeChanged(Episode episode) {
+
+        /* Only the end of a prefetch is of interest, not e.g. every play
+         * position written. */
+
+        if (started.containsKey(episode.getId())
+                && (episode.getStorageState() != StorageState.DOWNLOADING)) {
+            schedule();
+        }
+    }
+
+    @Override
+    public void onEpisodesChanged(List<Episode> episodes) {
+        for (Episode episode : episodes) {
+            onEpisodeChanged(episode);
+        }
+    }
+
+    @Override
+    public void onEpisodeAdded(Episode episode) {
+        /* New episodes aren't in the playlist yet. */
+    }
+
+    @Override
+    public void onEpisodesAdded(List<Episode> episodes) {
+        /* New episodes aren't in the playlist yet. */
+    }
+
+    @Override
+    public void onEpisodeDeleted(Episode episode) {
+        started.remove(episode.getId());
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (key.startsWith(KEY_PREFIX)) {
+            setPolicy(PrefetchPolicy.fromPreferences(prefs));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Episode.StorageState;
+
+/**
+ * Decides which of the upcoming playlist episodes are downloaded ahead of
+ * playback. The next maxEpisodes episodes are considered in playlist order,
+ * and downloads are started for as long as the episodes held ahead of
+ * playback fit into maxBytes and at least minFreeBytes remain free on the
+ * storage. Prefetching is off by default, and only uses Wi-Fi unless told
+ * otherwise.
+ */
+public final class PrefetchPolicy {
+
+    public static final int DEFAULT_MAX_EPISODES = 0;
+
+    public static final long DEFAULT_MAX_MB = 500;
+
+    public static final long DEFAULT_MIN_FREE_MB = 250;
+
+    public static final boolean DEFAULT_WIFI_ONLY = true;
+
+    public static final String KEY_MAX_EPISODES = "prefetch_episodes";
+
+    public static final String KEY_MAX_MB = "prefetch_max_mb";
+
+    public static final String KEY_MIN_FREE_MB = "prefetch_min_free_mb";
+
+    public static final String KEY_WIFI_ONLY = "prefetch_wifi_only";
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * What is done about an upcoming episode.
+     */
+    public enum Action {
+        /** A download of the episode is started. */
+        DOWNLOAD,
+        /** The episode is being downloaded already. */
+        DOWNLOADING,
+        /** The episode is stored on the device already. */
+        DOWNLOADED,
+        /** The episode is being played, and thereby cached, from its stream. */
+        STREAMING,
+        /** An earlier prefetch of the episode failed or was cancelled. */
+        FAILED,
+        /** The episode doesn't fit into maxBytes. */
+        OVER_BYTE_BUDGET,
+        /** The episode would leave less than minFreeBytes free. */
+        OVER_STORAGE_BUDGET,
+        /** The episode has left the playlist, so its prefetch is cancelled. */
+        CANCEL
+    }
+
+    /**
+     * The action decided for a single episode.
+     */
+    public static final class Decision {
+        private final Episode episode;
+        private final Action action;
+
+        public Decision(Episode episode, Action action) {
+            this.episode = episode;
+            this.action = action;
+        }
+
+        public Episode getEpisode() {
+            return episode;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d (%s)", action, episode.getId(), episode.getTitle());
+        }
+    }
+
+    private final int maxEpisodes;
+    private final long maxBytes;
+    private final long minFreeBytes;
+    private final boolean wifiOnly;
+
+    public PrefetchPolicy(int maxEpisodes, long maxBytes, long minFreeBytes) {
+        this(maxEpisodes, maxBytes, minFreeBytes, DEFAULT_WIFI_ONLY);
+    }
+
+    public PrefetchPolicy(int maxEpisodes, long maxBytes, long minFreeBytes,
+                          boolean wifiOnly) {
+        this.maxEpisodes = maxEpisodes;
+        this.maxBytes = maxBytes;
+        this.minFreeBytes = minFreeBytes;
+        this.wifiOnly = wifiOnly;
+    }
+
+    /**
+     * Reads the limits from the settings, falling back to the defaults for
+     * those which are missing or invalid.
+     */
+    public static PrefetchPolicy fromPreferences(SharedPreferences prefs) {
+        return new PrefetchPolicy(
+                   (int) getLong(prefs, KEY_MAX_EPISODES, DEFAULT_MAX_EPISODES),
+                   getLong(prefs, KEY_MAX_MB, DEFAULT_MAX_MB) * MB,
+                   getLong(prefs, KEY_MIN_FREE_MB, DEFAULT_MIN_FREE_MB) * MB,
+                   getBoolean(prefs, KEY_WIFI_ONLY, DEFAULT_WIFI_ONLY));
+    }
+
+    /* The settings are edited as text. */
+
+    private static long getLong(SharedPreferences prefs, String key, long defaultValue) {
+        try {
+            long value = Long.parseLong(prefs.getString(key, Long.toString(defaultValue)).trim());
+            return (value < 0) ? defaultValue : value;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        } catch (ClassCastException e) {
+            return defaultValue;
+        }
+    }
+
+    private static boolean getBoolean(SharedPreferences prefs, String key,
+                                      boolean defaultValue) {
+        try {
+            return prefs.getBoolean(key, defaultValue);
+        } catch (ClassCastException e) {
+            return defaultValue;
+        }
+    }
+
+    public int getMaxEpisodes() {
+        return maxEpisodes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMinFreeBytes() {
+        return minFreeBytes;
+    }
+
+    /**
+     * @return Whether prefetches may only be downloaded over Wi-Fi.
+     */
+    public boolean isWifiOnly() {
+        return wifiOnly;
+    }
+
+    /**
+     * Decides about the episodes following position in the playlist.
+     *
+     * @param playlist The playlist.
+     * @param position The position of the episode being played or to be
+     *            played next.
+     * @param playing The episode being played, may be null.
+     * @param failed The ids of episodes which are not to be prefetched again.
+     * @param freeBytes The free space on the storage, or -1 if it isn't
+     *            available.
+     * @return A decision for each distinct episode considered, in playlist
+     *         order.
+     */
+    public List<Decision> decide(List<Episode> playlist, int position, Episode playing,
+                                 Set<Long> failed, long freeBytes) {
+        if (maxEpisodes <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Decision> decisions = new ArrayList<Decision>(maxEpisodes);
+        Set<Long> seen = new HashSet<Long>();
+        long heldBytes = 0;
+
+        /* Once an episode doesn't fit, later ones aren't downloaded ahead of
+         * it even if they would. */
+
+        Action blocked = null;
+
+        for (int i = Math.max(position, 0); (i < playlist.size()) && (seen.size() < maxEpisodes);
+                i++) {
+            Episode episode = playlist.get(i);
+            if (!seen.add(episode.getId())) {
+                continue;
+            }
+
+            Action action;
+            if (episode.getStorageState() == StorageState.DOWNLOADED) {
+                heldBytes += episode.getFileSize();
+                action = Action.DOWNLOADED;
+            } else if (episode.getStorageState() == StorageState.DOWNLOADING) {
+                heldBytes += episode.getFileSize();
+                action = Action.DOWNLOADING;
+            } else if (episode == playing) {
+                action = Action.STREAMING;
+            } else if (failed.contains(episode.getId())) {
+                action = Action.FAILED;
+            } else if (blocked != null) {
+                action = blocked;
+            } else if (heldBytes + episode.getFileSize() > maxBytes) {
+                blocked = Action.OVER_BYTE_BUDGET;
+                action = blocked;
+            } else if ((freeBytes < 0) || (freeBytes - episode.getFileSize() < minFreeBytes)) {
+                blocked = Action.OVER_STORAGE_BUDGET;
+                action = blocked;
+            } else {
+                heldBytes += episode.getFileSize();
+                freeBytes -= episode.getFileSize();
+                action = Action.DOWNLOAD;
+            }
+            decisions.add(new Decision(episode, action));
+        }
+
+        return decisions;
+    }
+}
@@ -0,0 +1,290 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/**
+ * A file caching arbitrary byte ranges of a remote resource. The cached ranges
+ * are kept in an index file next to the data file, so that a partially cached
+ * resource survives restarts. The index is discarded if it belongs to another
+ * source url.
+ */
+public class SparseCacheFile {
+
+    private static final String TAG = SparseCacheFile.class.getName();
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File file;
+    private final File index;
+    private final String source;
+    private final RandomAccessFile data;
+
+    /* The following fields are guarded by this. */
+
+    /** Maps the start of each cached range to its end (exclusive). */
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+    private long length = -1;
+    private boolean dirty = false;
+
+    /**
+     * Opens the cache file, creating it if it doesn't exist yet.
+     *
+     * @param file The data file.
+     * @param source The url of the cached resource.
+     */
+    public SparseCacheFile(File file, String source) throws IOException {
+        this.file = file;
+        this.index = getIndexFile(file);
+        this.source = source;
+
+        file.getParentFile().mkdirs();
+        data = new RandomAccessFile(file, "rw");
+
+        if (!readIndex()) {
+            data.setLength(0);
+            index.delete();
+        }
+    }
+
+    /**
+     * @return The index file belonging to the given data file.
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The length of the resource, or -1 if it isn't known yet.
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    public synchronized void setLength(long length) {
+        if (this.length != length) {
+            this.length = length;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return The number of bytes cached contiguously from offset on.
+     */
+    public synchronized long getCachedFrom(long offset) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(offset);
+        if ((range == null) || (range.getValue() <= offset)) {
+            return 0;
+        }
+        return range.getValue() - offset;
+    }
+
+    /**
+     * @return The start of the first cached range after offset, or -1 if
+     *         there is none.
+     */
+    public synchronized long getNextCached(long offset) {
+        Long next = ranges.higherKey(offset);
+        return (next == null) ? -1 : next;
+    }
+
+    /**
+     * @return The number of cached bytes.
+     */
+    public synchronized long getCachedBytes() {
+        long bytes = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            bytes += range.getValue() - range.getKey();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Whether the whole resource is cached.
+     */
+    public synchronized boolean isComplete() {
+        return (length >= 0) && (getCachedFrom(0) >= length);
+    }
+
+    /**
+     * Reads cached bytes starting at offset.
+     *
+     * @return The number of bytes read, which is 0 if the byte at offset isn't
+     *         cached.
+     */
+    public synchronized int read(long offset, byte[] buffer, int bufferOffset, int count)
+    throws IOException {
+        int n = (int) Math.min(count, getCachedFrom(offset));
+        if (n == 0) {
+            return 0;
+        }
+        data.seek(offset);
+        data.readFully(buffer, bufferOffset, n);
+        return n;
+    }
+
+    /**
+     * Caches the given bytes of the resource starting at offset.
+     */
+    public synchronized void write(long offset, byte[] buffer, int bufferOffset, int count)
+    throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        data.seek(offset);
+        data.write(buffer, bufferOffset, count);
+        addRange(offset, offset + count);
+        dirty = true;
+    }
+
+    private void addRange(long start, long end) {
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if ((before != null) && (before.getValue() >= start)) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            ranges.remove(before.getKey());
+        }
+
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+        while ((after != null) && (after.getKey() <= end)) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+    }
+
+    /**
+     * Writes the index if anything has been cached since it was last written.
+     * The index is replaced atomically, so that a crash leaves the previous
+     * one in place.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        File tmp = new File(index.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(source);
+            out.writeLong(length);
+            out.writeInt(ranges.size());
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(index)) {
+            tmp.delete();
+            throw new IOException("could not replace " + index.getPath());
+        }
+        dirty = false;
+    }
+
+    /**
+     * Flushes the index and closes the data file.
+     */
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        try {
+            data.close();
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    /**
+     * Closes the data file and deletes the index, leaving just the data file.
+     * Only meaningful once the resource is complete.
+     */
+    public synchronized void closeComplete() {
+        try {
+            data.close();
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        index.delete();
+    }
+
+    /**
+     * @return Whether the index belongs to the source and has been read.
+     */
+    private boolean readIndex() {
+        if (!index.exists()) {
+            return false;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(index)));
+            try {
+                if ((in.readInt() != INDEX_VERSION) || !in.readUTF().equals(source)) {
+                    return false;
+                }
+                length = in.readLong();
+                int count = in.readInt();
+                long fileLength = data.length();
+                for (int i = 0; i < count; i++) {
+                    long start = in.readLong();
+                    long end = Math.min(in.readLong(), fileLength);
+                    if (start < end) {
+                        ranges.put(start, end);
+                    }
+                }
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+            ranges.clear();
+            length = -1;
+            return false;
+        }
+    }
+}
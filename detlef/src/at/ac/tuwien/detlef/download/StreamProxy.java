@@ -0,0 +1,619 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.net.Uri;
+import android.util.Log;
+import at.ac.tuwien.detlef.Detlef;
+
+/**
+ * A loopback HTTP server standing in for the remote url of a streamed episode.
+ * Every byte streamed through it is also written to a {@link SparseCacheFile}
+ * per episode, and requested ranges which are already cached are served from
+ * there, so that replaying, seeking back and resuming don't download anything
+ * again. Once an episode is cached completely, it is handed to the
+ * {@link OnStreamCachedListener}.
+ */
+public class StreamProxy implements Runnable {
+
+    private static final String TAG = StreamProxy.class.getName();
+
+    /** The default space taken by partially cached streams. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int CLIENT_TIMEOUT_MS = 10000;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private static final Pattern REQUEST_LINE = Pattern.compile("(GET|HEAD) /(\\d+) HTTP/1\\.[01]");
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    /**
+     * Called on a connection thread once a stream has been cached completely.
+     */
+    public interface OnStreamCachedListener {
+        /**
+         * @param id The id the stream has been registered with.
+         * @param file The complete file, which may be moved.
+         * @return The location of the file after it has been moved, or null if
+         *         the file has been left in place.
+         */
+        File onStreamCached(long id, File file);
+    }
+
+    private final File dir;
+    private final long maxCacheBytes;
+    private final OnStreamCachedListener listener;
+    private final ServerSocket socket;
+    private final ThreadPoolExecutor connectionBg;
+
+    /** The registered streams, guarded by itself. */
+    private final Map<Long, Stream> streams = new HashMap<Long, Stream>();
+
+    /**
+     * Starts the proxy on a free port of the loopback interface.
+     *
+     * @param dir The directory holding the cache files.
+     * @param maxCacheBytes The space partially cached streams may take
+     *            before the least recently used ones are deleted.
+     * @param listener Notified about completely cached streams, may be null.
+     */
+    public StreamProxy(File dir, long maxCacheBytes, OnStreamCachedListener listener)
+    throws IOException {
+        this.dir = dir;
+        this.maxCacheBytes = maxCacheBytes;
+        this.listener = listener;
+
+        dir.mkdirs();
+        socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+
+        /* The media player may open several connections at once, and each
+         * of them blocks a thread for as long as it is open. */
+
+        connectionBg = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEP_ALIVE_S,
+                                              TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+        Thread t = new Thread(this, TAG);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Registers a stream with the proxy.
+     *
+     * @param id Identifies the stream and its cache file, e.g. the episode id.
+     * @param url The remote url of the stream.
+     * @param contentType The content type announced to the player, may be
+     *            null.
+     * @return The url under which the proxy serves the stream.
+     */
+    public Uri getUri(long id, String url, String contentType) {
+        synchronized (streams) {
+            Stream stream = streams.get(id);
+            if ((stream == null) || !stream.url.equals(url)) {
+                streams.put(id, new Stream(id, url, contentType));
+            }
+        }
+        return Uri.parse(String.format("http://127.0.0.1:%d/%d", socket.getLocalPort(), id));
+    }
+
+    /**
+     * Stops accepting connections and waits a while for running ones to
+     * finish.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* Nothing to do. */
+        }
+        connectionBg.shutdown();
+        try {
+            connectionBg.awaitTermination(CLIENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                connectionBg.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.e(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        Stream stream = null;
+        try {
+            client.setSoTimeout(CLIENT_TIMEOUT_MS);
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+
+            Matcher request = REQUEST_LINE.matcher(readLine(in));
+            long rangeStart = -1;
+            long rangeEnd = -1;
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                if (!line.toLowerCase().startsWith("range:")) {
+                    continue;
+                }
+                Matcher range = RANGE.matcher(line.substring(6).trim());
+                if (range.matches()) {
+                    rangeStart = Long.parseLong(range.group(1));
+                    rangeEnd = (range.group(2).length() == 0) ? -1 : Long.parseLong(range.group(2));
+                }
+            }
+
+            if (!request.matches()) {
+                writeStatus(out, "400 Bad Request");
+                return;
+            }
+
+            stream = acquire(Long.parseLong(request.group(2)));
+            if (stream == null) {
+                writeStatus(out, "404 Not Found");
+                return;
+            }
+
+            client.setSoTimeout(0);
+            boolean head = request.group(1).equals("HEAD");
+            if (stream.complete != null) {
+                serveFile(stream, rangeStart, rangeEnd, head, out);
+            } else {
+                serveCache(stream, rangeStart, rangeEnd, head, out);
+            }
+        } catch (IOException e) {
+
+            /* Mostly the player closing a connection it doesn't need any more. */
+
+            Log.d(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* Nothing to do. */
+            }
+            if (stream != null) {
+                release(stream);
+            }
+        }
+    }
+
+    /**
+     * Serves a stream which isn't complete yet, from its cache where possible
+     * and from the remote url otherwise.
+     */
+    private void serveCache(Stream stream, long rangeStart, long rangeEnd, boolean head,
+                            OutputStream out) throws IOException {
+        SparseCacheFile cache = stream.cache;
+        long pos = Math.max(rangeStart, 0);
+        Upstream upstream = null;
+        try {
+
+            /* The length is needed for the response headers. */
+
+            if ((cache.getLength() < 0) || ((cache.getCachedFrom(pos) == 0) && !head)) {
+                upstream = new Upstream(stream.url, pos);
+                if (upstream.length >= 0) {
+                    cache.setLength(upstream.length);
+                }
+            }
+
+            long length = cache.getLength();
+            if ((length >= 0) && (pos >= length) && (pos > 0)) {
+                writeStatus(out, "416 Requested Range Not Satisfiable");
+                return;
+            }
+
+            long end = (length < 0) ? Long.MAX_VALUE : length;
+            if ((rangeEnd >= 0) && (rangeEnd < end)) {
+                end = rangeEnd + 1;
+            }
+
+            writeHeaders(out, stream, rangeStart >= 0, pos, end, length);
+            if (head) {
+                return;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (pos < end) {
+                int count = (int) Math.min(buffer.length, end - pos);
+
+                int n = cache.read(pos, buffer, 0, count);
+                if (n > 0) {
+
+                    /* Don't keep downloading what is cached already. */
+
+                    if (upstream != null) {
+                        upstream.close();
+                        upstream = null;
+                    }
+                } else {
+                    if (upstream == null) {
+                        upstream = new Upstream(stream.url, pos);
+                    }
+
+                    /* Stop at the next cached range, it is served from the cache. */
+
+                    long next = cache.getNextCached(pos);
+                    if (next > pos) {
+                        count = (int) Math.min(count, next - pos);
+                    }
+
+                    n = upstream.read(buffer, 0, count);
+                    if (n < 0) {
+                        if (length < 0) {
+                            cache.setLength(pos);
+                            break;
+                        }
+                        throw new IOException("stream " + stream.id + " ended early at " + pos);
+                    }
+                    cache.write(pos, buffer, 0, n);
+                }
+
+                out.write(buffer, 0, n);
+                pos += n;
+            }
+            out.flush();
+        } finally {
+            if (upstream != null) {
+                upstream.close();
+            }
+            cache.flush();
+        }
+    }
+
+    /**
+     * Serves a stream whose file is complete.
+     */
+    private void serveFile(Stream stream, long rangeStart, long rangeEnd, boolean head,
+                           OutputStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(stream.complete, "r");
+        try {
+            long length = file.length();
+            long pos = Math.max(rangeStart, 0);
+            if ((pos >= length) && (pos > 0)) {
+                writeStatus(out, "416 Requested Range Not Satisfiable");
+                return;
+            }
+
+            long end = length;
+            if ((rangeEnd >= 0) && (rangeEnd < end)) {
+                end = rangeEnd + 1;
+            }
+
+            writeHeaders(out, stream, rangeStart >= 0, pos, end, length);
+            if (head) {
+                return;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            file.seek(pos);
+            while (pos < end) {
+                int n = file.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                pos += n;
+            }
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, Stream stream, boolean partial, long start,
+                                     long end, long length) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        if (partial && (length >= 0)) {
+            headers.append("HTTP/1.1 206 Partial Content\r\n");
+            headers.append(String.format("Content-Range: bytes %d-%d/%d\r\n", start, end - 1,
+                                         length));
+        } else {
+            headers.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (end != Long.MAX_VALUE) {
+            headers.append(String.format("Content-Length: %d\r\n", end - start));
+        }
+        headers.append(String.format("Content-Type: %s\r\n", stream.contentType));
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(String.format("HTTP/1.1 %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+                                status).getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("connection closed during request");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Opens the cache of the stream for another connection.
+     *
+     * @return The stream, or null if it isn't registered.
+     */
+    private Stream acquire(long id) throws IOException {
+        synchronized (streams) {
+            Stream stream = streams.get(id);
+            if (stream == null) {
+                return null;
+            }
+            while (stream.moving) {
+                try {
+                    streams.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            }
+            if ((stream.complete != null) && !stream.complete.isFile()) {
+
+                /* The file has been deleted since, cache it again. */
+
+                stream.complete = null;
+            }
+            if ((stream.complete == null) && (stream.cache == null)) {
+                trim();
+                stream.cache = new SparseCacheFile(new File(dir, Long.toString(id)), stream.url);
+            }
+            stream.connections++;
+            return stream;
+        }
+    }
+
+    /**
+     * Closes the cache of the stream once its last connection is done, and
+     * hands it to the listener if it is complete. The listener is called
+     * without holding the lock on streams, since moving the file and storing
+     * the episode may take a while.
+     */
+    private void release(Stream stream) {
+        SparseCacheFile cache;
+        synchronized (streams) {
+            stream.connections--;
+            if ((stream.connections > 0) || (stream.cache == null)) {
+                return;
+            }
+            cache = stream.cache;
+            stream.cache = null;
+
+            if (!cache.isComplete()) {
+                cache.close();
+                return;
+            }
+
+            /* Keep further connections waiting until the file has been moved. */
+
+            cache.closeComplete();
+            stream.moving = true;
+        }
+
+        File file = cache.getFile();
+        File moved = null;
+        try {
+            moved = (listener == null) ? null : listener.onStreamCached(stream.id, file);
+        } finally {
+            synchronized (streams) {
+                stream.complete = (moved == null) ? file : moved;
+                stream.moving = false;
+                streams.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used cache files of streams without
+     * connections until the others fit into maxCacheBytes. Called with
+     * streams locked.
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> data = new ArrayList<File>();
+        long total = 0;
+        for (File f : files) {
+            if (f.getName().matches("\\d+")) {
+                data.add(f);
+                total += f.length();
+            }
+        }
+        if (total <= maxCacheBytes) {
+            return;
+        }
+
+        File[] sorted = data.toArray(new File[data.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        for (File f : sorted) {
+            if (total <= maxCacheBytes) {
+                break;
+            }
+            Stream stream = streams.get(Long.parseLong(f.getName()));
+            if ((stream != null) && ((stream.cache != null) || stream.moving)) {
+                continue;
+            }
+            total -= f.length();
+            f.delete();
+            SparseCacheFile.getIndexFile(f).delete();
+        }
+    }
+
+    private static final class Stream {
+        private final long id;
+        private final String url;
+        private final String contentType;
+
+        /* The following fields are guarded by streams. */
+
+        private SparseCacheFile cache;
+        private File complete;
+        private boolean moving = false;
+        private int connections = 0;
+
+        private Stream(long id, String url, String contentType) {
+            this.id = id;
+            this.url = url;
+            this.contentType = (contentType == null) ? DEFAULT_CONTENT_TYPE : contentType;
+        }
+    }
+
+    /**
+     * A request of the remote url from a given offset on.
+     */
+    private static final class Upstream {
+        private final HttpURLConnection connection;
+        private final InputStream in;
+
+        /** The length of the whole resource, or -1 if unknown. */
+        private final long length;
+
+        private Upstream(String url, long offset) throws IOException {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("User-Agent", Detlef.USER_AGENT);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", String.format("bytes=%d-", offset));
+            }
+
+            int code = connection.getResponseCode();
+            long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                Matcher range = CONTENT_RANGE.matcher(nullToEmpty(
+                        connection.getHeaderField("Content-Range")));
+                length = range.matches() ? Long.parseLong(range.group(1))
+                         : ((contentLength < 0) ? -1 : offset + contentLength);
+                in = connection.getInputStream();
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                length = contentLength;
+                in = connection.getInputStream();
+
+                /* The server ignored the range. */
+
+                long skipped = 0;
+                while (skipped < offset) {
+                    long n = in.skip(offset - skipped);
+                    if (n <= 0) {
+                        close();
+                        throw new IOException("could not skip to " + offset + " in " + url);
+                    }
+                    skipped += n;
+                }
+            } else {
+                connection.disconnect();
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+        }
+
+        private int read(byte[] buffer, int offset, int count) throws IOException {
+            return in.read(buffer, offset, count);
+        }
+
+        private void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                /* Nothing to do. */
+            }
+            connection.disconnect();
+        }
+
+        private static long parseLong(String s) {
+            try {
+                return (s == null) ? -1 : Long.parseLong(s.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static String nullToEmpty(String s) {
+            return (s == null) ? "" : s;
+        }
+    }
+}
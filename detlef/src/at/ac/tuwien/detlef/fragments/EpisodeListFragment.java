@@ -19,6 +19,7 @@ package at.ac.tuwien.detlef.fragments;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -32,6 +33,7 @@ import android.view.LayoutInflater;
 import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import at.ac.tuwien.detlef.R;
 import at.ac.tuwien.detlef.Singletons;
@@ -50,6 +52,7 @@ import at.ac.tuwien.detlef.filter.KeywordFilter;
 import at.ac.tuwien.detlef.filter.NewFilter;
 import at.ac.tuwien.detlef.filter.PodcastFilter;
 import at.ac.tuwien.detlef.models.EpisodeListModel;
+import at.ac.tuwien.detlef.models.PagedEpisodeListModel;
 import at.ac.tuwien.detlef.settings.GpodderSettings;
 import at.ac.tuwien.detlef.util.GUIUtils;
 
@@ -65,7 +68,21 @@ public class EpisodeListFragment extends ListFragment
 
     private static final long ID_NONE = -1;
 
+    /* The paged model keeps at most PAGE_SIZE * MAX_PAGES episodes and moves on
+     * by one page whenever the list is scrolled to within PAGE_THRESHOLD items
+     * of either end. */
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 4;
+    private static final int PAGE_THRESHOLD = 10;
+
     private EpisodeListModel model;
+
+    /** Same as model while the list is paged, null otherwise. */
+    private PagedEpisodeListModel pagedModel;
+
+    private int lastFirstVisible = 0;
+
     private EpisodeListAdapter adapter;
     private FilterChain filter = new FilterChain();
     private Podcast filteredByPodcast = null;
@@ -106,18 +123,121 @@ public class EpisodeListFragment extends ListFragment
         playlistDAO = Singletons.i().getPlaylistDAO();
         playlistDAO.addPlaylistChangedListener(this);
 
-        List<Episode> eplist = dao.getAllEpisodes();
-        model = new EpisodeListModel(eplist);
+        createModel();
 
         adapter = new EpisodeListAdapter(getActivity(),
                                          android.R.layout.simple_list_item_1,
-                                         new ArrayList<Episode>(eplist));
+                                         new ArrayList<Episode>(model.getAll()));
         setListAdapter(adapter);
 
         restoreSortOrder();
         restoreFilter(savedInstanceState);
     }
 
+    /**
+     * Episodes are paged in from the database if they are listed newest
+     * first, which is the order the release date index provides, and no
+     * filter is active. All other orders need all episodes in memory, and so
+     * does filtering: a page holds too few matches to fill the list, and
+     * matches outside the current window would never be shown.
+     */
+    private boolean isPaged() {
+        GpodderSettings s = Singletons.i().getGpodderSettings();
+        return s.getSortChoice() == EpisodeSortChoice.ReleaseDate && !s.isAscending()
+               && filter.countFilters() == 0;
+    }
+
+    /**
+     * (Re-)creates the model for the current sort order. A paged model starts
+     * out with the page of the newest episodes.
+     */
+    private void createModel() {
+        EpisodeDAO dao = Singletons.i().getEpisodeDAO();
+        if (isPaged()) {
+            pagedModel = new PagedEpisodeListModel(dao, PAGE_SIZE, MAX_PAGES);
+            pagedModel.loadOlder();
+            model = pagedModel;
+        } else {
+            pagedModel = null;
+            model = new EpisodeListModel(new ArrayList<Episode>(dao.getAllEpisodes()));
+        }
+        lastFirstVisible = 0;
+    }
+
+    /**
+     * Moves the window of a paged model back to the newest episodes, or
+     * switches between a paged and a complete model, e.g. after the filter
+     * has changed.
+     */
+    private void resetPaging() {
+        if (pagedModel != null || isPaged()) {
+            createModel();
+            if (getView() != null) {
+                setSelection(0);
+            }
+        }
+    }
+
+    /**
+     * Moves the paged model on by one page when the list is scrolled close to
+     * either end of it.
+     */
+    private final AbsListView.OnScrollListener pagingListener =
+    new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            // not of interest here
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                             int totalItemCount) {
+            if (pagedModel == null) {
+                return;
+            }
+
+            /* Only page in the direction the list is moving, so that a list
+             * which is too short to scroll doesn't page back and forth. */
+
+            boolean up = firstVisibleItem < lastFirstVisible;
+            lastFirstVisible = firstVisibleItem;
+
+            if (!up && pagedModel.hasOlder()
+                    && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_THRESHOLD) {
+                loadPage(true);
+            } else if (up && pagedModel.hasNewer() && firstVisibleItem <= PAGE_THRESHOLD) {
+                loadPage(false);
+            }
+        }
+    };
+
+    /**
+     * Loads the next older or newer page and keeps the first visible episode
+     * where it is on screen.
+     */
+    private void loadPage(boolean older) {
+        ListView list = getListView();
+        int first = list.getFirstVisiblePosition();
+        Episode anchor = (first < adapter.getCount()) ? adapter.getItem(first) : null;
+        View firstView = list.getChildAt(0);
+        int top = (firstView == null) ? 0 : firstView.getTop();
+
+        boolean loaded = older ? pagedModel.loadOlder() : pagedModel.loadNewer();
+        if (!loaded) {
+            return;
+        }
+
+        refresh();
+
+        if (anchor != null) {
+            int position = adapter.getPosition(anchor);
+            if (position >= 0) {
+                lastFirstVisible = position;
+                list.setSelectionFromTop(position, top);
+            }
+        }
+    }
+
     /**
      * Restores the {@link EpisodeFilter episode filters}, e.g. after the screen
      * has been rotated.
@@ -153,6 +273,7 @@ public class EpisodeListFragment extends ListFragment
     public void onActivityCreated(Bundle savedState) {
         super.onActivityCreated(savedState);
         registerForContextMenu(getListView());
+        getListView().setOnScrollListener(pagingListener);
 
         /* Restore selected podcast. */
 
@@ -217,6 +338,9 @@ public class EpisodeListFragment extends ListFragment
         }
 
         filteredByPodcast = podcast;
+        if (selectionChanged) {
+            resetPaging();
+        }
         filterByPodcast();
 
         /* Scroll to the top of the list. */
@@ -263,6 +387,11 @@ public class EpisodeListFragment extends ListFragment
         updateEpisodeList();
     }
 
+    @Override
+    public void onEpisodesChanged(List<Episode> episodes) {
+        updateEpisodeList();
+    }
+
     @Override
     public void onEpisodeAdded(final Episode episode) {
         Activity activity = getActivity();
@@ -270,6 +399,8 @@ public class EpisodeListFragment extends ListFragment
             return;
         }
 
+        adapter.prepare(Collections.singletonList(episode));
+
         activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -279,6 +410,28 @@ public class EpisodeListFragment extends ListFragment
         filterByPodcastOnUiThread();
     }
 
+    @Override
+    public void onEpisodesAdded(final List<Episode> episodes) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        /* Render the new descriptions while the episodes are being added. */
+
+        adapter.prepare(episodes);
+
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Episode episode : episodes) {
+                    model.addEpisode(episode);
+                }
+            }
+        });
+        filterByPodcastOnUiThread();
+    }
+
     @Override
     public void onEpisodeDeleted(final Episode episode) {
         Activity activity = getActivity();
@@ -414,7 +567,12 @@ public class EpisodeListFragment extends ListFragment
      * @param newText The keyword to search for.
      */
     public void setKeyword(String newText) {
-        filter.putEpisodeFilter(new KeywordFilter().setKeyword(newText));
+        if (newText.isEmpty()) {
+            filter.removeEpisodeFilter(new KeywordFilter());
+        } else {
+            filter.putEpisodeFilter(new KeywordFilter().setKeyword(newText));
+        }
+        resetPaging();
         refresh();
     }
 
@@ -422,6 +580,10 @@ public class EpisodeListFragment extends ListFragment
      * Refreshes the episode list view.
      */
     public void refresh() {
+        if (isPaged() != (pagedModel != null)) {
+            createModel();
+        }
+
         adapter.clear();
 
         List<Episode> filteredEpisodes = new ArrayList<Episode>();
@@ -468,6 +630,7 @@ public class EpisodeListFragment extends ListFragment
         } else {
             getFilter().removeEpisodeFilter(new NewFilter());
         }
+        resetPaging();
         refresh();
     }
 
@@ -17,6 +17,7 @@
 
 package at.ac.tuwien.detlef.fragments;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
@@ -446,7 +447,7 @@ public class PlayerFragment extends Fragment implements PlaylistDAO.OnPlaylistCh
             seekBar.setProgress(0);
             seekBar.setSecondaryProgress(0);
             setNotPlayingSeekBarAndTime(ep);
-            podcastIcon.setImageDrawable(ep.getPodcast().getLogoIcon());
+            Singletons.i().getPodcastLogoLoader().bind(podcastIcon, ep.getPodcast());
         }
 
         return this;
@@ -562,11 +563,21 @@ public class PlayerFragment extends Fragment implements PlaylistDAO.OnPlaylistCh
         // during playback, I'll just ignore this
     }
 
+    @Override
+    public void onEpisodesChanged(List<Episode> episodes) {
+        // see onEpisodeChanged
+    }
+
     @Override
     public void onEpisodeAdded(Episode episode) {
         // thankfully I can be totally indifferent about this
     }
 
+    @Override
+    public void onEpisodesAdded(List<Episode> episodes) {
+        // same as above
+    }
+
     @Override
     public void onEpisodeDeleted(final Episode episode) {
         Activity activity = getActivity();
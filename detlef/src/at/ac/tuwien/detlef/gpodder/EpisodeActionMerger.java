@@ -0,0 +1,184 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.ac.tuwien.detlef.domain.Episode.ActionState;
+
+import com.dragontek.mygpoclient.api.EpisodeAction;
+
+/**
+ * Decides which downloaded episode actions are applied, the last writer wins.
+ * The latest action of an episode determines its action state, and its latest
+ * play action its play position. Downloaded actions which are not newer than
+ * an action of the same episode still waiting in the local log are ignored,
+ * since the local state reflects a later change.
+ */
+public final class EpisodeActionMerger {
+
+    private EpisodeActionMerger() {
+        /* Non-instantiable. */
+    }
+
+    /**
+     * The changes to apply to a single episode.
+     */
+    public static final class Merged {
+        private final String episode;
+        private EpisodeAction last;
+        private EpisodeAction lastPlay;
+
+        private Merged(String episode) {
+            this.episode = episode;
+        }
+
+        /**
+         * @return The url or guid of the episode, as sent by gpodder.net.
+         */
+        public String getEpisode() {
+            return episode;
+        }
+
+        /**
+         * @return The new action state, null if it is kept.
+         */
+        public ActionState getActionState() {
+            if (last == null) {
+                return null;
+            }
+            if (last.action.equals("play")) {
+                return ActionState.PLAY;
+            } else if (last.action.equals("download")) {
+                return ActionState.DOWNLOAD;
+            } else if (last.action.equals("delete")) {
+                return ActionState.DELETE;
+            }
+            return ActionState.NEW;
+        }
+
+        /**
+         * @return The new play position in milliseconds, null if it is kept.
+         */
+        public Integer getPlayPosition() {
+            if (lastPlay == null || lastPlay.position == null) {
+                return null;
+            }
+
+            /* Episode uses milliseconds. */
+            return lastPlay.position * 1000;
+        }
+
+        /**
+         * @return The play action the play position is taken from, null if
+         *         it is kept.
+         */
+        public EpisodeAction getPlayAction() {
+            return lastPlay;
+        }
+    }
+
+    /**
+     * @param remote The downloaded actions, in the order of the server.
+     * @param local The actions which are still in the local log.
+     * @return The changes per episode, for each episode with at least one
+     *         change.
+     */
+    public static List<Merged> merge(List<? extends EpisodeAction> remote,
+                                     List<? extends EpisodeAction> local) {
+        Map<String, EpisodeAction> lastLocal = new HashMap<String, EpisodeAction>();
+        Map<String, EpisodeAction> lastLocalPlay = new HashMap<String, EpisodeAction>();
+        for (EpisodeAction action : sortByTimestamp(local)) {
+            lastLocal.put(action.episode, action);
+            if (action.action.equals("play")) {
+                lastLocalPlay.put(action.episode, action);
+            }
+        }
+
+        Map<String, Merged> merged = new LinkedHashMap<String, Merged>();
+        for (EpisodeAction action : sortByTimestamp(remote)) {
+            boolean state = isNewer(action, lastLocal.get(action.episode));
+            boolean play = action.action.equals("play")
+                           && isNewer(action, lastLocalPlay.get(action.episode));
+            if (!state && !play) {
+                continue;
+            }
+
+            Merged m = merged.get(action.episode);
+            if (m == null) {
+                m = new Merged(action.episode);
+                merged.put(action.episode, m);
+            }
+            if (state) {
+                m.last = action;
+            }
+            if (play) {
+                m.lastPlay = action;
+            }
+        }
+
+        return new ArrayList<Merged>(merged.values());
+    }
+
+    /**
+     * @return true if there is no local action, or the action is newer.
+     */
+    private static boolean isNewer(EpisodeAction action, EpisodeAction local) {
+        return local == null || compareTimestamps(action.timestamp, local.timestamp) > 0;
+    }
+
+    /**
+     * @return The actions in chronological order. Actions without a
+     *         timestamp come first, otherwise the given order is kept.
+     */
+    static List<EpisodeAction> sortByTimestamp(List<? extends EpisodeAction> actions) {
+        List<EpisodeAction> sorted = new ArrayList<EpisodeAction>(actions);
+        Collections.sort(sorted, new Comparator<EpisodeAction>() {
+            @Override
+            public int compare(EpisodeAction lhs, EpisodeAction rhs) {
+                return compareTimestamps(lhs.timestamp, rhs.timestamp);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Compares timestamps in UTC, as sent by gpodder.net (ISO 8601) or stored
+     * in the local log (SQLite's datetime(), a space instead of the T). These
+     * sort lexicographically once the separator is the same. A missing
+     * timestamp is older than any other.
+     */
+    static int compareTimestamps(String lhs, String rhs) {
+        if (lhs == null || rhs == null) {
+            return (lhs == null ? 0 : 1) - (rhs == null ? 0 : 1);
+        }
+        return normalize(lhs).compareTo(normalize(rhs));
+    }
+
+    private static String normalize(String timestamp) {
+        String ret = timestamp.replace(' ', 'T');
+        return ret.endsWith("Z") ? ret.substring(0, ret.length() - 1) : ret;
+    }
+}
@@ -0,0 +1,293 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+import at.ac.tuwien.detlef.Detlef;
+import at.ac.tuwien.detlef.R;
+import at.ac.tuwien.detlef.Singletons;
+import at.ac.tuwien.detlef.domain.FeedUpdate;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.settings.GpodderSettings;
+
+/**
+ * Refreshes the feeds of a number of podcasts concurrently. Feeds are
+ * requested in batches of up to batchSize feeds per request, and at most
+ * maxParallel requests run at the same time. The feeds of each response are
+ * handed to a single writer thread as soon as it arrives, so database writes
+ * never run concurrently and never wait for the slowest request.
+ *
+ * For every podcast exactly one success or failure event is sent to the
+ * callback once its feed has been stored, which lets the receiver report
+ * progress per podcast.
+ */
+public class FeedRefreshScheduler {
+
+    private static final String TAG = FeedRefreshScheduler.class.getName();
+
+    private static final int GENERIC_ERROR = -1;
+
+    /**
+     * Retrieves feeds. Called concurrently from the fetch threads.
+     */
+    public interface FeedFetcher {
+        /**
+         * Retrieves the feeds of the given podcasts with a single request.
+         *
+         * @return The changes of the podcasts' feeds in the order of podcasts, null
+         *         for each feed which could not be retrieved.
+         * @throws IOException If the request failed.
+         */
+        List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException;
+    }
+
+    /**
+     * Stores a retrieved feed. Only ever called from the writer thread.
+     */
+    public interface FeedWriter {
+        /**
+         * @throws IOException If the feed could not be stored. A failure event
+         *             is sent for the podcast then.
+         */
+        void store(Podcast podcast, FeedUpdate feed) throws IOException;
+    }
+
+    /**
+     * Fetches feeds through the configured feed service, see
+     * {@link FeedStore#fetchFeeds(List)}.
+     */
+    public static final FeedFetcher FEED_SERVICE_FETCHER = new FeedFetcher() {
+        @Override
+        public List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException {
+            return FeedStore.fetchFeeds(podcasts);
+        }
+    };
+
+    /**
+     * Writes feeds to the database, see
+     * {@link FeedStore#storeFeed(Podcast, FeedUpdate)}.
+     */
+    public static final FeedWriter DATABASE_WRITER = new FeedWriter() {
+        @Override
+        public void store(Podcast podcast, FeedUpdate feed) throws IOException {
+            FeedStore.storeFeed(podcast, feed);
+        }
+    };
+
+    private final FeedFetcher fetcher;
+    private final FeedWriter writer;
+
+    /** Whether the limits are read from the settings on every refresh. */
+    private final boolean limitsFromSettings;
+
+    private final ExecutorService fetchBg = Executors.newCachedThreadPool();
+    private final ExecutorService writeBg = Executors.newSingleThreadExecutor();
+
+    /* The following fields are guarded by pending. */
+
+    private final LinkedList<Job> pending = new LinkedList<Job>();
+    private int running = 0;
+    private int maxParallel;
+    private int batchSize;
+
+    /**
+     * Creates a scheduler fetching from the feed service and writing to the
+     * database, with the limits taken from the
+     * {@link at.ac.tuwien.detlef.settings.GpodderSettings} at the start of
+     * every refresh.
+     */
+    public FeedRefreshScheduler() {
+        this.fetcher = FEED_SERVICE_FETCHER;
+        this.writer = DATABASE_WRITER;
+        this.limitsFromSettings = true;
+    }
+
+    /**
+     * @param fetcher Retrieves the feeds.
+     * @param writer Stores the retrieved feeds.
+     * @param maxParallel The maximum number of requests running at the same time.
+     * @param batchSize The maximum number of feeds retrieved with one request.
+     */
+    public FeedRefreshScheduler(FeedFetcher fetcher, FeedWriter writer, int maxParallel,
+                                int batchSize) {
+        this.fetcher = fetcher;
+        this.writer = writer;
+        this.limitsFromSettings = false;
+        setLimits(maxParallel, batchSize);
+    }
+
+    /**
+     * Changes the limits. Requests which are running already are not
+     * affected, the new limits apply to the requests started from now on.
+     *
+     * @see #FeedRefreshScheduler(FeedFetcher, FeedWriter, int, int)
+     */
+    public void setLimits(int maxParallel, int batchSize) {
+        if (maxParallel < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Limits must be at least 1");
+        }
+
+        synchronized (pending) {
+            this.maxParallel = maxParallel;
+            this.batchSize = batchSize;
+        }
+    }
+
+    /**
+     * Queues the feeds of all given podcasts for refresh. Returns immediately.
+     *
+     * @param podcasts The podcasts to refresh.
+     * @param callback Receives one event per podcast once its feed has been
+     *            stored or has failed.
+     */
+    public void refresh(Collection<Podcast> podcasts, NoDataResultHandler<?> callback) {
+        if (limitsFromSettings) {
+            GpodderSettings settings = Singletons.i().getGpodderSettings();
+            setLimits(settings.getMaxParallelFeedRefreshes(),
+                      settings.getFeedRefreshBatchSize());
+        }
+
+        /* A batch is requested with the oldest last update of its podcasts, so
+         * batch podcasts with similar last updates to keep responses small. */
+
+        List<Podcast> sorted = new ArrayList<Podcast>(podcasts);
+        Collections.sort(sorted, new Comparator<Podcast>() {
+            @Override
+            public int compare(Podcast lhs, Podcast rhs) {
+                long l = lhs.getLastUpdate();
+                long r = rhs.getLastUpdate();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        synchronized (pending) {
+            for (int i = 0; i < sorted.size(); i += batchSize) {
+                List<Podcast> batch = sorted.subList(i, Math.min(i + batchSize, sorted.size()));
+                pending.add(new Job(new ArrayList<Podcast>(batch), callback));
+            }
+
+            schedule();
+        }
+    }
+
+    /**
+     * Stops all threads of this scheduler. Queued feeds are dropped.
+     */
+    public void shutdown() {
+        synchronized (pending) {
+            pending.clear();
+        }
+
+        fetchBg.shutdownNow();
+        writeBg.shutdown();
+    }
+
+    /**
+     * Starts as many pending jobs as the limit allows. Must be called while
+     * holding the lock on pending.
+     */
+    private void schedule() {
+        while (running < maxParallel && !pending.isEmpty()) {
+            running++;
+            fetchBg.execute(pending.removeFirst());
+        }
+    }
+
+    private void finished() {
+        synchronized (pending) {
+            running--;
+            schedule();
+        }
+    }
+
+    private final class Job implements Runnable {
+        private final List<Podcast> podcasts;
+        private final NoDataResultHandler<?> callback;
+
+        private Job(List<Podcast> podcasts, NoDataResultHandler<?> callback) {
+            this.podcasts = podcasts;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            List<FeedUpdate> feeds = null;
+            String err = null;
+            try {
+                feeds = fetcher.fetch(podcasts);
+            } catch (Exception e) {
+                Log.w(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+                err = (e.getLocalizedMessage() != null) ? e.getLocalizedMessage() : e.toString();
+            } finally {
+                finished();
+            }
+
+            if (feeds == null) {
+                for (int i = 0; i < podcasts.size(); i++) {
+                    sendError(err);
+                }
+                return;
+            }
+
+            final List<FeedUpdate> result = feeds;
+            writeBg.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < podcasts.size(); i++) {
+                        Podcast podcast = podcasts.get(i);
+                        FeedUpdate feed = result.get(i);
+                        if (feed == null) {
+                            String e = Detlef.getAppContext().getString(
+                                           R.string.failed_to_download_feed);
+                            sendError(String.format("%s: %s", podcast.getTitle(), e));
+                            continue;
+                        }
+
+                        try {
+                            writer.store(podcast, feed);
+                        } catch (Exception e) {
+                            Log.e(TAG, e.getMessage() != null ? e.getMessage() : e.toString());
+                            sendError(String.format("%s: %s", podcast.getTitle(),
+                                                    (e.getLocalizedMessage() != null)
+                                                    ? e.getLocalizedMessage() : e.toString()));
+                            continue;
+                        }
+
+                        callback.sendEvent(new NoDataResultHandler.NoDataSuccessEvent(callback));
+                    }
+                }
+            });
+        }
+
+        private void sendError(String errString) {
+            callback.sendEvent(new ResultHandler.GenericFailureEvent(
+                                   callback, GENERIC_ERROR, errString));
+        }
+    }
+}
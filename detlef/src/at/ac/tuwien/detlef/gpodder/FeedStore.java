@@ -0,0 +1,207 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import at.ac.tuwien.detlef.Detlef;
+import at.ac.tuwien.detlef.R;
+import at.ac.tuwien.detlef.Singletons;
+import at.ac.tuwien.detlef.db.EpisodeDAO;
+import at.ac.tuwien.detlef.db.PodcastDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.FeedUpdate;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.settings.GpodderSettings;
+
+import com.dragontek.mygpoclient.feeds.FeedServiceClient;
+import com.dragontek.mygpoclient.feeds.FeedServiceResponse;
+import com.dragontek.mygpoclient.feeds.IFeed;
+import com.google.gson.JsonParseException;
+
+/**
+ * Fetches feed changes from the feed service and stores them. Used by
+ * {@link FeedRefreshScheduler}, which does the threading.
+ */
+public final class FeedStore {
+
+    private FeedStore() {
+        /* Non-instantiable. */
+    }
+
+    /**
+     * Retrieves the feeds of several podcasts with a single request to the
+     * feed service. The request asks for all changes since the oldest last
+     * update of the given podcasts, each {@link FeedUpdate} then only keeps
+     * the episodes which are new to its own podcast.
+     *
+     * @param podcasts The podcasts to fetch.
+     * @return The changes of the feeds, in the order of podcasts. An entry is
+     *         null if the feed service did not return the podcast's feed.
+     * @throws IOException If the request failed or could not be parsed.
+     */
+    static List<FeedUpdate> fetchFeeds(List<Podcast> podcasts) throws IOException {
+        /* Retrieve settings.*/
+        GpodderSettings gps = Singletons.i().getGpodderSettings();
+
+        String username = gps.getUsername();
+        String password = gps.getPassword();
+
+        FeedServiceClient fsc = new FeedServiceClient(
+            "http://" + gps.getFeedHostname(),
+            username,
+            password
+        );
+
+        return fetchFeeds(fsc, podcasts);
+    }
+
+    /**
+     * @param fsc The client of the feed service to ask.
+     * @see #fetchFeeds(List)
+     */
+    static List<FeedUpdate> fetchFeeds(FeedServiceClient fsc, List<Podcast> podcasts)
+        throws IOException {
+        String[] urls = new String[podcasts.size()];
+        long since = Long.MAX_VALUE;
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = podcasts.get(i).getUrl();
+            since = Math.min(since, podcasts.get(i).getLastUpdate());
+        }
+
+        try {
+            /* Get the feeds */
+            FeedServiceResponse fsr = fsc.parseFeeds(urls, since);
+            if (fsr == null) {
+                throw new IOException(
+                    Detlef.getAppContext().getString(R.string.failed_to_download_feed));
+            }
+
+            return splitResponse(podcasts, fsr);
+        } catch (JsonParseException e) {
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Assigns the feeds of a feed service response to the podcasts they were
+     * requested for. Feeds are matched by url. A feed whose url has changed
+     * (e.g. due to a redirect) is only assigned if it is the single feed left
+     * over after all other podcasts have been matched, so a feed missing from
+     * the response never hands another podcast's episodes to the wrong one.
+     *
+     * @param podcasts The podcasts in the order their urls were requested.
+     * @param feeds The feeds returned by the feed service.
+     * @return The changes of the feeds, in the order of podcasts. An entry is
+     *         null if no feed could be assigned to the podcast, i.e. the
+     *         podcast has not been updated.
+     */
+    static List<FeedUpdate> splitResponse(List<Podcast> podcasts, List<? extends IFeed> feeds) {
+        Map<String, IFeed> byUrl = new HashMap<String, IFeed>();
+        for (IFeed f : feeds) {
+            if (f.getUrl() != null) {
+                byUrl.put(f.getUrl(), f);
+            }
+        }
+
+        IFeed[] assigned = new IFeed[podcasts.size()];
+        Set<IFeed> unassigned = new HashSet<IFeed>(feeds);
+        int unmatched = -1;
+        int unmatchedCount = 0;
+        for (int i = 0; i < assigned.length; i++) {
+            assigned[i] = byUrl.get(podcasts.get(i).getUrl());
+            if (assigned[i] == null) {
+                unmatched = i;
+                unmatchedCount++;
+            } else {
+                unassigned.remove(assigned[i]);
+            }
+        }
+
+        if (unmatchedCount == 1 && feeds.size() == podcasts.size() && unassigned.size() == 1) {
+            assigned[unmatched] = unassigned.iterator().next();
+        }
+
+        List<FeedUpdate> result = new ArrayList<FeedUpdate>(assigned.length);
+        for (int i = 0; i < assigned.length; i++) {
+            result.add(assigned[i] == null ? null : new FeedUpdate(assigned[i], podcasts.get(i)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the episodes of a retrieved feed to the database and advances the
+     * podcast's last update timestamp.
+     *
+     * @param podcast The podcast the feed belongs to.
+     * @param feed The feed as returned by {@link #fetchFeeds(List)}.
+     * @throws IOException If the episodes could not be stored. The last update
+     *             timestamp is left alone then, so that the next refresh
+     *             retrieves the episodes again.
+     */
+    static void storeFeed(Podcast podcast, FeedUpdate feed) throws IOException {
+        storeFeed(Singletons.i().getEpisodeDAO(), Singletons.i().getPodcastDAO(), podcast, feed);
+    }
+
+    /**
+     * @see #storeFeed(Podcast, FeedUpdate)
+     */
+    static void storeFeed(EpisodeDAO edao, PodcastDAO pdao, Podcast podcast, FeedUpdate feed)
+        throws IOException {
+        upsertEpisodes(edao, podcast, feed);
+
+        /* Update last changed timestamp.*/
+        podcast.setLastUpdate(feed.getLastReleaseTime());
+        pdao.update(podcast);
+    }
+
+    private static void upsertEpisodes(EpisodeDAO dao, Podcast p, FeedUpdate feed)
+        throws IOException {
+        /* FeedUpdate has already dropped all episodes without an enclosure. Merge
+         * the remaining ones by guid/url so that episodes delivered again by the
+         * feed service are updated in place instead of being inserted twice. */
+
+        List<Episode> episodes = feed.getEpisodeList();
+        if (episodes.isEmpty()) {
+            return;
+        }
+
+        /* The episodes are stored in a single transaction, so a failure means
+         * that none of them has been stored. */
+
+        List<Episode> stored;
+        try {
+            stored = dao.upsertEpisodes(p, episodes);
+        } catch (RuntimeException ex) {
+            throw new IOException(ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
+
+        if (stored == null) {
+            throw new IOException(String.format("Storing %d episodes of %s failed",
+                                                episodes.size(), p.getTitle()));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.dragontek.mygpoclient.pub.PublicClient;
+import com.dragontek.mygpoclient.simple.IPodcast;
+
+/**
+ * Retrieves the details of podcasts from the gpodder.net public API. At most
+ * maxParallel requests run at the same time. A podcast which is requested
+ * again while its request is still running shares that request, and the
+ * details of a podcast are kept for cacheTtlMs after they have been
+ * retrieved.
+ */
+public class PodcastDetailsFetcher {
+
+    private static final String TAG = PodcastDetailsFetcher.class.getName();
+
+    /** The default maximum number of requests running at the same time. */
+    public static final int DEFAULT_MAX_PARALLEL = 8;
+
+    /** The default time details are cached for. */
+    public static final long DEFAULT_CACHE_TTL_MS = 5 * 60 * 1000;
+
+    private static final int MAX_CACHED = 1000;
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    /**
+     * Retrieves the details of a single podcast. Called concurrently from
+     * the fetch threads.
+     */
+    public interface DetailsSource {
+        /**
+         * @param hostname The host of the gpodder.net compatible API, null for
+         *            the default one.
+         * @param url The url of the podcast.
+         * @return The details of the podcast.
+         * @throws IOException If the request failed.
+         */
+        IPodcast getPodcastData(String hostname, String url) throws IOException;
+    }
+
+    /**
+     * Retrieves details through a {@link PublicClient}. A client is created for
+     * each request, since a client can't be used by several threads at once.
+     */
+    public static final DetailsSource PUBLIC_CLIENT_SOURCE = new DetailsSource() {
+        @Override
+        public IPodcast getPodcastData(String hostname, String url) throws IOException {
+            PublicClient pc = (hostname == null) ? new PublicClient() : new PublicClient(hostname);
+            return pc.getPodcastData(url);
+        }
+    };
+
+    private final DetailsSource source;
+    private final long cacheTtlMs;
+    private final ThreadPoolExecutor fetchBg;
+
+    /* The following fields are guarded by cache. */
+
+    private final Map<String, CachedDetails> cache =
+    new LinkedHashMap<String, CachedDetails>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedDetails> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private final Map<String, Future<IPodcast>> inFlight = new HashMap<String, Future<IPodcast>>();
+
+    /**
+     * Creates a fetcher using the {@link #PUBLIC_CLIENT_SOURCE} with the
+     * default limits.
+     */
+    public PodcastDetailsFetcher() {
+        this(PUBLIC_CLIENT_SOURCE, DEFAULT_MAX_PARALLEL, DEFAULT_CACHE_TTL_MS);
+    }
+
+    /**
+     * @param source Retrieves the details.
+     * @param maxParallel The maximum number of requests running at the same
+     *            time.
+     * @param cacheTtlMs How long retrieved details are handed out again
+     *            without a request.
+     */
+    public PodcastDetailsFetcher(DetailsSource source, int maxParallel, long cacheTtlMs) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1");
+        }
+
+        this.source = source;
+        this.cacheTtlMs = cacheTtlMs;
+
+        /* Idle threads time out, so that an idle fetcher doesn't keep any. */
+
+        fetchBg = new ThreadPoolExecutor(maxParallel, maxParallel, THREAD_KEEP_ALIVE_S,
+                                         TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        fetchBg.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Retrieves the details of all given podcasts concurrently and waits for
+     * them. Podcasts whose details could not be retrieved are left out.
+     *
+     * @param hostname The host of the gpodder.net compatible API, null for the
+     *            default one.
+     * @param urls The urls of the podcasts. Duplicates are requested once.
+     * @return The details in the order of urls.
+     */
+    public List<IPodcast> fetch(String hostname, Collection<String> urls) {
+        Map<String, Future<IPodcast>> futures = new LinkedHashMap<String, Future<IPodcast>>();
+        for (String url : new LinkedHashSet<String>(urls)) {
+            futures.put(url, submit(hostname, url));
+        }
+
+        List<IPodcast> ret = new ArrayList<IPodcast>(futures.size());
+        for (Map.Entry<String, Future<IPodcast>> entry : futures.entrySet()) {
+            try {
+                IPodcast podcast = entry.getValue().get();
+                if (podcast != null) {
+                    ret.add(podcast);
+                }
+            } catch (ExecutionException e) {
+                Log.w(TAG, "failed fetching details of podcast @ " + entry.getKey() + ": "
+                      + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The cached details, the running request for them or a newly
+     *         started one.
+     */
+    private Future<IPodcast> submit(final String hostname, final String url) {
+        final String key = hostname + " " + url;
+
+        synchronized (cache) {
+            CachedDetails cached = cache.get(key);
+            if (cached != null) {
+                if (System.currentTimeMillis() - cached.fetched < cacheTtlMs) {
+                    return done(cached.details);
+                }
+                cache.remove(key);
+            }
+
+            Future<IPodcast> running = inFlight.get(key);
+            if (running != null) {
+                return running;
+            }
+
+            Future<IPodcast> future = fetchBg.submit(new Callable<IPodcast>() {
+                @Override
+                public IPodcast call() throws IOException {
+                    IPodcast details = null;
+                    try {
+                        details = source.getPodcastData(hostname, url);
+                        return details;
+                    } finally {
+                        synchronized (cache) {
+                            inFlight.remove(key);
+                            if (details != null) {
+                                cache.put(key, new CachedDetails(details));
+                            }
+                        }
+                    }
+                }
+            });
+            inFlight.put(key, future);
+
+            return future;
+        }
+    }
+
+    private static Future<IPodcast> done(final IPodcast details) {
+        FutureTask<IPodcast> future = new FutureTask<IPodcast>(new Callable<IPodcast>() {
+            @Override
+            public IPodcast call() {
+                return details;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    private static final class CachedDetails {
+        private final IPodcast details;
+        private final long fetched = System.currentTimeMillis();
+
+        private CachedDetails(IPodcast details) {
+            this.details = details;
+        }
+    }
+}
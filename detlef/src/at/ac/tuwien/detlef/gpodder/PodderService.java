@@ -33,6 +33,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import at.ac.tuwien.detlef.Detlef;
+import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.EnhancedSubscriptionChanges;
 import at.ac.tuwien.detlef.domain.Podcast;
 import at.ac.tuwien.detlef.gpodder.plumbing.CachingCallbackProxy;
@@ -121,25 +122,16 @@ public class PodderService extends Service {
     }
 
     /**
-     * Fetches details about podcasts specified by the given URLs.
+     * Fetches details about podcasts specified by the given URLs, see
+     * {@link PodcastDetailsFetcher}.
      *
-     * @param pc The gpodder.net-compatible public API client.
+     * @param hostname The host of the gpodder.net-compatible public API.
      * @param urls URLs to fetch.
-     * @return
+     * @return The details of the podcasts which could be fetched.
      */
-    protected static ArrayList<IPodcast> fetchPodcastsDetails(PublicClient pc,
+    protected static List<IPodcast> fetchPodcastsDetails(String hostname,
             Collection<String> urls) {
-        ArrayList<IPodcast> ret = new ArrayList<IPodcast>(urls.size());
-        for (String url : urls) {
-            try {
-                IPodcast thePodcast = pc.getPodcastData(url);
-                ret.add(thePodcast);
-            } catch (IOException ioe) {
-                Log.w(TAG, "failed fetching details of podcast @ " + url + ": " + ioe.getMessage());
-                // don't add to list
-            }
-        }
-        return ret;
+        return Singletons.i().getPodcastDetailsFetcher().fetch(hostname, urls);
     }
 
     /**
@@ -276,9 +268,8 @@ public class PodderService extends Service {
                 SubscriptionChanges scs = cl.pullSubscriptions(cinfo.getDeviceId(), ts);
 
                 // get all the juicy details
-                PublicClient pc = new PublicClient(cinfo.getHostname());
-                List<IPodcast> added = fetchPodcastsDetails(pc, scs.add);
-                List<IPodcast> removed = fetchPodcastsDetails(pc, scs.remove);
+                List<IPodcast> added = fetchPodcastsDetails(cinfo.getHostname(), scs.add);
+                List<IPodcast> removed = fetchPodcastsDetails(cinfo.getHostname(), scs.remove);
                 EnhancedSubscriptionChanges esc = new EnhancedSubscriptionChanges(added, removed,
                         scs.timestamp);
 
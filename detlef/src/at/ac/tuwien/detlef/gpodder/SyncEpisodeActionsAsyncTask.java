@@ -34,7 +34,6 @@ import at.ac.tuwien.detlef.db.EpisodeActionDAO;
 import at.ac.tuwien.detlef.db.EpisodeDAO;
 import at.ac.tuwien.detlef.domain.DeviceId;
 import at.ac.tuwien.detlef.domain.Episode;
-import at.ac.tuwien.detlef.domain.Episode.ActionState;
 import at.ac.tuwien.detlef.domain.RemoteEpisodeAction;
 import at.ac.tuwien.detlef.settings.GpodderSettings;
 
@@ -76,21 +75,18 @@ public class SyncEpisodeActionsAsyncTask implements Runnable {
 
         EpisodeActionChanges changes = null;
         try {
-            /* Send our episode actions */
+            /* Send our episode actions, without the ones superseded by later
+             * actions. */
             EpisodeActionDAO eaDao = Singletons.i().getEpisodeActionDAO();
-            List<RemoteEpisodeAction> localChanges = eaDao.getAllEpisodeActions();
+            int compacted = eaDao.compactEpisodeActions();
 
-            List<EpisodeAction> sndLocalChanges = new ArrayList<EpisodeAction>(localChanges.size());
-            for (EpisodeAction a : localChanges) {
-                sndLocalChanges.add(a);
-            }
-
-            long since = gpc.uploadEpisodeActions(sndLocalChanges);
+            long since = uploadEpisodeActions(gpc, eaDao, gps.getEpisodeActionSyncBatchSize(),
+                                              Math.max(compacted, 0));
 
             /* Get episode actions. */
             changes = gpc.downloadEpisodeActions(gps.getLastEpisodeActionUpdate());
 
-            applyActionChanges(Detlef.getAppContext(), changes);
+            applyActionChanges(eaDao, changes);
 
             /* Sadly, changes.since is always 0, hence we can't use it to fetch new
              * episode actions. So we use the timestamp returned by the upload. */
@@ -124,38 +120,77 @@ public class SyncEpisodeActionsAsyncTask implements Runnable {
         callback.sendEvent(new ResultHandler.GenericFailureEvent(callback, 0, errString));
     }
 
-    private void applyActionChanges(Context context, EpisodeActionChanges changes) {
+    /**
+     * Uploads the local episode actions in pages of at most batchSize actions.
+     * Every page the server has acknowledged is deleted right away, so an
+     * interrupted sync continues with the remaining actions next time.
+     *
+     * @return The timestamp returned by the last upload.
+     */
+    private long uploadEpisodeActions(MygPodderClient gpc, EpisodeActionDAO eaDao,
+                                      int batchSize, int compacted)
+    throws IOException, AuthenticationException {
+        int flushed = 0;
+
+        /* The first page is uploaded even if it is empty, since the upload
+         * tells us the server time. */
+
+        List<RemoteEpisodeAction> page = eaDao.getEpisodeActions(0, batchSize);
+        long since = gpc.uploadEpisodeActions(new ArrayList<EpisodeAction>(page));
+
+        while (!page.isEmpty()) {
+            if (eaDao.flushEpisodeActions(page)) {
+                flushed += page.size();
+            }
+
+            long lastId = page.get(page.size() - 1).getId();
+            page = eaDao.getEpisodeActions(lastId, batchSize);
+            if (!page.isEmpty()) {
+                since = gpc.uploadEpisodeActions(new ArrayList<EpisodeAction>(page));
+            }
+        }
+
+        Log.i(TAG, String.format("Removed %d episode actions: %d superseded, %d uploaded",
+                                 compacted + flushed, compacted, flushed));
+
+        return since;
+    }
+
+    /**
+     * Applies the downloaded episode actions in a single transaction, see
+     * {@link EpisodeActionMerger}.
+     */
+    private void applyActionChanges(EpisodeActionDAO eaDao, EpisodeActionChanges changes) {
+        List<EpisodeActionMerger.Merged> merged =
+            EpisodeActionMerger.merge(changes.actions, eaDao.getAllEpisodeActions());
+
         EpisodeDAO dao = Singletons.i().getEpisodeDAO();
+        List<Episode> episodes = new ArrayList<Episode>(merged.size());
 
-        for (EpisodeAction action : changes.actions) {
-            // update playposition
-            Episode ep = dao.getEpisodeByUrlOrGuid(action.episode, action.episode);
-            if (ep != null) {
-                ActionState newActionState = ActionState.NEW;
-                if (action.action.equals("play")) {
-                    newActionState = ActionState.PLAY;
-                    Log.i(TAG, "updating play position from: " + action.episode + " pos: "
-                          + action.position + " started:" + action.started + " total: "
-                          + action.total);
-                    /* Episode uses milliseconds. */
-                    ep.setPlayPosition(action.position * 1000);
-                    if (dao.update(ep) != 1) {
-                        Log.w(TAG, "update play position went wrong: " + ep.getLink());
-                    }
-
-                } else {
-                    if (action.action.equals("download")) {
-                        newActionState = ActionState.DOWNLOAD;
-                    } else {
-                        if (action.action.equals("delete")) {
-                            newActionState = ActionState.DELETE;
-                        }
-                    }
-                }
-                ep.setActionState(newActionState);
-                dao.update(ep);
+        for (EpisodeActionMerger.Merged m : merged) {
+            Episode ep = dao.getEpisodeByUrlOrGuid(m.getEpisode(), m.getEpisode());
+            if (ep == null) {
+                continue;
             }
+
+            Integer position = m.getPlayPosition();
+            if (position != null) {
+                EpisodeAction play = m.getPlayAction();
+                Log.i(TAG, "updating play position from: " + play.episode + " pos: "
+                      + play.position + " started:" + play.started + " total: "
+                      + play.total);
+                ep.setPlayPosition(position);
+            }
+
+            if (m.getActionState() != null) {
+                ep.setActionState(m.getActionState());
+            }
+
+            episodes.add(ep);
         }
 
+        if (dao.updateEpisodes(episodes) == -1) {
+            Log.w(TAG, String.format("applying %d episode actions went wrong", episodes.size()));
+        }
     }
 }
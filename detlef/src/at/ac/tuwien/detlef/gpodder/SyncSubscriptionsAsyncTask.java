@@ -18,9 +18,6 @@
 package at.ac.tuwien.detlef.gpodder;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
 
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.client.ClientProtocolException;
@@ -41,8 +38,6 @@ import at.ac.tuwien.detlef.settings.GpodderSettings;
 import com.dragontek.mygpoclient.api.MygPodderClient;
 import com.dragontek.mygpoclient.api.SubscriptionChanges;
 import com.dragontek.mygpoclient.api.UpdateResult;
-import com.dragontek.mygpoclient.pub.PublicClient;
-import com.dragontek.mygpoclient.simple.IPodcast;
 
 /**
  * A Runnable to fetch subscription changes. It should be started in its own
@@ -103,10 +98,13 @@ public class SyncSubscriptionsAsyncTask implements Runnable {
             SubscriptionChanges changes = gpc.pullSubscriptions(devId,
                                           lastUpdate);
 
-            /* Get the Details for the individual URLs. */
+            /* Get the Details for the individual URLs. This accesses the
+             * network and may be slow. */
 
-            PodcastDetailsRetriever pdr = new PodcastDetailsRetriever();
-            EnhancedSubscriptionChanges remoteChanges = pdr.getPodcastDetails(changes);
+            PodcastDetailsFetcher fetcher = Singletons.i().getPodcastDetailsFetcher();
+            EnhancedSubscriptionChanges remoteChanges = new EnhancedSubscriptionChanges(
+                fetcher.fetch(null, changes.add), fetcher.fetch(null, changes.remove),
+                changes.timestamp);
 
             /* Update the db here */
 
@@ -225,52 +223,4 @@ public class SyncSubscriptionsAsyncTask implements Runnable {
             }
         }
     }
-
-    /**
-     * Wrapper class to turn mygpoclient-java SubscriptionChanges into our
-     * EnhancedSubscriptionChanges.
-     */
-    private static class PodcastDetailsRetriever {
-        private final PublicClient pub;
-
-        public PodcastDetailsRetriever() {
-            pub = new PublicClient();
-        }
-
-        /**
-         * Convert changes into EnhancedSubscriptionChanges. This accesses the
-         * Network is may be sloooooooowwwww.
-         *
-         * @param changes
-         * @return The converted SubscriptionChagnes.
-         */
-        public EnhancedSubscriptionChanges getPodcastDetails(SubscriptionChanges changes) {
-            return new EnhancedSubscriptionChanges(getPodcastSetDetails(changes.add),
-                                                   getPodcastSetDetails(changes.remove), changes.timestamp);
-        }
-
-        public IPodcast getPodcastDetails(String url) {
-            try {
-                return pub.getPodcastData(url);
-            } catch (ClientProtocolException e) {
-                /* do nothing */
-            } catch (IOException e) {
-                /* do nothing */
-            }
-
-            return null;
-        }
-
-        private List<IPodcast> getPodcastSetDetails(Set<String> urls) {
-            List<IPodcast> podcasts = new ArrayList<IPodcast>(urls.size());
-            for (String url : urls) {
-                IPodcast podcast = getPodcastDetails(url);
-                if (podcast != null) {
-                    podcasts.add(getPodcastDetails(url));
-                }
-            }
-
-            return podcasts;
-        }
-    }
 }
@@ -19,8 +19,9 @@ package at.ac.tuwien.detlef.mediaplayer;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
 
+import android.annotation.TargetApi;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -31,17 +32,22 @@ import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import at.ac.tuwien.detlef.Detlef;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.db.EpisodeDAO;
+import at.ac.tuwien.detlef.db.PlayPositionWriter;
 import at.ac.tuwien.detlef.db.PlaylistDAO;
 import at.ac.tuwien.detlef.domain.Episode;
 import at.ac.tuwien.detlef.domain.Episode.ActionState;
 import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.download.StreamProxy;
 
 /**
  * A service that provides methods for playing episodes.
@@ -57,6 +63,15 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
 
     private static final String TAG = MediaPlayerService.class.getName();
 
+    /** Play positions are written at most this often. */
+    private static final long PLAY_POSITION_WRITE_DELAY_MS = 5000;
+
+    /**
+     * The following playlist episode is prepared on a second player this long
+     * before the active one ends.
+     */
+    private static final int PREBUFFER_BEFORE_END_MS = 30000;
+
     public static final String EXTRA_MEDIA_CONTROL = "EXTRA_MEDIA_CONTROL";
     public static final int EXTRA_PREVIOUS = 0;
     public static final int EXTRA_PLAY_PAUSE = 1;
@@ -65,7 +80,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
 
     private PlaylistDAO playlistDAO;
     private EpisodeDAO episodeDAO;
-    private ArrayList<Episode> playlistItems;
+    private PlayPositionWriter playPositionWriter;
     private boolean manual = false;
     private Episode manualEpisode;
     private TelephonyManager telManager;
@@ -100,6 +115,55 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
     private static boolean running = false;
     private boolean wasPlayingBeforeCall = false;
 
+    /*
+     * The player preparing the episode following the active one in the
+     * playlist, so that it can take over without buffering once the active
+     * one completes. All of these are only touched on the main thread.
+     */
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private MediaPlayer nextPlayer;
+    private Episode nextPlayerEpisode;
+    private boolean nextPlayerPrepared = false;
+
+    private final Runnable prebufferTask = new Runnable() {
+        @Override
+        public void run() {
+            prebuffer();
+        }
+    };
+
+    private final MediaPlayer.OnPreparedListener nextPreparedListener =
+    new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            if (mp != nextPlayer) {
+                return;
+            }
+            nextPlayerPrepared = true;
+            int playPosition = nextPlayerEpisode.getPlayPosition();
+            if ((playPosition < mp.getDuration()) && (playPosition > 0)) {
+                mp.seekTo(playPosition);
+            }
+            if (mediaPlayerPrepared) {
+                linkNextPlayer(mediaPlayer, nextPlayer);
+            }
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener nextErrorListener =
+    new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "Error while preparing the next episode! What: " + what + ", extra: "
+                  + extra);
+            if (mp == nextPlayer) {
+                discardNextPlayer();
+            }
+            return true;
+        }
+    };
+
     private final PhoneStateListener phoneListener = new PhoneStateListener() {
         @Override
         public void onCallStateChanged(int state, String incomingNumber) {
@@ -144,12 +208,13 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         registerReceiver(mediaBroadcastReceiver, receiverFilter);
 
         playlistDAO = Singletons.i().getPlaylistDAO();
-        playlistItems = playlistDAO.getNonCachedEpisodes();
         playlistDAO.addPlaylistChangedListener(this);
 
         episodeDAO = Singletons.i().getEpisodeDAO();
         episodeDAO.addEpisodeChangedListener(this);
+        playPositionWriter = new PlayPositionWriter(episodeDAO, PLAY_POSITION_WRITE_DELAY_MS);
 
+        List<Episode> playlistItems = playlistDAO.getEpisodes();
         if ((nextEpisode == null) && !playlistItems.isEmpty()) {
             nextEpisode = playlistItems.get(0);
         }
@@ -188,19 +253,39 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
      * @return Gets the URI of the active episode or null
      */
     private Uri getActiveUri() {
-        if (activeEpisode == null) {
+        return getUri(activeEpisode);
+    }
+
+    /**
+     * @return Gets the URI of the given episode or null. An episode whose
+     *         downloaded file has gone missing is marked as not on the device.
+     */
+    private Uri getUri(Episode episode) {
+        if (episode == null) {
             return null;
         }
-        if (activeEpisode.getStorageState() != StorageState.DOWNLOADED) {
-            return Uri.parse(activeEpisode.getUrl());
+        if (episode.getStorageState() != StorageState.DOWNLOADED) {
+            return getStreamUri(episode);
         }
-        if (!episodeFileOK(activeEpisode)) {
-            activeEpisode.setStorageState(StorageState.NOT_ON_DEVICE);
-            episodeDAO.update(activeEpisode);
+        if (!episodeFileOK(episode)) {
+            episode.setStorageState(StorageState.NOT_ON_DEVICE);
+            episodeDAO.update(episode);
             return null;
         }
 
-        return Uri.fromFile(new File(activeEpisode.getFilePath()));
+        return Uri.fromFile(new File(episode.getFilePath()));
+    }
+
+    /**
+     * @return The URI streaming the episode through the caching proxy, or its
+     *         remote URI if the proxy isn't available.
+     */
+    private Uri getStreamUri(Episode episode) {
+        StreamProxy proxy = Singletons.i().getStreamProxy();
+        if (proxy == null) {
+            return Uri.parse(episode.getUrl());
+        }
+        return proxy.getUri(episode.getId(), episode.getUrl(), episode.getMimetype());
     }
 
     /*
@@ -222,7 +307,12 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
     public void onDestroy() {
         running = false;
 
+        updateEpisodePlayState();
+        playPositionWriter.shutdown();
+
+        handler.removeCallbacks(prebufferTask);
         mediaPlayerPrepared = false;
+        discardNextPlayer();
         mediaPlayer.reset();
         mediaPlayer.release();
         mediaPlayer = null;
@@ -238,6 +328,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
               "Error while playing media! What: " + what + ", extra: "
               + extra);
         mediaPlayerPrepared = false;
+        discardNextPlayer();
         mp.reset();
         haveRunningEpisode = false;
         setCurrentlyPlaying(false);
@@ -255,13 +346,10 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             if ((playPosition < mediaPlayer.getDuration()) && (playPosition > 0)) {
                 mediaPlayer.seekTo(playPosition);
             }
-            if ((activeEpisode.getActionState() == ActionState.NEW)
-                    || (activeEpisode.getActionState() == ActionState.DOWNLOAD)) {
-                activeEpisode.setActionState(ActionState.PLAY);
-                episodeDAO.update(activeEpisode);
-            }
+            updateEpisodeStarted();
         }
         mediaPlayer.start();
+        schedulePrebuffer();
     }
 
     @Override
@@ -273,6 +361,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             manual = false;
             manualEpisode = null;
             currentPlaylistPosition = 0;
+            List<Episode> playlistItems = playlistDAO.getEpisodes();
             if (!playlistItems.isEmpty()) {
                 setNextEpisode(playlistItems.get(currentPlaylistPosition));
             } else {
@@ -280,27 +369,30 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             }
         } else {
             playlistDAO.removeEpisode(currentPlaylistPosition);
+            List<Episode> playlistItems = playlistDAO.getEpisodes();
             if (!playlistItems.isEmpty()) {
                 if (currentPlaylistPosition >= playlistItems.size()) {
                     currentPlaylistPosition = playlistItems.size() - 1;
                     setNextEpisode(playlistItems.get(currentPlaylistPosition));
                 }
+                if (nextPlayerPrepared && (getNextEpisode() == nextPlayerEpisode)) {
+                    handOverToNextPlayer();
+                    return;
+                }
                 startPlaying();
             } else {
                 currentPlaylistPosition = 0;
                 nextEpisode = null;
             }
         }
+        discardNextPlayer();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (!running) {
             mediaPlayer = new MediaPlayer();
-            mediaPlayer.setOnPreparedListener(this);
-            mediaPlayer.setOnErrorListener(this);
-            mediaPlayer.setOnCompletionListener(this);
-            mediaPlayer.setOnBufferingUpdateListener(this);
+            attachListeners(mediaPlayer);
             running = true;
         }
 
@@ -311,6 +403,13 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         return Service.START_NOT_STICKY;
     }
 
+    private void attachListeners(MediaPlayer player) {
+        player.setOnPreparedListener(this);
+        player.setOnErrorListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnBufferingUpdateListener(this);
+    }
+
     /**
      * Handles an incoming media control intent (which can be sent from a
      * notification).
@@ -355,6 +454,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             startPlaying();
             break;
         case EXTRA_CLOSE_NOTIFICATION:
+            discardNextPlayer();
             mediaPlayer.reset();
             haveRunningEpisode = false;
             MediaPlayerNotification.cancel(this);
@@ -374,6 +474,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         mediaPlayer.pause();
         updateEpisodePlayState();
         setCurrentlyPlaying(false);
+        handler.removeCallbacks(prebufferTask);
         return this;
     }
 
@@ -386,9 +487,10 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         if (mediaPlayerPrepared) {
             int seekTo = Math.max(Math.min(progress, getDuration()), 0);
             mediaPlayer.seekTo(seekTo);
+            schedulePrebuffer();
         } else if (getNextEpisode() != null) {
             getNextEpisode().setPlayPosition(progress);
-            episodeDAO.update(getNextEpisode());
+            playPositionWriter.enqueue(getNextEpisode());
         }
         return this;
     }
@@ -400,6 +502,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
     @Override
     public IMediaPlayerService fastForward() {
         updateEpisodePlayState();
+        List<Episode> playlistItems = playlistDAO.getEpisodes();
         if (manual && !playlistItems.isEmpty()) {
             currentPlaylistPosition = 0;
             nextEpisode = playlistItems.get(currentPlaylistPosition);
@@ -414,6 +517,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             currentPlaylistPosition = 0;
             nextEpisode = playlistItems.get(currentPlaylistPosition);
         }
+        schedulePrebuffer();
         return this;
     }
 
@@ -426,16 +530,19 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
             if (currentPlaylistPosition > 0) {
                 currentPlaylistPosition--;
             }
+            List<Episode> playlistItems = playlistDAO.getEpisodes();
             if (!playlistItems.isEmpty()) {
                 nextEpisode = playlistItems.get(currentPlaylistPosition);
             }
         }
+        schedulePrebuffer();
         return this;
     }
 
     @Override
     public IMediaPlayerService skipToPosition(int position) {
         updateEpisodePlayState();
+        List<Episode> playlistItems = playlistDAO.getEpisodes();
         if (position >= playlistItems.size()) {
             Log.e(getClass().getName(), "Wrong playlist index: " + position + ", current size: "
                   + playlistItems.size());
@@ -446,6 +553,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         currentPlaylistPosition = position;
         nextEpisode = playlistItems.get(currentPlaylistPosition);
         manualEpisode = null;
+        schedulePrebuffer();
         return this;
     }
 
@@ -476,6 +584,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
                 && (activeEpisode.getStorageState() != StorageState.DOWNLOADED)) {
             setCurrentlyPlaying(true);
             mediaPlayer.start();
+            schedulePrebuffer();
         } else {
             activeEpisode = getNextEpisode();
             if (activeEpisode != null) {
@@ -494,6 +603,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         haveRunningEpisode = true;
         setCurrentlyPlaying(true);
         mediaPlayerPrepared = false;
+        discardNextPlayer();
         mediaPlayer.reset();
         try {
             mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
@@ -545,36 +655,49 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
 
     @Override
     public void onPlaylistEpisodeAdded(int position, Episode episode) {
-        playlistItems.add(position, episode);
         if (position <= currentPlaylistPosition) {
             currentPlaylistPosition = Math.min(currentPlaylistPosition + 1,
-                                               playlistItems.size() - 1);
+                                               playlistDAO.getEpisodes().size() - 1);
         }
+        schedulePrebuffer();
     }
 
     @Override
     public void onPlaylistEpisodePositionChanged(int firstPosition, int secondPosition) {
-        Episode ep = playlistItems.remove(firstPosition);
-        playlistItems.add(secondPosition, ep);
         if ((firstPosition <= currentPlaylistPosition)
                 && (secondPosition >= currentPlaylistPosition)) {
             currentPlaylistPosition = Math.max(currentPlaylistPosition - 1, 0);
         } else if ((firstPosition >= currentPlaylistPosition)
                    && (secondPosition <= currentPlaylistPosition)) {
             currentPlaylistPosition = Math.min(currentPlaylistPosition + 1,
-                                               playlistItems.size() - 1);
+                                               playlistDAO.getEpisodes().size() - 1);
         }
+        schedulePrebuffer();
     }
 
     @Override
     public void onPlaylistEpisodeRemoved(int position) {
-        playlistItems.remove(position);
+        if (position < currentPlaylistPosition) {
+            currentPlaylistPosition--;
+        }
+
+        /* If the current episode itself is removed, the following one moves
+         * up to its position. */
+
         if (position <= currentPlaylistPosition) {
-            currentPlaylistPosition = Math.max(currentPlaylistPosition - 1, 0);
+
+            /* The snapshot may already lack further episodes which are
+             * reported next, e.g. when all occurrences of an episode are
+             * removed at once. */
+
+            List<Episode> playlistItems = playlistDAO.getEpisodes();
             if (!playlistItems.isEmpty()) {
+                currentPlaylistPosition = Math.min(currentPlaylistPosition,
+                                                   playlistItems.size() - 1);
                 nextEpisode = playlistItems.get(currentPlaylistPosition);
             }
         }
+        schedulePrebuffer();
     }
 
     @Override
@@ -582,6 +705,11 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         // not our problem
     }
 
+    @Override
+    public void onEpisodesChanged(List<Episode> episodes) {
+        // not our problem either
+    }
+
     @Override
     public void onEpisodeAdded(Episode episode) {
         if (nextEpisode == null) {
@@ -589,8 +717,18 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         }
     }
 
+    @Override
+    public void onEpisodesAdded(List<Episode> episodes) {
+        if ((nextEpisode == null) && !episodes.isEmpty()) {
+            nextEpisode = episodes.get(0);
+        }
+    }
+
     @Override
     public void onEpisodeDeleted(Episode episode) {
+        if ((activeEpisode == episode) || (nextPlayerEpisode == episode)) {
+            discardNextPlayer();
+        }
         if (activeEpisode == episode) {
             mediaPlayer.stop();
             mediaPlayer.reset();
@@ -610,6 +748,14 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         manual = true;
     }
 
+    private void updateEpisodeStarted() {
+        if ((activeEpisode.getActionState() == ActionState.NEW)
+                || (activeEpisode.getActionState() == ActionState.DOWNLOAD)) {
+            activeEpisode.setActionState(ActionState.PLAY);
+            episodeDAO.update(activeEpisode);
+        }
+    }
+
     private void updateEpisodeCompleted() {
         if (activeEpisode == null) {
             return;
@@ -625,7 +771,7 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
         }
         if (mediaPlayerPrepared) {
             activeEpisode.setPlayPosition(mediaPlayer.getCurrentPosition());
-            episodeDAO.update(activeEpisode);
+            playPositionWriter.enqueue(activeEpisode);
         }
     }
 
@@ -654,9 +800,138 @@ public class MediaPlayerService extends Service implements IMediaPlayerService,
     @Override
     public void stopStreamingIfPaused() {
         if (!currentlyPlaying) {
+            discardNextPlayer();
             mediaPlayer.reset();
             haveRunningEpisode = false;
         }
     }
 
+    /**
+     * @return The playlist episode following the active one if it is played
+     *         from the playlist, null otherwise.
+     */
+    private Episode getUpcomingEpisode() {
+        if (manual || !mediaPlayerPrepared || (activeEpisode == null)
+                || (nextEpisode != activeEpisode)) {
+            return null;
+        }
+        List<Episode> playlistItems = playlistDAO.getEpisodes();
+        int position = currentPlaylistPosition + 1;
+        if ((position >= playlistItems.size())
+                || (playlistItems.get(currentPlaylistPosition) != activeEpisode)) {
+            return null;
+        }
+        return playlistItems.get(position);
+    }
+
+    /**
+     * Checks the next player against the playlist once the current call has
+     * returned. The playlist callbacks may arrive in bursts, and in the middle
+     * of a completion which is about to hand over to the next player.
+     */
+    private void schedulePrebuffer() {
+        handler.removeCallbacks(prebufferTask);
+        handler.post(prebufferTask);
+    }
+
+    /**
+     * Tells the prefetcher where playback is, discards a next player which
+     * doesn't prepare the upcoming episode any longer, and starts preparing
+     * the upcoming episode once the active one nears its end.
+     */
+    private void prebuffer() {
+        Singletons.i().getPlaylistPrefetcher().setPlaybackState(currentPlaylistPosition,
+                haveRunningEpisode ? activeEpisode : null);
+
+        Episode upcoming = getUpcomingEpisode();
+        if (upcoming != nextPlayerEpisode) {
+            discardNextPlayer();
+        }
+        if ((upcoming == null) || (nextPlayer != null) || !currentlyPlaying) {
+            return;
+        }
+
+        int remaining = mediaPlayer.getDuration() - mediaPlayer.getCurrentPosition();
+        if (remaining > PREBUFFER_BEFORE_END_MS) {
+            handler.postDelayed(prebufferTask, remaining - PREBUFFER_BEFORE_END_MS);
+            return;
+        }
+
+        Uri uri = getUri(upcoming);
+        if (uri == null) {
+            return;
+        }
+
+        Log.d(TAG, "Preparing next episode " + upcoming.getId());
+        nextPlayer = new MediaPlayer();
+        nextPlayerEpisode = upcoming;
+        nextPlayerPrepared = false;
+        nextPlayer.setOnPreparedListener(nextPreparedListener);
+        nextPlayer.setOnErrorListener(nextErrorListener);
+        try {
+            nextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            nextPlayer.setDataSource(getApplicationContext(), uri);
+            nextPlayer.prepareAsync();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Preparing the next episode failed: " + e.getMessage());
+            discardNextPlayer();
+        } catch (IOException e) {
+            Log.w(TAG, "Preparing the next episode failed: " + e.getMessage());
+            discardNextPlayer();
+        }
+    }
+
+    /**
+     * Makes the prepared next player the active one after the active one has
+     * completed.
+     */
+    private void handOverToNextPlayer() {
+        MediaPlayer completed = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        activeEpisode = nextPlayerEpisode;
+        nextPlayer = null;
+        nextPlayerEpisode = null;
+        nextPlayerPrepared = false;
+
+        attachListeners(mediaPlayer);
+        completed.release();
+
+        /* From Jelly Bean on, the linked next player has been started already. */
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            mediaPlayer.start();
+        }
+
+        mediaPlayerPrepared = true;
+        haveRunningEpisode = true;
+        bufferState = 0;
+        setCurrentlyPlaying(true);
+        updateEpisodeStarted();
+        schedulePrebuffer();
+    }
+
+    private void discardNextPlayer() {
+        if (nextPlayer == null) {
+            return;
+        }
+        if (mediaPlayerPrepared) {
+            linkNextPlayer(mediaPlayer, null);
+        }
+        nextPlayer.release();
+        nextPlayer = null;
+        nextPlayerEpisode = null;
+        nextPlayerPrepared = false;
+    }
+
+    /**
+     * Lets the platform start next as soon as player completes. Before Jelly
+     * Bean, the next player is started from {@link #onCompletion(MediaPlayer)}.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void linkNextPlayer(MediaPlayer player, MediaPlayer next) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            player.setNextMediaPlayer(next);
+        }
+    }
+
 }
@@ -0,0 +1,185 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import at.ac.tuwien.detlef.db.EpisodeDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+
+/**
+ * An {@link EpisodeListModel} which holds a window of consecutive episodes
+ * ordered by release date, newest first, instead of all known episodes. The
+ * window is moved page by page and never grows beyond a fixed size; pages
+ * pushed out on one end are loaded again from the database when the window
+ * moves back.
+ */
+public class PagedEpisodeListModel extends EpisodeListModel {
+
+    private final List<Episode> window;
+    private final EpisodeDAO dao;
+    private final int pageSize;
+    private final int maxSize;
+
+    /** Whether the window starts with the newest episode. */
+    private boolean atNewest = true;
+
+    /** Whether the window ends with the oldest episode. */
+    private boolean atOldest = false;
+
+    /**
+     * @param dao The DAO to load the pages from.
+     * @param pageSize The number of episodes loaded at once.
+     * @param maxPages The maximum number of pages held at once, at least 2.
+     */
+    public PagedEpisodeListModel(EpisodeDAO dao, int pageSize, int maxPages) {
+        this(new ArrayList<Episode>(pageSize * maxPages), dao, pageSize, maxPages);
+    }
+
+    private PagedEpisodeListModel(List<Episode> window, EpisodeDAO dao, int pageSize,
+                                  int maxPages) {
+        super(window);
+        this.window = window;
+        this.dao = dao;
+        this.pageSize = pageSize;
+        this.maxSize = pageSize * maxPages;
+    }
+
+    /**
+     * @return Whether there are newer episodes than the ones in the window.
+     */
+    public boolean hasNewer() {
+        return !atNewest;
+    }
+
+    /**
+     * @return Whether there are older episodes than the ones in the window.
+     */
+    public boolean hasOlder() {
+        return !atOldest;
+    }
+
+    /**
+     * Appends the next page of older episodes to the window, dropping the
+     * newest ones if the window gets too large.
+     *
+     * @return Whether any episodes were loaded.
+     */
+    public boolean loadOlder() {
+        if (atOldest) {
+            return false;
+        }
+
+        Episode last = window.isEmpty() ? null : window.get(window.size() - 1);
+        List<Episode> page = dao.getEpisodesReleasedBefore(last, pageSize);
+        if (page.size() < pageSize) {
+            atOldest = true;
+        }
+        if (page.isEmpty()) {
+            return false;
+        }
+
+        window.addAll(page);
+
+        int excess = window.size() - maxSize;
+        if (excess > 0) {
+            window.subList(0, excess).clear();
+            atNewest = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Prepends the previous page of newer episodes to the window, dropping
+     * the oldest ones if the window gets too large.
+     *
+     * @return Whether any episodes were loaded.
+     */
+    public boolean loadNewer() {
+        if (atNewest) {
+            return false;
+        }
+
+        if (window.isEmpty()) {
+
+            /* Everything in the window has been removed, start over. */
+
+            atNewest = true;
+            atOldest = false;
+            return loadOlder();
+        }
+
+        List<Episode> page = dao.getEpisodesReleasedAfter(window.get(0), pageSize);
+        if (page.size() < pageSize) {
+            atNewest = true;
+        }
+        if (page.isEmpty()) {
+            return false;
+        }
+
+        window.addAll(0, page);
+
+        int excess = window.size() - maxSize;
+        if (excess > 0) {
+            window.subList(window.size() - excess, window.size()).clear();
+            atOldest = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Inserts the episode at its place in the window. Episodes which belong
+     * before or after the window are left to be loaded with their page.
+     */
+    @Override
+    public void addEpisode(Episode episode) {
+        int position = 0;
+        while (position < window.size() && compare(window.get(position), episode) < 0) {
+            position++;
+        }
+
+        if ((position == 0 && !atNewest) || (position == window.size() && !atOldest)) {
+            return;
+        }
+
+        window.add(position, episode);
+
+        if (window.size() > maxSize) {
+            window.remove(window.size() - 1);
+            atOldest = false;
+        }
+    }
+
+    /**
+     * Compares two episodes by the order of the pages, see
+     * {@link EpisodeDAO#getEpisodesReleasedBefore(Episode, int)}.
+     */
+    private static int compare(Episode lhs, Episode rhs) {
+        if (lhs.getReleased() != rhs.getReleased()) {
+            return (lhs.getReleased() > rhs.getReleased()) ? -1 : 1;
+        }
+        if (lhs.getId() != rhs.getId()) {
+            return (lhs.getId() < rhs.getId()) ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -51,6 +51,13 @@ public class GpodderSettings {
 
     private boolean ascending = false;
 
+    private int maxParallelFeedRefreshes = GpodderSettingsDAO.DEFAULT_FEED_REFRESH_PARALLEL;
+
+    private int feedRefreshBatchSize = GpodderSettingsDAO.DEFAULT_FEED_REFRESH_BATCH_SIZE;
+
+    private int episodeActionSyncBatchSize =
+        GpodderSettingsDAO.DEFAULT_EPISODE_ACTION_SYNC_BATCH_SIZE;
+
     /**
      * @return The user name
      */
@@ -207,4 +214,43 @@ public class GpodderSettings {
         return this;
     }
 
+
+    /**
+     * @return The maximum number of feeds that are fetched at the same time
+     *         during a refresh.
+     */
+    public int getMaxParallelFeedRefreshes() {
+        return maxParallelFeedRefreshes;
+    }
+
+    public GpodderSettings setMaxParallelFeedRefreshes(int pMaxParallelFeedRefreshes) {
+        maxParallelFeedRefreshes = pMaxParallelFeedRefreshes;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of feeds that are requested from the feed
+     *         service with a single request during a refresh.
+     */
+    public int getFeedRefreshBatchSize() {
+        return feedRefreshBatchSize;
+    }
+
+    public GpodderSettings setFeedRefreshBatchSize(int pFeedRefreshBatchSize) {
+        feedRefreshBatchSize = pFeedRefreshBatchSize;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of episode actions that are uploaded with a
+     *         single request during an episode action sync.
+     */
+    public int getEpisodeActionSyncBatchSize() {
+        return episodeActionSyncBatchSize;
+    }
+
+    public GpodderSettings setEpisodeActionSyncBatchSize(int pEpisodeActionSyncBatchSize) {
+        episodeActionSyncBatchSize = pEpisodeActionSyncBatchSize;
+        return this;
+    }
 }
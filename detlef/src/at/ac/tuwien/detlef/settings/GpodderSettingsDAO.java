@@ -62,6 +62,24 @@ public interface GpodderSettingsDAO {
     /** Key that stores the sort order of episodes. */
     String KEY_EPISODE_SORT_ORDER = "episode_sort_order";
 
+    /** Key that stores how many feeds are refreshed in parallel. */
+    String KEY_FEED_REFRESH_PARALLEL = "feed_refresh_parallel";
+
+    /** Default number of feeds refreshed in parallel. */
+    int DEFAULT_FEED_REFRESH_PARALLEL = 4;
+
+    /** Key that stores how many feeds are requested from the feed service at once. */
+    String KEY_FEED_REFRESH_BATCH_SIZE = "feed_refresh_batch_size";
+
+    /** Default number of feeds requested from the feed service at once. */
+    int DEFAULT_FEED_REFRESH_BATCH_SIZE = 10;
+
+    /** Key that stores how many episode actions are synced with a single request. */
+    String KEY_EPISODE_ACTION_SYNC_BATCH_SIZE = "episode_action_sync_batch_size";
+
+    /** Default number of episode actions synced with a single request. */
+    int DEFAULT_EPISODE_ACTION_SYNC_BATCH_SIZE = 100;
+
     /**
      * Loads the current settings form the storage engine and makes them available to the
      * application.
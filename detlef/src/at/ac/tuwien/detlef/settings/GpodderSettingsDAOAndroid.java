@@ -52,6 +52,13 @@ public class GpodderSettingsDAOAndroid implements GpodderSettingsDAO {
 
         result.setAccountVerified(getSharedPreferences().getBoolean(KEY_ACCOUNT_VERIFIED, false));
 
+        result.setMaxParallelFeedRefreshes(getPositiveInt(
+                                               KEY_FEED_REFRESH_PARALLEL, DEFAULT_FEED_REFRESH_PARALLEL));
+        result.setFeedRefreshBatchSize(getPositiveInt(
+                                           KEY_FEED_REFRESH_BATCH_SIZE, DEFAULT_FEED_REFRESH_BATCH_SIZE));
+        result.setEpisodeActionSyncBatchSize(getPositiveInt(
+                KEY_EPISODE_ACTION_SYNC_BATCH_SIZE, DEFAULT_EPISODE_ACTION_SYNC_BATCH_SIZE));
+
         result.setAscending(getSharedPreferences().getBoolean(KEY_EPISODE_SORT_ORDER, false));
         try {
             result.setSortChoice(EpisodeSortChoice.valueOf(
@@ -89,6 +96,9 @@ public class GpodderSettingsDAOAndroid implements GpodderSettingsDAO {
         .putLong("lastEpisodeActionUpdate", settings.getLastEpisodeActionUpdate())
         .putBoolean(KEY_EPISODE_SORT_ORDER, settings.isAscending())
         .putString(KEY_EPISODE_SORT_CHOICE, settings.getSortChoice().toString())
+        .putInt(KEY_FEED_REFRESH_PARALLEL, settings.getMaxParallelFeedRefreshes())
+        .putInt(KEY_FEED_REFRESH_BATCH_SIZE, settings.getFeedRefreshBatchSize())
+        .putInt(KEY_EPISODE_ACTION_SYNC_BATCH_SIZE, settings.getEpisodeActionSyncBatchSize())
         .commit();
         return this;
 
@@ -104,6 +114,15 @@ public class GpodderSettingsDAOAndroid implements GpodderSettingsDAO {
         return this;
     }
 
+    /**
+     * Reads a limit or batch size. A value of 0 or less would stop the work it
+     * limits altogether, so the default is returned instead.
+     */
+    private int getPositiveInt(String key, int defaultValue) {
+        int value = getSharedPreferences().getInt(key, defaultValue);
+        return (value < 1) ? defaultValue : value;
+    }
+
     private SharedPreferences getSharedPreferences() {
         return (SharedPreferences) dependencies.get("sharedPreferences");
     }
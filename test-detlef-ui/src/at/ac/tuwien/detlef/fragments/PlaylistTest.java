@@ -58,18 +58,18 @@ public class PlaylistTest extends ActivityInstrumentationTestCase2<MainActivity>
         p1.setLogoFilePath("logo file path");
         p1.setLogoUrl("logo url");
         p1.setTitle("MYPODCAST101");
-        p1.setUrl("die url halt");
+        p1.setUrl("die url halt " + java.util.UUID.randomUUID().toString());
 
         e1 = new Episode(p1);
         e1.setAuthor("author");
         e1.setDescription("description");
         e1.setFileSize(0);
-        e1.setGuid("guid");
+        e1.setGuid("guid1");
         e1.setLink("link");
         e1.setMimetype("mimetype");
         e1.setReleased(System.currentTimeMillis());
         e1.setTitle("MYEPISODE101");
-        e1.setUrl("url");
+        e1.setUrl("url1");
         e1.setStorageState(StorageState.NOT_ON_DEVICE);
         e1.setFilePath("path");
 
@@ -77,12 +77,12 @@ public class PlaylistTest extends ActivityInstrumentationTestCase2<MainActivity>
         e2.setAuthor("author");
         e2.setDescription("description");
         e2.setFileSize(0);
-        e2.setGuid("guid");
+        e2.setGuid("guid2");
         e2.setLink("link");
         e2.setMimetype("mimetype");
         e2.setReleased(System.currentTimeMillis());
         e2.setTitle("MYEPISODE102");
-        e2.setUrl("url");
+        e2.setUrl("url2");
         e2.setStorageState(StorageState.NOT_ON_DEVICE);
         e2.setFilePath("path");
 
@@ -0,0 +1,43 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.adapters;
+
+import junit.framework.TestCase;
+import android.text.Spanned;
+
+/**
+ * Tests the rendering of description summaries.
+ */
+public class DescriptionSummariesTest extends TestCase {
+
+    public void testRenderShort() {
+        Spanned summary = DescriptionSummaries.render("<p>A <b>short</b> description</p>");
+        assertEquals("A short description", summary.toString().trim());
+    }
+
+    public void testRenderTruncates() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 2 * DescriptionSummaries.MAX_HTML_LENGTH) {
+            sb.append("<i>lorem ipsum</i> ");
+        }
+
+        Spanned summary = DescriptionSummaries.render(sb.toString());
+        assertEquals(DescriptionSummaries.MAX_SUMMARY_LENGTH, summary.length());
+        assertTrue(summary.toString().startsWith("lorem ipsum lorem ipsum"));
+    }
+}
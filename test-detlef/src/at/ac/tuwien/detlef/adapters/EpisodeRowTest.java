@@ -0,0 +1,53 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.adapters;
+
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the texts computed by {@link EpisodeRow}.
+ */
+public class EpisodeRowTest extends TestCase {
+
+    public void testFormatTitle() {
+        assertEquals("Short: Episode", EpisodeRow.formatTitle("Short", "Episode"));
+        assertEquals("A rather long...: Episode",
+                     EpisodeRow.formatTitle("A rather long podcast title", "Episode"));
+    }
+
+    public void testByteToHumanSize() {
+        assertTrue(EpisodeRow.byteToHumanSize(1000).endsWith(" B"));
+        assertTrue(EpisodeRow.byteToHumanSize(2048).endsWith(" KB"));
+        assertTrue(EpisodeRow.byteToHumanSize(50L * 1024 * 1024).endsWith(" MB"));
+
+        /* Larger than the largest unit. */
+
+        assertTrue(EpisodeRow.byteToHumanSize(Long.MAX_VALUE).endsWith(" TB"));
+    }
+
+    /**
+     * Sizes are formatted with the decimal separator of the given locale.
+     */
+    public void testByteToHumanSizeLocale() {
+        assertEquals("2.00 KB", EpisodeRow.byteToHumanSize(2048, Locale.US));
+        assertEquals("1.50 MB", EpisodeRow.byteToHumanSize(3L * 512 * 1024, Locale.UK));
+        assertEquals("2,00 KB", EpisodeRow.byteToHumanSize(2048, Locale.GERMANY));
+    }
+}
@@ -51,7 +51,7 @@ public class EpisodeActionDAOImplTest extends AndroidTestCase {
         p1.setLogoFilePath("logoFilePath");
         p1.setLogoUrl("logoUrl");
         p1.setTitle("title");
-        p1.setUrl("url");
+        p1.setUrl("url " + java.util.UUID.randomUUID().toString());
 
         PodcastDAO pdao = Singletons.i().getPodcastDAO();
         p1 = pdao.insertPodcast(p1);
@@ -118,4 +118,56 @@ public class EpisodeActionDAOImplTest extends AndroidTestCase {
         assertEquals(0, dao.getAllEpisodeActions().size());
     }
 
+    /**
+     * Tests that compactEpisodeActions keeps only the latest action of each
+     * type per episode.
+     */
+    public void testCompactEpisodeActions() {
+        dao.flushEpisodeActions(dao.getAllEpisodeActions());
+
+        assertTrue(dao.insertEpisodeAction(lea1));
+        assertTrue(dao.insertEpisodeAction(lea2));
+        assertTrue(dao.insertEpisodeAction(
+                       new LocalEpisodeAction(p1, "ep1", Episode.ActionState.PLAY, 0, 23, 42)));
+        assertTrue(dao.insertEpisodeAction(
+                       new LocalEpisodeAction(p1, "ep2", Episode.ActionState.PLAY, 0, 5, 42)));
+
+        assertEquals(1, dao.compactEpisodeActions());
+
+        List<RemoteEpisodeAction> all = dao.getAllEpisodeActions();
+        assertEquals(3, all.size());
+        for (RemoteEpisodeAction a : all) {
+            if (a.episode.equals("ep1") && a.action.equals("play")) {
+                assertEquals(Integer.valueOf(23), a.position);
+            }
+        }
+
+        assertEquals(0, dao.compactEpisodeActions());
+    }
+
+    /**
+     * Tests that getEpisodeActions pages through all actions in insertion
+     * order.
+     */
+    public void testGetEpisodeActionsPaged() {
+        dao.flushEpisodeActions(dao.getAllEpisodeActions());
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(dao.insertEpisodeAction(
+                           new LocalEpisodeAction(p1, "ep" + i, Episode.ActionState.PLAY, 0, i, 42)));
+        }
+
+        List<RemoteEpisodeAction> first = dao.getEpisodeActions(0, 3);
+        assertEquals(3, first.size());
+        assertEquals("ep0", first.get(0).episode);
+
+        List<RemoteEpisodeAction> second =
+            dao.getEpisodeActions(first.get(first.size() - 1).getId(), 3);
+        assertEquals(2, second.size());
+        assertEquals("ep3", second.get(0).episode);
+        assertEquals(Integer.valueOf(4), second.get(1).position);
+
+        assertTrue(dao.getEpisodeActions(second.get(1).getId(), 3).isEmpty());
+    }
+
 }
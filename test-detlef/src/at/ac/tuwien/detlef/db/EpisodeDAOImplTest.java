@@ -20,14 +20,21 @@
 package at.ac.tuwien.detlef.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Episode;
 import at.ac.tuwien.detlef.domain.Episode.ActionState;
 import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.domain.FeedUpdate;
 import at.ac.tuwien.detlef.domain.Podcast;
 
+import com.dragontek.mygpoclient.feeds.IFeed;
+
 /**
  * tests the episodeDAOImpl
  *
@@ -49,7 +56,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         p1.setLogoFilePath("logo file path");
         p1.setLogoUrl("logo url");
         p1.setTitle("title");
-        p1.setUrl("die url halt");
+        p1.setUrl("die url halt " + java.util.UUID.randomUUID().toString());
 
         e1 = new Episode(p1);
         e1.setAuthor("author");
@@ -109,6 +116,223 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         assertTrue(e1.getId() > 0);
     }
 
+    /**
+     * tests the batched insertEpisodes functionality
+     */
+    public void testInsertEpisodes() {
+        p1 = pdao.insertPodcast(p1);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        List<Episode> batch = new ArrayList<Episode>();
+        batch.add(e1);
+        batch.add(e2);
+        int countBeforeInsert = edao.getAllEpisodes().size();
+        List<Episode> inserted = edao.insertEpisodes(batch);
+        int countAfterInsert = edao.getAllEpisodes().size();
+        assertNotNull(inserted);
+        assertEquals(2, inserted.size());
+        assertEquals(countBeforeInsert + 2, countAfterInsert);
+        assertTrue(e1.getId() > 0);
+        assertTrue(e2.getId() > 0);
+        assertFalse(e1.getId() == e2.getId());
+    }
+
+    /**
+     * tests that a failing row rolls back the whole batch
+     */
+    public void testInsertEpisodesRollsBackOnFailure() {
+        p1 = pdao.insertPodcast(p1);
+        e2.setUrl(null);
+        List<Episode> batch = new ArrayList<Episode>();
+        batch.add(e1);
+        batch.add(e2);
+        int countBeforeInsert = edao.getAllEpisodes().size();
+        assertNull(edao.insertEpisodes(batch));
+        assertEquals(countBeforeInsert, edao.getAllEpisodes().size());
+    }
+
+    /**
+     * tests that upserting an already known episode updates it in place and
+     * keeps its local state
+     */
+    public void testUpsertEpisodes() {
+        p1 = pdao.insertPodcast(p1);
+        e1 = edao.insertEpisode(e1);
+        e1.setPlayPosition(42);
+        edao.update(e1);
+        int countBeforeUpsert = edao.getAllEpisodes().size();
+
+        e2.setTitle("new title");
+        List<Episode> batch = new ArrayList<Episode>();
+        batch.add(e2);
+        List<Episode> stored = edao.upsertEpisodes(p1, batch);
+        assertNotNull(stored);
+        assertEquals(1, stored.size());
+        assertEquals(countBeforeUpsert, edao.getAllEpisodes().size());
+
+        Episode e = edao.getEpisode(e1.getId());
+        assertEquals("new title", e.getTitle());
+        assertEquals(42, e.getPlayPosition());
+
+        stored = edao.upsertEpisodes(p1, batch);
+        assertNotNull(stored);
+        assertEquals(0, stored.size());
+    }
+
+    /**
+     * tests that an episode delivered again by the feed with an older or equal
+     * release date and changed fields is merged into the stored one
+     */
+    public void testUpsertEpisodesMergesRedeliveredEpisode() {
+        p1 = pdao.insertPodcast(p1);
+        e1 = edao.insertEpisode(e1);
+        p1.setLastUpdate(e1.getReleased());
+
+        Episode edited = new Episode(p1);
+        edited.setGuid(e1.getGuid());
+        edited.setUrl(e1.getUrl());
+        edited.setTitle("edited");
+        edited.setReleased(e1.getReleased() - 1000);
+
+        FeedUpdate feed = new FeedUpdate(feedOf(edited), p1);
+        assertEquals(1, feed.getEpisodeList().size());
+        assertEquals(1, edao.upsertEpisodes(p1, feed.getEpisodeList()).size());
+
+        Episode e = edao.getEpisode(e1.getId());
+        assertEquals("edited", e.getTitle());
+        assertEquals(edited.getReleased(), e.getReleased());
+
+        Episode republished = new Episode(p1);
+        republished.setGuid(e1.getGuid());
+        republished.setUrl(e1.getUrl());
+        republished.setTitle("edited");
+        republished.setDescription("republished");
+        republished.setReleased(p1.getLastUpdate());
+
+        feed = new FeedUpdate(feedOf(republished), p1);
+        assertEquals(1, feed.getEpisodeList().size());
+        assertEquals(1, edao.upsertEpisodes(p1, feed.getEpisodeList()).size());
+
+        e = edao.getEpisode(e1.getId());
+        assertEquals("republished", e.getDescription());
+        assertEquals(p1.getLastUpdate(), e.getReleased());
+        assertEquals(1, edao.getEpisodes(p1).size());
+    }
+
+    private static IFeed feedOf(final Episode episode) {
+        return new IFeed() {
+            @Override
+            public String getTitle() {
+                return "title";
+            }
+
+            @Override
+            public String getUrl() {
+                return episode.getPodcast().getUrl();
+            }
+
+            @Override
+            public String getDescription() {
+                return null;
+            }
+
+            @Override
+            public String getLink() {
+                return null;
+            }
+
+            @Override
+            public IEpisode[] getEpisodes() {
+                return new IEpisode[] {episode};
+            }
+        };
+    }
+
+    /**
+     * tests that an episode whose new url is taken by another episode of the
+     * same podcast is skipped instead of rolling back the whole upsert
+     */
+    public void testUpsertEpisodesSkipsUrlCollision() {
+        p1 = pdao.insertPodcast(p1);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        e1 = edao.insertEpisode(e1);
+        e2 = edao.insertEpisode(e2);
+
+        Episode moved = new Episode(p1);
+        moved.setGuid("guid");
+        moved.setUrl("url2");
+        moved.setTitle("moved");
+        moved.setReleased(e1.getReleased());
+
+        Episode added = new Episode(p1);
+        added.setGuid("guid3");
+        added.setUrl("url3");
+        added.setTitle("added");
+        added.setReleased(e1.getReleased());
+
+        List<Episode> batch = new ArrayList<Episode>();
+        batch.add(moved);
+        batch.add(added);
+        List<Episode> stored = edao.upsertEpisodes(p1, batch);
+        assertNotNull(stored);
+        assertEquals(1, stored.size());
+        assertTrue(added.getId() > 0);
+
+        Episode e = edao.getEpisode(e1.getId());
+        assertEquals("url", e.getUrl());
+        assertEquals("title", e.getTitle());
+        assertEquals(3, edao.getEpisodes(p1).size());
+    }
+
+    /**
+     * tests that listeners are told about the cached instances of upserted
+     * episodes
+     */
+    public void testUpsertEpisodesNotifiesCachedInstances() {
+        p1 = pdao.insertPodcast(p1);
+        e1 = edao.insertEpisode(e1);
+
+        final List<Episode> changed = new ArrayList<Episode>();
+        EpisodeDAO.OnEpisodeChangeListener listener = new EpisodeDAO.OnEpisodeChangeListener() {
+            @Override
+            public void onEpisodeChanged(Episode episode) {
+                changed.add(episode);
+            }
+
+            @Override
+            public void onEpisodeAdded(Episode episode) {
+            }
+
+            @Override
+            public void onEpisodeDeleted(Episode episode) {
+            }
+
+            @Override
+            public void onEpisodesAdded(List<Episode> episodes) {
+            }
+
+            @Override
+            public void onEpisodesChanged(List<Episode> episodes) {
+                changed.addAll(episodes);
+            }
+        };
+
+        edao.addEpisodeChangedListener(listener);
+        try {
+            e2.setTitle("new title");
+            List<Episode> batch = new ArrayList<Episode>();
+            batch.add(e2);
+            assertNotNull(edao.upsertEpisodes(p1, batch));
+        } finally {
+            edao.removeEpisodeChangedListener(listener);
+        }
+
+        assertEquals(1, changed.size());
+        assertSame(edao.getEpisode(e1.getId()), changed.get(0));
+        assertEquals("new title", changed.get(0).getTitle());
+    }
+
     /**
      * tests the deleteEpisode functionality
      */
@@ -128,7 +352,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
     public void testGetEpisodes() {
         p1 = pdao.insertPodcast(p1);
         e1 = edao.insertEpisode(e1);
-        ArrayList<Episode> episodes = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> episodes = edao.getEpisodes(p1);
         assertEquals(1, episodes.size());
         Episode ep = episodes.get(0);
         assertEquals(e1.getFilePath(), ep.getFilePath());
@@ -136,6 +360,76 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         assertEquals(ep.getId(), e1.getId());
     }
 
+    /**
+     * tests that getEpisodes only returns the episodes of the given podcast,
+     * as an unmodifiable list which follows later inserts
+     */
+    public void testGetEpisodesOfOnePodcast() {
+        p1 = pdao.insertPodcast(p1);
+        Podcast p2 = new Podcast();
+        p2.setTitle("other title");
+        p2.setUrl("other url " + java.util.UUID.randomUUID().toString());
+        p2 = pdao.insertPodcast(p2);
+
+        e1 = edao.insertEpisode(e1);
+        Episode other = new Episode(p2);
+        other.setTitle("other");
+        other.setGuid("other guid");
+        other.setUrl("other url");
+        other.setStorageState(StorageState.NOT_ON_DEVICE);
+        edao.insertEpisode(other);
+
+        List<Episode> episodes = edao.getEpisodes(p1);
+        assertEquals(1, episodes.size());
+        assertSame(e1, episodes.get(0));
+        try {
+            episodes.clear();
+            fail("the returned list should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            /* expected */
+        }
+
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        edao.insertEpisode(e2);
+        assertEquals(2, edao.getEpisodes(p1).size());
+        assertEquals(1, edao.getEpisodes(p2).size());
+        assertSame(other, edao.getEpisodes(p2).get(0));
+    }
+
+    /**
+     * tests that the newest first order of the returned lists follows release
+     * date changes made by updates and upserts
+     */
+    public void testGetEpisodesFollowsReleaseDate() {
+        p1 = pdao.insertPodcast(p1);
+        e1.setReleased(1000);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        e2.setReleased(2000);
+        e1 = edao.insertEpisode(e1);
+        e2 = edao.insertEpisode(e2);
+        assertSame(e2, edao.getEpisodes(p1).get(0));
+
+        /* Newer than anything other tests may have left in the cache. */
+
+        e1.setReleased(Long.MAX_VALUE - 2);
+        edao.update(e1);
+        assertSame(e1, edao.getEpisodes(p1).get(0));
+        assertSame(e1, edao.getAllEpisodes().get(0));
+
+        Episode fromFeed = new Episode(p1);
+        fromFeed.setGuid("guid2");
+        fromFeed.setUrl("url2");
+        fromFeed.setTitle(e2.getTitle());
+        fromFeed.setReleased(Long.MAX_VALUE - 1);
+        List<Episode> batch = new ArrayList<Episode>();
+        batch.add(fromFeed);
+        assertNotNull(edao.upsertEpisodes(p1, batch));
+        assertSame(e2, edao.getEpisodes(p1).get(0));
+        assertSame(e2, edao.getAllEpisodes().get(0));
+    }
+
     /**
      * tests the updateState functionality
      */
@@ -145,7 +439,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         StorageState newState = StorageState.DOWNLOADED;
         e1.setStorageState(newState);
         assertEquals(1, edao.update(e1));
-        ArrayList<Episode> eps = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> eps = edao.getEpisodes(p1);
         Episode ep = eps.get(0);
         assertEquals(newState, ep.getStorageState());
     }
@@ -159,7 +453,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         String newPath = "a wholy shit new path";
         e1.setFilePath(newPath);
         assertEquals(1, edao.update(e1));
-        ArrayList<Episode> eps = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> eps = edao.getEpisodes(p1);
         Episode ep = eps.get(0);
         assertEquals(newPath, ep.getFilePath());
     }
@@ -172,7 +466,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         e1 = edao.insertEpisode(e1);
         e1.setActionState(ActionState.DELETE);
         assertEquals(1, edao.update(e1));
-        ArrayList<Episode> eps = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> eps = edao.getEpisodes(p1);
         Episode ep = eps.get(0);
         assertEquals(ActionState.DELETE, ep.getActionState());
     }
@@ -185,7 +479,7 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         e1 = edao.insertEpisode(e1);
         e1.setPlayPosition(33);
         assertEquals(1, edao.update(e1));
-        ArrayList<Episode> eps = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> eps = edao.getEpisodes(p1);
         Episode ep = eps.get(0);
         assertEquals(33, ep.getPlayPosition());
     }
@@ -196,10 +490,15 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
      */
     public void testDeletePodcastCascade() {
         p1 = pdao.insertPodcast(p1);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
         e1 = edao.insertEpisode(e1);
         e2 = edao.insertEpisode(e2);
+        assertNotNull(e1);
+        assertNotNull(e2);
+        assertEquals(2, edao.getEpisodes(p1).size());
         assertEquals(1, pdao.deletePodcast(p1));
-        ArrayList<Episode> eps = (ArrayList<Episode>)edao.getEpisodes(p1);
+        List<Episode> eps = edao.getEpisodes(p1);
         assertEquals(0, eps.size());
     }
 
@@ -235,7 +534,150 @@ public class EpisodeDAOImplTest extends AndroidTestCase {
         assertEquals(newGuid, newEp.getGuid());
     }
 
+    /**
+     * tests that episodes missing from the cache are looked up through the
+     * url and guid indices instead of scanning the episode table
+     */
+    public void testGetEpisodeByUrlOrGuidUsesIndex() {
+        SQLiteDatabase db = Singletons.i().getDatabaseHelper().getReadableDatabase();
+        String sql = String.format("EXPLAIN QUERY PLAN SELECT * FROM %s WHERE %s",
+                                   DatabaseHelper.TABLE_EPISODE,
+                                   SimpleEpisodeDAO.URL_OR_GUID_SELECTION);
+        String[] args = {
+            "url", "guid"
+        };
+
+        StringBuilder plan = new StringBuilder();
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+
+        assertTrue(plan.toString(), plan.indexOf("USING INDEX") >= 0);
+        assertTrue(plan.toString(), plan.indexOf("SCAN") < 0);
+    }
+
     public void testGetEpisodeByUrlOrGuidWhichNotExists() {
         assertNull(edao.getEpisodeByUrlOrGuid("thisurldoesntexist", "nosuchguidavailable"));
     }
+
+    /**
+     * tests that episodes read from the database are hydrated completely and
+     * share one podcast instance
+     */
+    public void testReadFromDatabase() {
+        p1 = pdao.insertPodcast(p1);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        edao.insertEpisode(e1);
+        edao.insertEpisode(e2);
+
+        List<Episode> read = new SimpleEpisodeDAO(getContext()).getEpisodes(p1);
+        assertEquals(2, read.size());
+        assertSame(read.get(0).getPodcast(), read.get(1).getPodcast());
+        assertEquals(p1.getId(), read.get(0).getPodcast().getId());
+
+        Episode e = read.get(0).getId() == e1.getId() ? read.get(0) : read.get(1);
+        assertEquals(e1.getGuid(), e.getGuid());
+        assertEquals(e1.getUrl(), e.getUrl());
+        assertEquals(e1.getTitle(), e.getTitle());
+        assertEquals(e1.getReleased(), e.getReleased());
+        assertEquals(e1.getStorageState(), e.getStorageState());
+    }
+
+    /**
+     * tests paging through the episodes by release date, with ties broken by
+     * id
+     */
+    public void testGetEpisodesReleasedBeforeAndAfter() {
+        p1 = pdao.insertPodcast(p1);
+
+        /* Newer than everything else in the database. */
+
+        long released = System.currentTimeMillis() + 1000L * 3600 * 24 * 365 * 100;
+        e1.setReleased(released);
+        e2.setReleased(released);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        Episode e3 = new Episode(p1);
+        e3.setTitle("title");
+        e3.setGuid("guid3");
+        e3.setUrl("url3");
+        e3.setReleased(released - 1);
+        e3.setStorageState(StorageState.NOT_ON_DEVICE);
+        edao.insertEpisode(e1);
+        edao.insertEpisode(e2);
+        edao.insertEpisode(e3);
+
+        List<Episode> page = edao.getEpisodesReleasedBefore(null, 1);
+        assertEquals(1, page.size());
+        assertSame(e1, page.get(0));
+
+        page = edao.getEpisodesReleasedBefore(e1, 2);
+        assertEquals(2, page.size());
+        assertSame(e2, page.get(0));
+        assertSame(e3, page.get(1));
+
+        page = edao.getEpisodesReleasedAfter(e3, 5);
+        assertEquals(2, page.size());
+        assertSame(e1, page.get(0));
+        assertSame(e2, page.get(1));
+
+        assertTrue(edao.getEpisodesReleasedAfter(e1, 5).isEmpty());
+    }
+
+    /**
+     * tests that update only writes the fields changed since the episode was
+     * last stored
+     */
+    public void testUpdateWritesOnlyChangedFields() {
+        p1 = pdao.insertPodcast(p1);
+        e1 = edao.insertEpisode(e1);
+        assertTrue(e1.takeDirtyFields().isEmpty());
+
+        e1.setTitle("title");
+        assertFalse(e1.isDirty(Episode.Field.TITLE));
+        assertEquals(0, edao.update(e1));
+
+        /* Change another column behind the back of e1. */
+
+        SimpleEpisodeDAO other = new SimpleEpisodeDAO(getContext());
+        Episode copy = other.getEpisode(e1.getId());
+        copy.setAuthor("other author");
+        assertEquals(1, other.update(copy));
+
+        e1.setTitle("new title");
+        assertTrue(e1.isDirty(Episode.Field.TITLE));
+        assertEquals(1, edao.update(e1));
+        assertFalse(e1.isDirty(Episode.Field.TITLE));
+
+        Episode stored = other.getEpisode(e1.getId());
+        assertEquals("new title", stored.getTitle());
+        assertEquals("other author", stored.getAuthor());
+    }
+
+    /**
+     * tests that updateEpisodes writes the changes of several episodes
+     */
+    public void testUpdateEpisodes() {
+        p1 = pdao.insertPodcast(p1);
+        e1 = edao.insertEpisode(e1);
+        e2.setGuid("guid2");
+        e2.setUrl("url2");
+        e2 = edao.insertEpisode(e2);
+
+        e1.setPlayPosition(1000);
+        e2.setActionState(ActionState.DOWNLOAD);
+        assertEquals(2, edao.updateEpisodes(Arrays.asList(e1, e2)));
+        assertEquals(0, edao.updateEpisodes(Arrays.asList(e1, e2)));
+
+        SimpleEpisodeDAO other = new SimpleEpisodeDAO(getContext());
+        assertEquals(1000, other.getEpisode(e1.getId()).getPlayPosition());
+        assertEquals(ActionState.DOWNLOAD, other.getEpisode(e2.getId()).getActionState());
+    }
 }
@@ -0,0 +1,186 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.util.Log;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Podcast;
+
+/**
+ * Tests the {@link EpisodeIndex} used by the {@link CachingEpisodeDAO}.
+ */
+public class EpisodeIndexTest extends TestCase {
+
+    private static final String TAG = EpisodeIndexTest.class.getName();
+
+    private static final int NUM_EPISODES = 50000;
+
+    private static final int NUM_LOOKUPS = 1000;
+
+    private static Episode createEpisode(Podcast p, long id) {
+        Episode e = new Episode(p);
+        e.setId(id);
+        e.setUrl("http://example.com/episode/" + id + ".mp3");
+        e.setGuid("guid-" + id);
+        return e;
+    }
+
+    public void testLookup() {
+        Podcast p = new Podcast();
+        Episode e1 = createEpisode(p, 1);
+        Episode e2 = createEpisode(p, 2);
+
+        EpisodeIndex index = new EpisodeIndex();
+        index.put(e1);
+        index.put(e2);
+
+        assertSame(e1, index.get(e1.getUrl(), null));
+        assertSame(e2, index.get(null, e2.getGuid()));
+        assertSame(e1, index.get(e1.getUrl(), e2.getGuid()));
+        assertSame(e2, index.get("unknown", e2.getGuid()));
+        assertNull(index.get("unknown", "unknown"));
+    }
+
+    /**
+     * Re-indexing an episode whose url and guid changed drops the old keys.
+     */
+    public void testUpdate() {
+        Episode e = createEpisode(new Podcast(), 1);
+        String oldUrl = e.getUrl();
+        String oldGuid = e.getGuid();
+
+        EpisodeIndex index = new EpisodeIndex();
+        index.put(e);
+
+        e.setUrl("new url");
+        e.setGuid("new guid");
+        index.put(e);
+
+        assertNull(index.get(oldUrl, oldGuid));
+        assertSame(e, index.get("new url", null));
+        assertSame(e, index.get(null, "new guid"));
+    }
+
+    public void testRemove() {
+        Episode e = createEpisode(new Podcast(), 1);
+
+        EpisodeIndex index = new EpisodeIndex();
+        index.put(e);
+        index.remove(e);
+
+        assertNull(index.get(e.getUrl(), e.getGuid()));
+    }
+
+    /**
+     * Removing an episode keeps the entry of another episode sharing its url.
+     */
+    public void testRemoveSharedUrl() {
+        Episode e1 = createEpisode(new Podcast(), 1);
+        Episode e2 = createEpisode(new Podcast(), 2);
+        e2.setUrl(e1.getUrl());
+
+        EpisodeIndex index = new EpisodeIndex();
+        index.put(e1);
+        index.put(e2);
+        index.remove(e1);
+
+        assertSame(e2, index.get(e1.getUrl(), null));
+    }
+
+    /**
+     * Episodes of two podcasts may share a guid. Removing the episode indexed
+     * last keeps the other one's entry.
+     */
+    public void testRemoveSharedGuidOfOtherPodcast() {
+        Podcast p1 = new Podcast();
+        p1.setId(1);
+        Podcast p2 = new Podcast();
+        p2.setId(2);
+        Episode e1 = createEpisode(p1, 1);
+        Episode e2 = createEpisode(p2, 2);
+        e2.setGuid(e1.getGuid());
+
+        EpisodeIndex index = new EpisodeIndex();
+        index.put(e1);
+        index.put(e2);
+        assertSame(e2, index.get(null, e1.getGuid()));
+
+        index.remove(e2);
+        assertSame(e1, index.get(null, e1.getGuid()));
+        assertSame(e1, index.get(e1.getUrl(), null));
+
+        index.remove(e1);
+        assertNull(index.get(e1.getUrl(), e1.getGuid()));
+    }
+
+    /**
+     * Compares indexed lookups with the linear scan over all cached episodes
+     * the {@link CachingEpisodeDAO} used before.
+     */
+    public void testBenchmarkAgainstLinearScan() {
+        Podcast p = new Podcast();
+        List<Episode> episodes = new ArrayList<Episode>(NUM_EPISODES);
+        EpisodeIndex index = new EpisodeIndex();
+        for (int i = 1; i <= NUM_EPISODES; i++) {
+            Episode e = createEpisode(p, i);
+            episodes.add(e);
+            index.put(e);
+        }
+
+        long step = NUM_EPISODES / NUM_LOOKUPS;
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            Episode e = episodes.get((int) (i * step));
+            assertSame(e, linearScan(episodes, null, e.getGuid()));
+        }
+        long scanMs = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            Episode e = episodes.get((int) (i * step));
+            assertSame(e, index.get(null, e.getGuid()));
+        }
+        long indexMs = System.currentTimeMillis() - start;
+
+        /* Timings depend on the device and are only logged. */
+
+        Log.i(TAG, String.format("%d lookups in %d episodes: scan %d ms, index %d ms",
+                                 NUM_LOOKUPS, NUM_EPISODES, scanMs, indexMs));
+    }
+
+    private static Episode linearScan(List<Episode> episodes, String url, String guid) {
+        for (Episode e : episodes) {
+            String otherUrl = e.getUrl();
+            if (otherUrl != null && otherUrl.equals(url)) {
+                return e;
+            }
+
+            String otherGuid = e.getGuid();
+            if (otherGuid != null && otherGuid.equals(guid)) {
+                return e;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link LongMultiset} used by the {@link PlaylistDAOImpl}.
+ */
+public class LongMultisetTest extends TestCase {
+
+    public void testCounts() {
+        LongMultiset set = new LongMultiset();
+        set.add(7);
+        set.add(7);
+        set.add(-1);
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove(7));
+        assertTrue(set.contains(7));
+        assertTrue(set.remove(7));
+        assertFalse(set.contains(7));
+        assertFalse(set.remove(7));
+        assertTrue(set.contains(-1));
+        assertEquals(1, set.size());
+    }
+
+    /**
+     * Random adds and removes over a small range of values, which forces
+     * collisions, rehashes and shifting deletions, checked against a map.
+     */
+    public void testAgainstMap() {
+        Random random = new Random(42);
+        LongMultiset set = new LongMultiset();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(500) * 1024L;
+            Integer count = expected.get(value);
+            if (random.nextBoolean()) {
+                set.add(value);
+                expected.put(value, count == null ? 1 : count + 1);
+            } else {
+                assertEquals(count != null, set.remove(value));
+                if (count != null && count > 1) {
+                    expected.put(value, count - 1);
+                } else {
+                    expected.remove(value);
+                }
+            }
+            assertEquals(expected.containsKey(value), set.contains(value));
+        }
+
+        assertEquals(expected.size(), set.size());
+        for (long value = 0; value < 500 * 1024L; value += 1024) {
+            assertEquals(expected.containsKey(value), set.contains(value));
+        }
+    }
+}
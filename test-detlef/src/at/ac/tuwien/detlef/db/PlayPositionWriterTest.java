@@ -0,0 +1,134 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.db;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+import at.ac.tuwien.detlef.Singletons;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.domain.Podcast;
+
+/**
+ * Tests the {@link PlayPositionWriter}.
+ */
+public class PlayPositionWriterTest extends AndroidTestCase {
+
+    private EpisodeDAO edao;
+    private Episode episode;
+
+    private final AtomicInteger writes = new AtomicInteger(0);
+
+    private final EpisodeDAO.OnEpisodeChangeListener listener =
+    new EpisodeDAO.OnEpisodeChangeListener() {
+        @Override
+        public void onEpisodeChanged(Episode e) {
+            if (e == episode) {
+                writes.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onEpisodeAdded(Episode e) {
+        }
+
+        @Override
+        public void onEpisodeDeleted(Episode e) {
+        }
+
+        @Override
+        public void onEpisodesAdded(List<Episode> episodes) {
+        }
+
+        @Override
+        public void onEpisodesChanged(List<Episode> episodes) {
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Podcast p = new Podcast();
+        p.setTitle("title");
+        p.setUrl("url " + UUID.randomUUID().toString());
+        p = Singletons.i().getPodcastDAO().insertPodcast(p);
+
+        episode = new Episode(p);
+        episode.setTitle("title");
+        episode.setGuid("guid");
+        episode.setUrl("url");
+        episode.setStorageState(StorageState.NOT_ON_DEVICE);
+
+        edao = Singletons.i().getEpisodeDAO();
+        edao.insertEpisode(episode);
+        edao.addEpisodeChangedListener(listener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        edao.removeEpisodeChangedListener(listener);
+        super.tearDown();
+    }
+
+    /**
+     * Several positions of one episode are written once, with the latest
+     * position.
+     */
+    public void testCoalesce() {
+        PlayPositionWriter writer = new PlayPositionWriter(edao, 60000);
+        for (int position = 1000; position <= 5000; position += 1000) {
+            episode.setPlayPosition(position);
+            writer.enqueue(episode);
+        }
+        writer.shutdown();
+
+        assertEquals(1, writes.get());
+        Episode stored = new SimpleEpisodeDAO(getContext()).getEpisode(episode.getId());
+        assertEquals(5000, stored.getPlayPosition());
+    }
+
+    /**
+     * An unchanged position is not written again.
+     */
+    public void testUnchanged() {
+        PlayPositionWriter writer = new PlayPositionWriter(edao, 60000);
+        writer.enqueue(episode);
+        writer.shutdown();
+
+        assertEquals(0, writes.get());
+    }
+
+    /**
+     * Pending positions are written once the delay has passed.
+     */
+    public void testDelayedFlush() throws Exception {
+        PlayPositionWriter writer = new PlayPositionWriter(edao, 100);
+        episode.setPlayPosition(1234);
+        writer.enqueue(episode);
+
+        Thread.sleep(1000);
+        assertEquals(1, writes.get());
+
+        writer.shutdown();
+        assertEquals(1, writes.get());
+    }
+}
@@ -19,9 +19,9 @@
 
 package at.ac.tuwien.detlef.db;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 import at.ac.tuwien.detlef.Singletons;
 import at.ac.tuwien.detlef.domain.Episode;
@@ -51,18 +51,18 @@ public class PlaylistDAOImplTest extends AndroidTestCase {
         p1.setLogoFilePath("logo file path");
         p1.setLogoUrl("logo url");
         p1.setTitle("title");
-        p1.setUrl("die url halt");
+        p1.setUrl("die url halt " + java.util.UUID.randomUUID().toString());
 
         e0 = new Episode(p1);
         e0.setAuthor("author");
         e0.setDescription("description");
         e0.setFileSize(0);
-        e0.setGuid("guid");
+        e0.setGuid("guid0");
         e0.setLink("link");
         e0.setMimetype("mimetype");
         e0.setReleased(System.currentTimeMillis());
         e0.setTitle("title");
-        e0.setUrl("url");
+        e0.setUrl("url0");
         e0.setStorageState(StorageState.NOT_ON_DEVICE);
         e0.setFilePath("path");
 
@@ -70,12 +70,12 @@ public class PlaylistDAOImplTest extends AndroidTestCase {
         e1.setAuthor("author");
         e1.setDescription("description");
         e1.setFileSize(0);
-        e1.setGuid("guid");
+        e1.setGuid("guid1");
         e1.setLink("link");
         e1.setMimetype("mimetype");
         e1.setReleased(System.currentTimeMillis());
         e1.setTitle("title");
-        e1.setUrl("url");
+        e1.setUrl("url1");
         e1.setStorageState(StorageState.NOT_ON_DEVICE);
         e1.setFilePath("path");
 
@@ -83,12 +83,12 @@ public class PlaylistDAOImplTest extends AndroidTestCase {
         e2.setAuthor("author");
         e2.setDescription("description");
         e2.setFileSize(0);
-        e2.setGuid("guid");
+        e2.setGuid("guid2");
         e2.setLink("link");
         e2.setMimetype("mimetype");
         e2.setReleased(System.currentTimeMillis());
         e2.setTitle("title");
-        e2.setUrl("url");
+        e2.setUrl("url2");
         e2.setStorageState(StorageState.NOT_ON_DEVICE);
         e2.setFilePath("path");
 
@@ -106,11 +106,11 @@ public class PlaylistDAOImplTest extends AndroidTestCase {
         super.tearDown();
     }
 
+    /**
+     * Empties the playlist through the DAO, which keeps the playlist in memory.
+     */
     private void clearDatabase() {
-        DatabaseHelper dbHelper = Singletons.i().getDatabaseHelper();
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.delete(DatabaseHelper.TABLE_PLAYLIST, null, null);
-        db.close();
+        ldao.clearPlaylist();
     }
 
     public void testAddToBeginning() {
@@ -348,4 +348,189 @@ public class PlaylistDAOImplTest extends AndroidTestCase {
         assertTrue(playlist.size() == 0);
         assertTrue(ldao.checkNoGaps());
     }
+
+    /**
+     * An episode stays in the playlist until its last occurrence is removed.
+     */
+    public void testIsInPlaylist() {
+        ldao.clearPlaylist();
+
+        p1 = pdao.insertPodcast(p1);
+        e0 = edao.insertEpisode(e0);
+        e1 = edao.insertEpisode(e1);
+        e2 = edao.insertEpisode(e2);
+
+        ldao.addEpisodeToEndOfPlaylist(e0);
+        ldao.addEpisodeToEndOfPlaylist(e1);
+        ldao.addEpisodeToBeginningOfPlaylist(e1);
+        assertTrue(ldao.isInPlaylist(e0.getId()));
+        assertTrue(ldao.isInPlaylist(e1.getId()));
+        assertFalse(ldao.isInPlaylist(e2.getId()));
+
+        ldao.removeEpisode(0);
+        assertTrue(ldao.isInPlaylist(e1.getId()));
+        ldao.removeEpisode(1);
+        assertFalse(ldao.isInPlaylist(e1.getId()));
+
+        edao.deleteEpisode(e0);
+        assertFalse(ldao.isInPlaylist(e0.getId()));
+
+        ldao.addEpisodeToEndOfPlaylist(e2);
+        ldao.clearPlaylist();
+        assertFalse(ldao.isInPlaylist(e2.getId()));
+    }
+
+    /**
+     * Repeatedly moving items between the same neighbours exhausts the room
+     * between their ranks, which are then spread out again.
+     */
+    public void testMoveRespread() {
+        clearDatabase();
+
+        p1 = pdao.insertPodcast(p1);
+        e0 = edao.insertEpisode(e0);
+        e1 = edao.insertEpisode(e1);
+        e2 = edao.insertEpisode(e2);
+
+        ldao.addEpisodeToEndOfPlaylist(e0);
+        ldao.addEpisodeToEndOfPlaylist(e1);
+        ldao.addEpisodeToEndOfPlaylist(e2);
+
+        /* Alternately moves e2 and e1 into the middle. */
+
+        for (int i = 0; i < 40; i++) {
+            assertTrue(ldao.moveEpisode(2, 1));
+            assertTrue(ldao.checkNoGaps());
+        }
+
+        List<Episode> playlist = ldao.getNonCachedEpisodes();
+        assertEquals(3, playlist.size());
+        assertTrue(playlist.get(0) == e0);
+        assertTrue(playlist.get(1) == e1);
+        assertTrue(playlist.get(2) == e2);
+
+        assertTrue(ldao.addEpisodeToBeginningOfPlaylist(e2));
+        assertTrue(ldao.checkNoGaps());
+        assertTrue(ldao.getNonCachedEpisodes().get(0) == e2);
+    }
+
+    /**
+     * The snapshot is immutable, replaced on every change, and already
+     * contains a change when the listeners are notified of it.
+     */
+    public void testSnapshot() {
+        clearDatabase();
+
+        p1 = pdao.insertPodcast(p1);
+        e0 = edao.insertEpisode(e0);
+        e1 = edao.insertEpisode(e1);
+
+        ldao.addEpisodeToEndOfPlaylist(e0);
+        List<Episode> before = ldao.getEpisodes();
+        assertEquals(1, before.size());
+        try {
+            before.add(e1);
+            fail("the snapshot must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            /* Expected. */
+        }
+
+        final List<List<Episode>> seen = new ArrayList<List<Episode>>();
+        PlaylistDAO.OnPlaylistChangeListener listener =
+        new PlaylistDAO.OnPlaylistChangeListener() {
+            @Override
+            public void onPlaylistEpisodeAdded(int position, Episode episode) {
+                seen.add(ldao.getEpisodes());
+            }
+
+            @Override
+            public void onPlaylistEpisodePositionChanged(int firstPosition, int secondPosition) {
+                seen.add(ldao.getEpisodes());
+            }
+
+            @Override
+            public void onPlaylistEpisodeRemoved(int position) {
+                seen.add(ldao.getEpisodes());
+            }
+        };
+        ldao.addPlaylistChangedListener(listener);
+        try {
+            ldao.addEpisodeToBeginningOfPlaylist(e1);
+            ldao.moveEpisode(0, 1);
+        } finally {
+            ldao.removePlaylistChangeListener(listener);
+        }
+
+        assertEquals(1, before.size());
+        assertEquals(2, seen.size());
+        assertTrue(seen.get(0).get(0) == e1);
+        assertTrue(seen.get(1).get(0) == e0);
+        assertTrue(seen.get(1) == ldao.getEpisodes());
+    }
+
+    /**
+     * Changes made concurrently are reported in the order they were made,
+     * each while the snapshot is the one right after the change.
+     */
+    public void testConcurrentNotificationsInOrder() throws InterruptedException {
+        clearDatabase();
+
+        p1 = pdao.insertPodcast(p1);
+        e0 = edao.insertEpisode(e0);
+        e1 = edao.insertEpisode(e1);
+
+        final int adds = 20;
+        final List<Integer> positions = new ArrayList<Integer>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        PlaylistDAO.OnPlaylistChangeListener listener =
+        new PlaylistDAO.OnPlaylistChangeListener() {
+            @Override
+            public void onPlaylistEpisodeAdded(int position, Episode episode) {
+                synchronized (positions) {
+                    positions.add(position);
+                    sizes.add(ldao.getEpisodes().size());
+                }
+            }
+
+            @Override
+            public void onPlaylistEpisodePositionChanged(int firstPosition, int secondPosition) {
+                /* Not of interest. */
+            }
+
+            @Override
+            public void onPlaylistEpisodeRemoved(int position) {
+                /* Not of interest. */
+            }
+        };
+
+        Thread[] threads = new Thread[2];
+        final Episode[] episodes = {e0, e1};
+        ldao.addPlaylistChangedListener(listener);
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                final Episode episode = episodes[i];
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < adds; j++) {
+                            ldao.addEpisodeToEndOfPlaylist(episode);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            ldao.removePlaylistChangeListener(listener);
+        }
+
+        assertEquals(threads.length * adds, positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            assertEquals(i, positions.get(i).intValue());
+            assertEquals(i + 1, sizes.get(i).intValue());
+        }
+        assertTrue(ldao.checkNoGaps());
+    }
 }
@@ -116,6 +116,44 @@ public class PodcastDAOImplTest extends AndroidTestCase {
         assertEquals(currentMilis, pod.getLastUpdate());
     }
 
+    /**
+     * Tests that an update without any changed field isn't written and
+     * doesn't notify the listeners.
+     */
+    public void testUpdateUnchanged() {
+        final int[] changes = {0};
+        PodcastDAO.OnPodcastChangeListener listener = new PodcastDAO.OnPodcastChangeListener() {
+            @Override
+            public void onPodcastChanged(Podcast podcast) {
+                changes[0]++;
+            }
+
+            @Override
+            public void onPodcastAdded(Podcast podcast) {
+            }
+
+            @Override
+            public void onPodcastDeleted(Podcast podcast) {
+            }
+        };
+
+        pdao.insertPodcast(p1);
+        pdao.addPodcastChangedListener(listener);
+        try {
+            assertEquals(0, pdao.update(p1));
+            assertEquals(0, changes[0]);
+
+            p1.setTitle("new title");
+            assertEquals(1, pdao.update(p1));
+            assertEquals(1, changes[0]);
+
+            assertEquals(0, pdao.update(p1));
+            assertEquals(1, changes[0]);
+        } finally {
+            pdao.removePodListChangeListener(listener);
+        }
+    }
+
     /**
      * tests insert podcast functionality with trying to insert
      * null on a non nullable column
@@ -147,6 +185,32 @@ public class PodcastDAOImplTest extends AndroidTestCase {
         assertEquals(url, nw.getUrl());
     }
 
+    /**
+     * tests that getPodcastByUrl follows a url rewritten via update
+     */
+    public void testGetPodcastByUrlAfterUpdate() {
+        p1 = pdao.insertPodcast(p1);
+        assertSame(p1, pdao.getPodcastByUrl("url"));
+
+        p1.setUrl("rewrittenUrl");
+        assertEquals(1, pdao.update(p1));
+
+        assertNull(pdao.getPodcastByUrl("url"));
+        assertSame(p1, pdao.getPodcastByUrl("rewrittenUrl"));
+    }
+
+    /**
+     * tests that the same url can't be inserted twice
+     */
+    public void testInsertDuplicateUrlShouldFail() {
+        pdao.insertPodcast(p1);
+
+        Podcast p2 = new Podcast();
+        p2.setTitle("other title");
+        p2.setUrl(p1.getUrl());
+        assertNull(pdao.insertPodcast(p2));
+    }
+
     /**
      * Tests adding a podcast locally.
      */
@@ -185,4 +249,28 @@ public class PodcastDAOImplTest extends AndroidTestCase {
         assertTrue(!pdao.getLocallyDeletedPodcasts().contains(p1));
     }
 
+    /**
+     * Tests subscribing again to a podcast which was deleted locally, before
+     * the delete has been pushed.
+     */
+    public void testInsertRevivesLocallyDeletedPodcast() {
+        pdao.insertPodcast(p1);
+        long id = p1.getId();
+        assertTrue(pdao.localDeletePodcast(p1));
+
+        Podcast p2 = new Podcast();
+        p2.setTitle("other title");
+        p2.setUrl(p1.getUrl());
+        p2.setLocalAdd(true);
+        assertSame(p2, pdao.insertPodcast(p2));
+        assertEquals(id, p2.getId());
+        assertFalse(p2.isLocalAdd());
+        assertFalse(p2.isLocalDel());
+
+        assertTrue(pdao.getLocallyDeletedPodcasts().isEmpty());
+        assertTrue(pdao.getLocallyAddedPodcasts().isEmpty());
+        assertEquals(1, pdao.getNonDeletedPodcasts().size());
+        assertEquals("other title", pdao.getPodcastByUrl(p1.getUrl()).getTitle());
+    }
+
 }
@@ -73,11 +73,55 @@ public class FeedUpdateTest extends TestCase {
         assertEquals(f.getUrl(), fu.getUrl());
         assertEquals(4000, fu.getLastReleaseTime());
 
+        /* Episodes released before the last update may have been edited, they
+         * are merged into the stored ones. */
+
         IEpisode[] ies = fu.getEpisodes();
-        assertEquals(2, ies.length);
-        assertEquals(e3.getTitle(), ies[0].getTitle());
-        assertEquals(e3.getReleased(), ies[0].getReleased());
-        assertEquals(e4.getTitle(), ies[1].getTitle());
-        assertEquals(e4.getReleased(), ies[1].getReleased());
+        assertEquals(4, ies.length);
+        assertEquals(e1.getTitle(), ies[0].getTitle());
+        assertEquals(e1.getReleased(), ies[0].getReleased());
+        assertEquals(e2.getTitle(), ies[1].getTitle());
+        assertEquals(e2.getReleased(), ies[1].getReleased());
+        assertEquals(e3.getTitle(), ies[2].getTitle());
+        assertEquals(e4.getTitle(), ies[3].getTitle());
+    }
+
+    /**
+     * The last release time never goes back behind the podcast's last update.
+     */
+    public void testLastReleaseTimeOfOldEpisodes() {
+        Podcast p = new Podcast();
+        p.setLastUpdate(2000);
+
+        final Episode e1 = new Episode(p);
+        e1.setTitle("e1");
+        e1.setReleased(1000);
+
+        IFeed f = new IFeed() {
+            @Override
+            public String getDescription() {
+                return "description";
+            }
+            @Override
+            public IEpisode[] getEpisodes() {
+                return new IEpisode[] {e1};
+            }
+            @Override
+            public String getLink() {
+                return "link";
+            }
+            @Override
+            public String getTitle() {
+                return "title";
+            }
+            @Override
+            public String getUrl() {
+                return "url";
+            }
+        };
+
+        FeedUpdate fu = new FeedUpdate(f, p);
+        assertEquals(1, fu.getEpisodes().length);
+        assertEquals(2000, fu.getLastReleaseTime());
     }
 }
@@ -0,0 +1,185 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.domain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the downsampling and the thumbnails of the {@link PodcastLogoLoader}.
+ */
+public class PodcastLogoLoaderTest extends AndroidTestCase {
+
+    private static final int LOGO_SIZE_PX = 400;
+
+    /** Older than any thumbnail written by the tests. */
+    private static final long LOGO_AGE_MS = 60 * 1000;
+
+    private File dir;
+    private File thumbnailDir;
+    private File logo;
+    private Podcast podcast;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        dir = new File(getContext().getCacheDir(), "podcast-logo-loader-test");
+        thumbnailDir = new File(dir, "logos");
+        delete(dir);
+        assertTrue(dir.mkdirs());
+
+        logo = new File(dir, "logo.png");
+        writeLogo(Color.RED, System.currentTimeMillis() - LOGO_AGE_MS);
+
+        podcast = new Podcast();
+        podcast.setId(1);
+        podcast.setLogoFilePath(logo.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+
+        super.tearDown();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void writePng(File file, int color, int size) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            assertTrue(bitmap.compress(Bitmap.CompressFormat.PNG, 100, out));
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+    }
+
+    private void writeLogo(int color, long lastModified) throws IOException {
+        writePng(logo, color, LOGO_SIZE_PX);
+        assertTrue(logo.setLastModified(lastModified));
+    }
+
+    /**
+     * A new loader has an empty memory cache, so its first load goes to the
+     * thumbnail or the logo file.
+     */
+    private int loadColor() {
+        PodcastLogoLoader loader = new PodcastLogoLoader(getContext().getResources(),
+                thumbnailDir);
+        Bitmap bitmap = ((BitmapDrawable) loader.getLogo(podcast)).getBitmap();
+        return bitmap.getPixel(0, 0);
+    }
+
+    private File thumbnail() {
+        return new PodcastLogoLoader(getContext().getResources(), thumbnailDir)
+               .thumbnailFile(podcast.getId(), PodcastLogoLoader.DEFAULT_SIZE_PX);
+    }
+
+    /**
+     * Images at or below the requested size are not downsampled.
+     */
+    public void testSampleSizeSmall() {
+        assertEquals(1, PodcastLogoLoader.sampleSize(80, 80, 80));
+        assertEquals(1, PodcastLogoLoader.sampleSize(40, 40, 80));
+        assertEquals(1, PodcastLogoLoader.sampleSize(159, 159, 80));
+    }
+
+    /**
+     * Large images are downsampled by the largest power of two which keeps
+     * both dimensions at least at the requested size.
+     */
+    public void testSampleSizeLarge() {
+        assertEquals(2, PodcastLogoLoader.sampleSize(160, 160, 80));
+        assertEquals(4, PodcastLogoLoader.sampleSize(600, 600, 80));
+        assertEquals(16, PodcastLogoLoader.sampleSize(1400, 1400, 80));
+        assertEquals(2, PodcastLogoLoader.sampleSize(1400, 200, 80));
+    }
+
+    /**
+     * The first load decodes the logo file and creates a downsampled
+     * thumbnail.
+     */
+    public void testThumbnailCreatedOnFirstLoad() {
+        assertFalse(thumbnail().exists());
+
+        assertEquals(Color.RED, loadColor());
+        assertTrue(thumbnail().isFile());
+        assertTrue(thumbnail().length() < logo.length());
+    }
+
+    /**
+     * Later loads decode the thumbnail instead of the logo file. The
+     * thumbnail is replaced by one of another color to tell them apart.
+     */
+    public void testThumbnailReused() throws IOException {
+        assertEquals(Color.RED, loadColor());
+        long created = thumbnail().lastModified();
+
+        writePng(thumbnail(), Color.GREEN, PodcastLogoLoader.DEFAULT_SIZE_PX);
+        assertTrue(thumbnail().setLastModified(created));
+
+        assertEquals(Color.GREEN, loadColor());
+        assertEquals(created, thumbnail().lastModified());
+    }
+
+    /**
+     * A logo file changed after its thumbnail was created is decoded again,
+     * and its thumbnail is replaced.
+     */
+    public void testThumbnailRegeneratedAfterLogoChange() throws IOException {
+        assertEquals(Color.RED, loadColor());
+        long created = thumbnail().lastModified();
+
+        writeLogo(Color.BLUE, created + LOGO_AGE_MS);
+        assertEquals(Color.BLUE, loadColor());
+
+        Bitmap bitmap = BitmapFactory.decodeFile(thumbnail().getAbsolutePath());
+        assertEquals(Color.BLUE, bitmap.getPixel(0, 0));
+    }
+
+    /**
+     * A logo replaced within the same second as its thumbnail was created
+     * isn't mistaken for the old one.
+     */
+    public void testThumbnailRegeneratedForLogoOfSameTime() throws IOException {
+        assertEquals(Color.RED, loadColor());
+
+        writeLogo(Color.BLUE, thumbnail().lastModified());
+        assertEquals(Color.BLUE, loadColor());
+    }
+}
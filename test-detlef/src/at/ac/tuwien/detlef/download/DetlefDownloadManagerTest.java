@@ -117,6 +117,11 @@ public class DetlefDownloadManagerTest extends AndroidTestCase {
             return DownloadManager.Request.VISIBILITY_VISIBLE;
         }
 
+        @Override
+        public int getAllowedNetworkTypes() {
+            return DownloadManager.Request.NETWORK_WIFI | DownloadManager.Request.NETWORK_MOBILE;
+        }
+
         @Override
         public Object getObject() {
             return null;
@@ -0,0 +1,263 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import at.ac.tuwien.detlef.db.PlaylistDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Action;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Decision;
+
+/**
+ * Tests how the {@link PlaylistPrefetcher} applies its decisions.
+ */
+public class PlaylistPrefetcherTest extends TestCase {
+
+    private final List<Episode> playlist = new ArrayList<Episode>();
+    private final List<Episode> downloads = new ArrayList<Episode>();
+    private final List<Episode> cancels = new ArrayList<Episode>();
+    private final List<Boolean> wifiOnly = new ArrayList<Boolean>();
+
+    /** If not null, downloads are held until it is opened. */
+    private volatile CountDownLatch downloadGate;
+    private final CountDownLatch downloading = new CountDownLatch(1);
+
+    /** Marks episodes as downloading like the download manager does. */
+    private final PlaylistPrefetcher.Downloader downloader = new PlaylistPrefetcher.Downloader() {
+        @Override
+        public void download(Episode episode, boolean wifiOnly) throws IOException {
+            if (downloadGate != null) {
+                downloading.countDown();
+                try {
+                    downloadGate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            downloads.add(episode);
+            PlaylistPrefetcherTest.this.wifiOnly.add(wifiOnly);
+            episode.setStorageState(StorageState.DOWNLOADING);
+        }
+
+        @Override
+        public void cancel(Episode episode) {
+            cancels.add(episode);
+            episode.setStorageState(StorageState.NOT_ON_DEVICE);
+        }
+
+        @Override
+        public long getFreeBytes() {
+            return Long.MAX_VALUE / 2;
+        }
+    };
+
+    /** Only hands out the playlist. */
+    private final PlaylistDAO playlistDAO = new PlaylistDAO() {
+        @Override
+        public List<Episode> getEpisodes() {
+            return Collections.unmodifiableList(new ArrayList<Episode>(playlist));
+        }
+
+        @Override
+        public boolean addEpisodeToEndOfPlaylist(Episode episode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addEpisodeToBeginningOfPlaylist(Episode episode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ArrayList<Episode> getNonCachedEpisodes() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isInPlaylist(long episodeId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeEpisode(int position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean moveEpisode(int firstPosition, int secondPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addPlaylistChangedListener(OnPlaylistChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removePlaylistChangeListener(OnPlaylistChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clearPlaylist() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeEpisodesById(long id) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private PlaylistPrefetcher prefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Podcast podcast = new Podcast();
+        for (int i = 0; i < 4; i++) {
+            playlist.add(new Episode(podcast).setFileSize(1000).setId(i));
+        }
+        prefetcher = new PlaylistPrefetcher(playlistDAO, downloader,
+                                            new PrefetchPolicy(2, Long.MAX_VALUE / 2, 0));
+    }
+
+    /**
+     * Downloads follow the playback position, and are started once.
+     */
+    public void testFollowsPosition() {
+        prefetcher.update();
+        assertEquals(playlist.subList(0, 2), downloads);
+
+        prefetcher.update();
+        assertEquals(2, downloads.size());
+
+        prefetcher.setPlaybackState(2, playlist.get(2));
+        prefetcher.update();
+        assertEquals(3, downloads.size());
+        assertSame(playlist.get(3), downloads.get(2));
+        assertEquals(Action.STREAMING, prefetcher.getDecisions().get(0).getAction());
+    }
+
+    /**
+     * Prefetches are restricted to Wi-Fi unless the policy allows otherwise.
+     */
+    public void testWifiOnly() {
+        prefetcher.update();
+        assertEquals(Arrays.asList(true, true), wifiOnly);
+
+        prefetcher.setPolicy(new PrefetchPolicy(3, Long.MAX_VALUE / 2, 0, false));
+        prefetcher.update();
+        assertEquals(Arrays.asList(true, true, false), wifiOnly);
+    }
+
+    /**
+     * Nothing is downloaded ahead with the default settings.
+     */
+    public void testOffByDefault() {
+        prefetcher.setPolicy(new PrefetchPolicy(PrefetchPolicy.DEFAULT_MAX_EPISODES,
+                                                PrefetchPolicy.DEFAULT_MAX_MB,
+                                                PrefetchPolicy.DEFAULT_MIN_FREE_MB));
+        assertTrue(prefetcher.update().isEmpty());
+        assertTrue(downloads.isEmpty());
+    }
+
+    /**
+     * The playback state can be changed while a download is being started.
+     */
+    public void testPlaybackStateDuringDownload() throws Exception {
+        downloadGate = new CountDownLatch(1);
+        Thread updater = new Thread() {
+            @Override
+            public void run() {
+                prefetcher.update();
+            }
+        };
+        updater.start();
+        try {
+            assertTrue(downloading.await(5, TimeUnit.SECONDS));
+
+            Thread player = new Thread() {
+                @Override
+                public void run() {
+                    prefetcher.setPlaybackState(1, playlist.get(1));
+                    prefetcher.getDecisions();
+                }
+            };
+            player.start();
+            player.join(5000);
+            assertFalse(player.isAlive());
+        } finally {
+            downloadGate.countDown();
+            updater.join(5000);
+        }
+    }
+
+    /**
+     * Prefetches of episodes leaving the playlist are cancelled, those moved
+     * out of the window keep going.
+     */
+    public void testCancel() {
+        prefetcher.update();
+
+        Episode removed = playlist.remove(0);
+        Episode moved = playlist.remove(0);
+        playlist.add(moved);
+
+        List<Decision> decisions = prefetcher.update();
+        assertEquals(Collections.singletonList(removed), cancels);
+        assertEquals(Action.CANCEL, decisions.get(0).getAction());
+        assertSame(removed, decisions.get(0).getEpisode());
+        assertEquals(StorageState.DOWNLOADING, moved.getStorageState());
+    }
+
+    /**
+     * A prefetch cancelled by somebody else isn't retried while the episode
+     * stays in the playlist.
+     */
+    public void testNoRetry() {
+        prefetcher.update();
+        playlist.get(0).setStorageState(StorageState.NOT_ON_DEVICE);
+
+        List<Decision> decisions = prefetcher.update();
+        assertEquals(2, downloads.size());
+        assertEquals(Action.FAILED, decisions.get(0).getAction());
+
+        /* Leaving the playlist forgets about it. */
+
+        Episode episode = playlist.remove(0);
+        prefetcher.update();
+        assertEquals(3, downloads.size());
+
+        playlist.add(0, episode);
+        prefetcher.update();
+        assertEquals(4, downloads.size());
+        assertSame(episode, downloads.get(3));
+    }
+}
@@ -0,0 +1,142 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.Episode.StorageState;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Action;
+import at.ac.tuwien.detlef.download.PrefetchPolicy.Decision;
+
+/**
+ * Tests the decisions of the {@link PrefetchPolicy}.
+ */
+public class PrefetchPolicyTest extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final long PLENTY = 100000 * MB;
+
+    private static final Set<Long> NONE = Collections.emptySet();
+
+    private final Podcast podcast = new Podcast();
+
+    private Episode episode(long id, long sizeMb, StorageState state) {
+        return new Episode(podcast).setFileSize(sizeMb * MB).setStorageState(state).setId(id);
+    }
+
+    private List<Episode> playlist(int count) {
+        List<Episode> playlist = new ArrayList<Episode>();
+        for (int i = 0; i < count; i++) {
+            playlist.add(episode(i, 10, StorageState.NOT_ON_DEVICE));
+        }
+        return playlist;
+    }
+
+    /**
+     * The next maxEpisodes episodes from position on are considered, and the
+     * episode being streamed isn't downloaded as well.
+     */
+    public void testWindow() {
+        List<Episode> playlist = playlist(5);
+        playlist.get(2).setStorageState(StorageState.DOWNLOADED);
+
+        PrefetchPolicy policy = new PrefetchPolicy(3, 1000 * MB, 0);
+        List<Decision> decisions = policy.decide(playlist, 1, playlist.get(1), NONE, PLENTY);
+
+        assertEquals(3, decisions.size());
+        assertSame(playlist.get(1), decisions.get(0).getEpisode());
+        assertEquals(Action.STREAMING, decisions.get(0).getAction());
+        assertEquals(Action.DOWNLOADED, decisions.get(1).getAction());
+        assertEquals(Action.DOWNLOAD, decisions.get(2).getAction());
+        assertSame(playlist.get(3), decisions.get(2).getEpisode());
+    }
+
+    /**
+     * An episode occurring several times is considered once.
+     */
+    public void testDuplicates() {
+        List<Episode> playlist = playlist(2);
+        playlist.add(1, playlist.get(0));
+
+        List<Decision> decisions = new PrefetchPolicy(2, 1000 * MB, 0)
+        .decide(playlist, 0, null, NONE, PLENTY);
+
+        assertEquals(2, decisions.size());
+        assertSame(playlist.get(2), decisions.get(1).getEpisode());
+    }
+
+    /**
+     * Episodes held ahead count against the byte budget, and later episodes
+     * aren't downloaded ahead of one which doesn't fit.
+     */
+    public void testByteBudget() {
+        List<Episode> playlist = new ArrayList<Episode>();
+        playlist.add(episode(0, 40, StorageState.DOWNLOADING));
+        playlist.add(episode(1, 40, StorageState.NOT_ON_DEVICE));
+        playlist.add(episode(2, 40, StorageState.NOT_ON_DEVICE));
+        playlist.add(episode(3, 5, StorageState.NOT_ON_DEVICE));
+
+        List<Decision> decisions = new PrefetchPolicy(4, 100 * MB, 0)
+        .decide(playlist, 0, null, NONE, PLENTY);
+
+        assertEquals(Action.DOWNLOADING, decisions.get(0).getAction());
+        assertEquals(Action.DOWNLOAD, decisions.get(1).getAction());
+        assertEquals(Action.OVER_BYTE_BUDGET, decisions.get(2).getAction());
+        assertEquals(Action.OVER_BYTE_BUDGET, decisions.get(3).getAction());
+    }
+
+    /**
+     * Downloads leave at least minFreeBytes free, and nothing is downloaded
+     * without storage.
+     */
+    public void testStorageBudget() {
+        PrefetchPolicy policy = new PrefetchPolicy(3, 1000 * MB, 50 * MB);
+
+        List<Decision> decisions = policy.decide(playlist(3), 0, null, NONE, 75 * MB);
+        assertEquals(Action.DOWNLOAD, decisions.get(0).getAction());
+        assertEquals(Action.DOWNLOAD, decisions.get(1).getAction());
+        assertEquals(Action.OVER_STORAGE_BUDGET, decisions.get(2).getAction());
+
+        decisions = policy.decide(playlist(1), 0, null, NONE, -1);
+        assertEquals(Action.OVER_STORAGE_BUDGET, decisions.get(0).getAction());
+    }
+
+    /**
+     * Failed episodes aren't retried, and no episodes disables prefetching.
+     */
+    public void testFailedAndDisabled() {
+        Set<Long> failed = new HashSet<Long>();
+        failed.add(0L);
+
+        List<Decision> decisions = new PrefetchPolicy(2, 1000 * MB, 0)
+        .decide(playlist(2), 0, null, failed, PLENTY);
+        assertEquals(Action.FAILED, decisions.get(0).getAction());
+        assertEquals(Action.DOWNLOAD, decisions.get(1).getAction());
+
+        assertTrue(new PrefetchPolicy(0, 1000 * MB, 0)
+                   .decide(playlist(2), 0, null, NONE, PLENTY).isEmpty());
+    }
+}
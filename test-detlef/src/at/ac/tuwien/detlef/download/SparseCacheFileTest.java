@@ -0,0 +1,118 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.File;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the range bookkeeping of the {@link SparseCacheFile}.
+ */
+public class SparseCacheFileTest extends AndroidTestCase {
+
+    private static final String SOURCE = "http://example.com/episode.mp3";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(getContext().getCacheDir(), "sparse-cache-file-test");
+        file.delete();
+        SparseCacheFile.getIndexFile(file).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        SparseCacheFile.getIndexFile(file).delete();
+
+        super.tearDown();
+    }
+
+    private static void write(SparseCacheFile cache, long offset, int count) throws Exception {
+        cache.write(offset, new byte[count], 0, count);
+    }
+
+    /**
+     * Adjacent and overlapping ranges are merged.
+     */
+    public void testRanges() throws Exception {
+        SparseCacheFile cache = new SparseCacheFile(file, SOURCE);
+        try {
+            write(cache, 100, 100);
+            write(cache, 300, 100);
+
+            assertEquals(0, cache.getCachedFrom(50));
+            assertEquals(50, cache.getCachedFrom(150));
+            assertEquals(0, cache.getCachedFrom(200));
+            assertEquals(300, cache.getNextCached(200));
+            assertEquals(-1, cache.getNextCached(300));
+
+            write(cache, 200, 100);
+            assertEquals(300, cache.getCachedFrom(100));
+
+            write(cache, 50, 400);
+            assertEquals(400, cache.getCachedFrom(50));
+            assertEquals(400, cache.getCachedBytes());
+
+            cache.setLength(450);
+            assertFalse(cache.isComplete());
+            write(cache, 0, 50);
+            assertTrue(cache.isComplete());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * The cached ranges are read back from the index, unless it belongs to
+     * another source.
+     */
+    public void testIndex() throws Exception {
+        SparseCacheFile cache = new SparseCacheFile(file, SOURCE);
+        byte[] bytes = new byte[] {1, 2, 3, 4};
+        cache.write(10, bytes, 0, bytes.length);
+        cache.setLength(100);
+        cache.close();
+
+        cache = new SparseCacheFile(file, SOURCE);
+        try {
+            assertEquals(100, cache.getLength());
+            assertEquals(4, cache.getCachedFrom(10));
+
+            byte[] read = new byte[8];
+            assertEquals(2, cache.read(12, read, 0, read.length));
+            assertEquals(3, read[0]);
+            assertEquals(4, read[1]);
+        } finally {
+            cache.close();
+        }
+
+        cache = new SparseCacheFile(file, SOURCE + "?other");
+        try {
+            assertEquals(-1, cache.getLength());
+            assertEquals(0, cache.getCachedBytes());
+            assertEquals(0, file.length());
+        } finally {
+            cache.close();
+        }
+    }
+}
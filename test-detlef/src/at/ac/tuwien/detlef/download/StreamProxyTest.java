@@ -0,0 +1,207 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import at.ac.tuwien.detlef.download.StreamProxy.OnStreamCachedListener;
+
+/**
+ * Tests the {@link StreamProxy} against a {@link StubMediaServer}.
+ */
+public class StreamProxyTest extends AndroidTestCase {
+
+    private static final int LENGTH = 256 * 1024;
+
+    private static final long ID = 42;
+
+    private final byte[] payload = new byte[LENGTH];
+    private final Semaphore cached = new Semaphore(0);
+
+    private StubMediaServer server;
+    private File dir;
+    private File cachedFile;
+
+    private final OnStreamCachedListener listener = new OnStreamCachedListener() {
+        @Override
+        public File onStreamCached(long id, File file) {
+            assertEquals(ID, id);
+            cachedFile = file;
+            cached.release();
+            return null;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        new Random(0).nextBytes(payload);
+        server = new StubMediaServer(payload);
+
+        dir = new File(getContext().getCacheDir(), "stream-proxy-test");
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        deleteDir();
+
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] fetch(Uri uri, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(uri.toString())
+                                       .openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] payload(int from, int to) {
+        return Arrays.copyOfRange(payload, from, to);
+    }
+
+    /**
+     * A stream is fetched once, handed to the listener when complete and then
+     * served without requesting it again.
+     */
+    public void testCachesStream() throws Exception {
+        StreamProxy proxy = new StreamProxy(dir, LENGTH * 4, listener);
+        try {
+            Uri uri = proxy.getUri(ID, server.getUrl(), "audio/mpeg");
+
+            assertTrue(Arrays.equals(payload, fetch(uri, null)));
+            assertTrue(cached.tryAcquire(10, TimeUnit.SECONDS));
+            assertEquals(LENGTH, cachedFile.length());
+            assertFalse(SparseCacheFile.getIndexFile(cachedFile).exists());
+
+            assertTrue(Arrays.equals(payload, fetch(uri, null)));
+            assertTrue(Arrays.equals(payload(1000, 2000), fetch(uri, "bytes=1000-1999")));
+            assertEquals(1, server.getRequestCount());
+        } finally {
+            proxy.close();
+        }
+    }
+
+    /**
+     * Seeking back into a cached range serves it from the cache and requests
+     * just the rest.
+     */
+    public void testSeekServedFromCache() throws Exception {
+        StreamProxy proxy = new StreamProxy(dir, LENGTH * 4, listener);
+        try {
+            Uri uri = proxy.getUri(ID, server.getUrl(), null);
+
+            assertTrue(Arrays.equals(payload(0, LENGTH / 2),
+                                     fetch(uri, "bytes=0-" + (LENGTH / 2 - 1))));
+            assertTrue(Arrays.equals(payload(LENGTH / 4, LENGTH),
+                                     fetch(uri, "bytes=" + (LENGTH / 4) + "-")));
+
+            assertEquals(2, server.getRequestCount());
+            assertEquals(LENGTH / 2, server.getLastRangeStart());
+            assertTrue(cached.tryAcquire(10, TimeUnit.SECONDS));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    /**
+     * A partially cached stream survives a restart of the proxy.
+     */
+    public void testPartialCacheSurvivesRestart() throws Exception {
+        StreamProxy proxy = new StreamProxy(dir, LENGTH * 4, listener);
+        try {
+            Uri uri = proxy.getUri(ID, server.getUrl(), null);
+            fetch(uri, "bytes=0-" + (LENGTH / 2 - 1));
+        } finally {
+            proxy.close();
+        }
+
+        proxy = new StreamProxy(dir, LENGTH * 4, listener);
+        try {
+            Uri uri = proxy.getUri(ID, server.getUrl(), null);
+            assertTrue(Arrays.equals(payload, fetch(uri, null)));
+
+            assertEquals(2, server.getRequestCount());
+            assertEquals(LENGTH / 2, server.getLastRangeStart());
+            assertTrue(cached.tryAcquire(10, TimeUnit.SECONDS));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    /**
+     * Partially cached streams without connections are deleted once the
+     * cache grows beyond its limit.
+     */
+    public void testTrim() throws Exception {
+        StreamProxy proxy = new StreamProxy(dir, LENGTH / 4, listener);
+        try {
+            fetch(proxy.getUri(1, server.getUrl(), null), "bytes=0-" + (LENGTH / 2 - 1));
+        } finally {
+            proxy.close();
+        }
+
+        proxy = new StreamProxy(dir, LENGTH / 4, listener);
+        try {
+            fetch(proxy.getUri(2, server.getUrl(), null), "bytes=0-" + (LENGTH / 2 - 1));
+        } finally {
+            proxy.close();
+        }
+
+        assertFalse(new File(dir, "1").exists());
+        assertTrue(new File(dir, "2").exists());
+    }
+}
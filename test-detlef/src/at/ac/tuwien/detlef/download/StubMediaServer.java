@@ -0,0 +1,163 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A minimal HTTP server serving a fixed payload, honoring "bytes=N-" and
+ * "bytes=N-M" ranges. It counts the bytes it serves, so that tests can tell
+ * which parts of a stream have been requested again.
+ */
+public class StubMediaServer implements Runnable {
+
+    private static final String TAG = StubMediaServer.class.getName();
+
+    private final ServerSocket socket;
+    private final byte[] payload;
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final AtomicLong bytesServed = new AtomicLong(0);
+    private volatile int lastRangeStart = -1;
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     */
+    public StubMediaServer(byte[] payload) throws IOException {
+        this.payload = payload;
+        socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return The url of the payload.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + socket.getLocalPort() + "/episode.mp3";
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    /**
+     * @return The start of the range of the last request, or -1 if it
+     *         requested the whole payload.
+     */
+    public int getLastRangeStart() {
+        return lastRangeStart;
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* Nothing to do. */
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                }).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), "US-ASCII"));
+
+            int start = -1;
+            int end = payload.length - 1;
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range: bytes=")) {
+                    String[] range = line.substring(13).trim().split("-", -1);
+                    start = Integer.parseInt(range[0]);
+                    if (range[1].length() > 0) {
+                        end = Math.min(end, Integer.parseInt(range[1]));
+                    }
+                }
+            }
+            lastRangeStart = start;
+            requests.incrementAndGet();
+
+            OutputStream out = client.getOutputStream();
+            if (start < 0) {
+                start = 0;
+                out.write(String.format("HTTP/1.1 200 OK\r\n"
+                                        + "Content-Type: audio/mpeg\r\n"
+                                        + "Content-Length: %d\r\n"
+                                        + "Connection: close\r\n\r\n", payload.length)
+                          .getBytes("US-ASCII"));
+            } else {
+                out.write(String.format("HTTP/1.1 206 Partial Content\r\n"
+                                        + "Content-Type: audio/mpeg\r\n"
+                                        + "Content-Range: bytes %d-%d/%d\r\n"
+                                        + "Content-Length: %d\r\n"
+                                        + "Connection: close\r\n\r\n",
+                                        start, end, payload.length, end - start + 1)
+                          .getBytes("US-ASCII"));
+            }
+
+            /* Written in small chunks, so that a closed connection stops it early. */
+
+            for (int pos = start; pos <= end; pos += 1024) {
+                int n = Math.min(1024, end + 1 - pos);
+                out.write(payload, pos, n);
+                bytesServed.addAndGet(n);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.d(TAG, e.toString());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* Nothing to do. */
+            }
+        }
+    }
+}
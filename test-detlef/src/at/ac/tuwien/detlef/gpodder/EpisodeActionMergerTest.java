@@ -0,0 +1,127 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import at.ac.tuwien.detlef.domain.Episode.ActionState;
+import at.ac.tuwien.detlef.gpodder.EpisodeActionMerger.Merged;
+
+import com.dragontek.mygpoclient.api.EpisodeAction;
+
+/**
+ * Tests which downloaded episode actions the {@link EpisodeActionMerger}
+ * applies.
+ */
+public class EpisodeActionMergerTest extends TestCase {
+
+    private static final String EPISODE = "http://example.com/episode.mp3";
+
+    private static final List<EpisodeAction> NO_LOCAL = Collections.emptyList();
+
+    private static EpisodeAction action(String action, String timestamp) {
+        return new EpisodeAction("http://example.com/feed", EPISODE, action, "device",
+                                 timestamp, null, null, null);
+    }
+
+    private static EpisodeAction play(int position, String timestamp) {
+        return new EpisodeAction("http://example.com/feed", EPISODE, "play", "device",
+                                 timestamp, null, position, null);
+    }
+
+    private static Merged single(List<Merged> merged) {
+        assertEquals(1, merged.size());
+        assertEquals(EPISODE, merged.get(0).getEpisode());
+        return merged.get(0);
+    }
+
+    /**
+     * The latest action wins no matter in which order the server sends them.
+     */
+    public void testOutOfOrderTimestamps() {
+        List<EpisodeAction> remote = Arrays.asList(
+                                         play(30, "2012-06-01T10:00:03"),
+                                         action("delete", "2012-06-01T10:00:04"),
+                                         play(10, "2012-06-01T10:00:01"),
+                                         action("download", "2012-06-01T10:00:02"));
+
+        Merged m = single(EpisodeActionMerger.merge(remote, NO_LOCAL));
+        assertEquals(ActionState.DELETE, m.getActionState());
+        assertEquals(Integer.valueOf(30 * 1000), m.getPlayPosition());
+    }
+
+    /**
+     * Of actions with equal timestamps, the one the server sent last wins.
+     */
+    public void testEqualTimestamps() {
+        List<EpisodeAction> remote = Arrays.asList(
+                                         play(10, "2012-06-01T10:00:00"),
+                                         play(20, "2012-06-01T10:00:00"),
+                                         action("download", "2012-06-01T10:00:00"));
+
+        Merged m = single(EpisodeActionMerger.merge(remote, NO_LOCAL));
+        assertEquals(ActionState.DOWNLOAD, m.getActionState());
+        assertEquals(Integer.valueOf(20 * 1000), m.getPlayPosition());
+
+        /* A local action with the same timestamp has not been superseded. */
+
+        List<EpisodeAction> local = Collections.singletonList(play(40, "2012-06-01 10:00:00"));
+        assertTrue(EpisodeActionMerger.merge(remote, local).isEmpty());
+    }
+
+    /**
+     * A downloaded play action older than the local play position is
+     * ignored, a newer one is applied.
+     */
+    public void testRemoteOlderThanLocalPlayPosition() {
+        List<EpisodeAction> local = Collections.singletonList(play(50, "2012-06-01 10:00:05"));
+
+        List<EpisodeAction> remote = new ArrayList<EpisodeAction>();
+        remote.add(play(10, "2012-06-01T10:00:01"));
+        assertTrue(EpisodeActionMerger.merge(remote, local).isEmpty());
+
+        /* An older action of another kind doesn't override the play
+         * position either. */
+
+        remote.add(action("download", "2012-06-01T10:00:02"));
+        assertTrue(EpisodeActionMerger.merge(remote, local).isEmpty());
+
+        remote.add(play(70, "2012-06-01T10:00:06Z"));
+        Merged m = single(EpisodeActionMerger.merge(remote, local));
+        assertEquals(ActionState.PLAY, m.getActionState());
+        assertEquals(Integer.valueOf(70 * 1000), m.getPlayPosition());
+    }
+
+    /**
+     * Actions without a timestamp are older than all others.
+     */
+    public void testMissingTimestamp() {
+        List<EpisodeAction> remote = Arrays.asList(
+                                         action("download", "2012-06-01T10:00:00"),
+                                         action("delete", null));
+
+        Merged m = single(EpisodeActionMerger.merge(remote, NO_LOCAL));
+        assertEquals(ActionState.DOWNLOAD, m.getActionState());
+        assertNull(m.getPlayPosition());
+    }
+}
@@ -0,0 +1,402 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import at.ac.tuwien.detlef.domain.FeedUpdate;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.gpodder.FeedRefreshScheduler.FeedFetcher;
+import at.ac.tuwien.detlef.gpodder.FeedRefreshScheduler.FeedWriter;
+
+import com.dragontek.mygpoclient.feeds.FeedServiceClient;
+import com.dragontek.mygpoclient.feeds.IFeed;
+import com.dragontek.mygpoclient.feeds.IFeed.IEpisode;
+
+/**
+ * Tests the {@link FeedRefreshScheduler} and compares it to refreshing the
+ * feeds one after another.
+ */
+public class FeedRefreshSchedulerTest extends AndroidTestCase {
+
+    private static final String TAG = FeedRefreshSchedulerTest.class.getName();
+
+    private static final int NUM_PODCASTS = 20;
+
+    private static final int LATENCY_MS = 200;
+
+    private static final int BATCH_SIZE = 5;
+
+    private static final int TIMEOUT_S = 30;
+
+    /**
+     * Counts the events sent by the scheduler.
+     */
+    private static class CountingHandler implements NoDataResultHandler<Object> {
+        private final CountDownLatch done;
+        private final AtomicInteger successes = new AtomicInteger(0);
+        private final AtomicInteger failures = new AtomicInteger(0);
+
+        public CountingHandler(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void handleSuccess() {
+            successes.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void handleFailure(int errCode, String errStr) {
+            failures.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void sendEvent(ResultEvent e) {
+            e.deliver();
+        }
+
+        @Override
+        public ResultHandler<Object> setBundle(Bundle pBundle) {
+            return this;
+        }
+
+        @Override
+        public Bundle getBundle() {
+            return new Bundle();
+        }
+
+        @Override
+        public void registerReceiver(Object rcv) {
+        }
+
+        @Override
+        public void unregisterReceiver() {
+        }
+
+        public boolean await() throws InterruptedException {
+            return done.await(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stores nothing, but remembers how many feeds it got.
+     */
+    private static class CountingWriter implements FeedWriter {
+        private final AtomicInteger stored = new AtomicInteger(0);
+
+        @Override
+        public void store(Podcast podcast, FeedUpdate feed) {
+            stored.incrementAndGet();
+        }
+    }
+
+    /**
+     * Fetches from the given stub server through
+     * {@link FeedStore#fetchFeeds(FeedServiceClient, List)}.
+     */
+    private static FeedFetcher stubFetcher(final StubFeedServer server) {
+        return new FeedFetcher() {
+            @Override
+            public List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException {
+                return FeedStore.fetchFeeds(new FeedServiceClient(server.getHost()), podcasts);
+            }
+        };
+    }
+
+    /**
+     * An empty feed.
+     */
+    private static final IFeed EMPTY_FEED = emptyFeed(null);
+
+    private static IFeed emptyFeed(final String url) {
+        return new IFeed() {
+            @Override
+            public String getTitle() {
+                return "empty";
+            }
+
+            @Override
+            public String getUrl() {
+                return url;
+            }
+
+            @Override
+            public String getDescription() {
+                return null;
+            }
+
+            @Override
+            public String getLink() {
+                return null;
+            }
+
+            @Override
+            public IEpisode[] getEpisodes() {
+                return new IEpisode[0];
+            }
+        };
+    }
+
+    private static List<Podcast> createPodcasts(int count) {
+        List<Podcast> podcasts = new ArrayList<Podcast>(count);
+        for (int i = 0; i < count; i++) {
+            Podcast p = new Podcast();
+            p.setTitle("podcast " + i);
+            p.setUrl("http://example.com/feed/" + i);
+            podcasts.add(p);
+        }
+        return podcasts;
+    }
+
+    /**
+     * Every podcast results in exactly one event, failed feeds and failed
+     * requests included.
+     */
+    public void testOneEventPerPodcast() throws Exception {
+        List<Podcast> podcasts = createPodcasts(NUM_PODCASTS);
+        final Podcast brokenFeed = podcasts.get(3);
+        final Podcast brokenRequest = podcasts.get(NUM_PODCASTS - 1);
+
+        FeedFetcher fetcher = new FeedFetcher() {
+            @Override
+            public List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException {
+                if (podcasts.contains(brokenRequest)) {
+                    throw new IOException("broken");
+                }
+
+                List<FeedUpdate> feeds = new ArrayList<FeedUpdate>();
+                for (Podcast p : podcasts) {
+                    feeds.add(p == brokenFeed ? null : new FeedUpdate(EMPTY_FEED, p));
+                }
+                return feeds;
+            }
+        };
+        CountingWriter writer = new CountingWriter();
+        CountingHandler handler = new CountingHandler(NUM_PODCASTS);
+
+        /* 20 podcasts in batches of 3, the last batch holds 2 podcasts. */
+
+        FeedRefreshScheduler scheduler = new FeedRefreshScheduler(fetcher, writer, 4, 3);
+        scheduler.refresh(podcasts, handler);
+
+        assertTrue(handler.await());
+        assertEquals(3, handler.failures.get());
+        assertEquals(NUM_PODCASTS - 3, handler.successes.get());
+        assertEquals(NUM_PODCASTS - 3, writer.stored.get());
+
+        scheduler.shutdown();
+    }
+
+    /**
+     * A feed which could not be stored results in a failure event.
+     */
+    public void testStoreFailure() throws Exception {
+        List<Podcast> podcasts = createPodcasts(4);
+        final Podcast broken = podcasts.get(1);
+
+        FeedFetcher fetcher = new FeedFetcher() {
+            @Override
+            public List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException {
+                List<FeedUpdate> feeds = new ArrayList<FeedUpdate>();
+                for (Podcast p : podcasts) {
+                    feeds.add(new FeedUpdate(EMPTY_FEED, p));
+                }
+                return feeds;
+            }
+        };
+        FeedWriter writer = new FeedWriter() {
+            @Override
+            public void store(Podcast podcast, FeedUpdate feed) throws IOException {
+                if (podcast == broken) {
+                    throw new IOException("broken");
+                }
+            }
+        };
+        CountingHandler handler = new CountingHandler(podcasts.size());
+
+        FeedRefreshScheduler scheduler = new FeedRefreshScheduler(fetcher, writer, 2, 2);
+        scheduler.refresh(podcasts, handler);
+
+        assertTrue(handler.await());
+        assertEquals(1, handler.failures.get());
+        assertEquals(podcasts.size() - 1, handler.successes.get());
+
+        scheduler.shutdown();
+    }
+
+    /**
+     * The limit is never exceeded, and used fully.
+     */
+    public void testLimits() throws Exception {
+        final int maxParallel = 4;
+
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final CountDownLatch allRunning = new CountDownLatch(maxParallel);
+
+        FeedFetcher fetcher = new FeedFetcher() {
+            @Override
+            public List<FeedUpdate> fetch(List<Podcast> podcasts) throws IOException {
+                updateMax(maxRunning, running.incrementAndGet());
+                allRunning.countDown();
+                try {
+                    allRunning.await(TIMEOUT_S, TimeUnit.SECONDS);
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                running.decrementAndGet();
+                throw new IOException("done");
+            }
+        };
+        CountingHandler handler = new CountingHandler(NUM_PODCASTS);
+
+        FeedRefreshScheduler scheduler = new FeedRefreshScheduler(fetcher, new CountingWriter(),
+                maxParallel, 1);
+        scheduler.refresh(createPodcasts(NUM_PODCASTS), handler);
+
+        assertTrue(handler.await());
+        assertEquals(maxParallel, maxRunning.get());
+
+        scheduler.shutdown();
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int cur;
+        do {
+            cur = max.get();
+        } while (value > cur && !max.compareAndSet(cur, value));
+    }
+
+    /**
+     * Feeds returned in a different order or under a different url are still
+     * assigned to the podcast they were requested for.
+     */
+    public void testSplitResponse() {
+        List<Podcast> podcasts = createPodcasts(3);
+        String url0 = podcasts.get(0).getUrl();
+        String url2 = podcasts.get(2).getUrl();
+
+        List<IFeed> feeds = new ArrayList<IFeed>();
+        feeds.add(emptyFeed(url2));
+        feeds.add(emptyFeed("http://example.com/moved"));
+        feeds.add(emptyFeed(url0));
+
+        List<FeedUpdate> split = FeedStore.splitResponse(podcasts, feeds);
+        assertEquals(3, split.size());
+        assertEquals(url0, split.get(0).getUrl());
+        assertEquals("http://example.com/moved", split.get(1).getUrl());
+        assertEquals(url2, split.get(2).getUrl());
+
+        feeds.clear();
+        feeds.add(emptyFeed(url2));
+
+        split = FeedStore.splitResponse(podcasts, feeds);
+        assertNull(split.get(0));
+        assertNull(split.get(1));
+        assertEquals(url2, split.get(2).getUrl());
+    }
+
+    /**
+     * A feed missing from the middle of the response leaves its podcast
+     * without an update instead of shifting another feed onto it.
+     */
+    public void testSplitResponseMissingFeed() {
+        List<Podcast> podcasts = createPodcasts(3);
+        String url0 = podcasts.get(0).getUrl();
+        String url2 = podcasts.get(2).getUrl();
+
+        List<IFeed> feeds = new ArrayList<IFeed>();
+        feeds.add(emptyFeed(url0));
+        feeds.add(emptyFeed(url2));
+
+        List<FeedUpdate> split = FeedStore.splitResponse(podcasts, feeds);
+        assertEquals(3, split.size());
+        assertEquals(url0, split.get(0).getUrl());
+        assertNull(split.get(1));
+        assertEquals(url2, split.get(2).getUrl());
+
+        /* A moved feed is not assigned while another one is missing. */
+
+        feeds.clear();
+        feeds.add(emptyFeed(url0));
+        feeds.add(emptyFeed("http://example.com/moved"));
+
+        split = FeedStore.splitResponse(podcasts, feeds);
+        assertEquals(url0, split.get(0).getUrl());
+        assertNull(split.get(1));
+        assertNull(split.get(2));
+    }
+
+    /**
+     * Benchmarks the scheduler against fetching and storing every feed in
+     * sequence with one request each, as a single refresh thread does, using
+     * a stub feed service on the loopback interface which delays every
+     * response by LATENCY_MS.
+     */
+    public void testBenchmarkAgainstSerialRefresh() throws Exception {
+        StubFeedServer server = new StubFeedServer(LATENCY_MS);
+        try {
+            List<Podcast> podcasts = createPodcasts(NUM_PODCASTS);
+            FeedFetcher fetcher = stubFetcher(server);
+
+            CountingWriter serialWriter = new CountingWriter();
+            long start = System.currentTimeMillis();
+            for (Podcast p : podcasts) {
+                serialWriter.store(p, fetcher.fetch(Collections.singletonList(p)).get(0));
+            }
+            long serialMs = System.currentTimeMillis() - start;
+
+            CountingWriter parallelWriter = new CountingWriter();
+            CountingHandler handler = new CountingHandler(NUM_PODCASTS);
+            FeedRefreshScheduler scheduler = new FeedRefreshScheduler(fetcher, parallelWriter,
+                    4, BATCH_SIZE);
+
+            start = System.currentTimeMillis();
+            scheduler.refresh(podcasts, handler);
+            assertTrue(handler.await());
+            long parallelMs = System.currentTimeMillis() - start;
+
+            scheduler.shutdown();
+
+            Log.i(TAG, String.format("%d feeds, %d ms latency: serial %d ms, parallel %d ms",
+                                     NUM_PODCASTS, LATENCY_MS, serialMs, parallelMs));
+
+            assertEquals(NUM_PODCASTS, serialWriter.stored.get());
+            assertEquals(NUM_PODCASTS, parallelWriter.stored.get());
+            assertEquals(NUM_PODCASTS, handler.successes.get());
+            assertEquals(NUM_PODCASTS + NUM_PODCASTS / BATCH_SIZE, server.getRequestCount());
+            assertTrue(parallelMs < serialMs / 2);
+        } finally {
+            server.close();
+        }
+    }
+}
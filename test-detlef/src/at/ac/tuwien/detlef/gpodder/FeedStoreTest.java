@@ -0,0 +1,298 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+import at.ac.tuwien.detlef.db.EpisodeDAO;
+import at.ac.tuwien.detlef.db.PodcastDAO;
+import at.ac.tuwien.detlef.domain.Episode;
+import at.ac.tuwien.detlef.domain.FeedUpdate;
+import at.ac.tuwien.detlef.domain.Podcast;
+
+import com.dragontek.mygpoclient.feeds.IFeed;
+
+/**
+ * Tests how {@link FeedStore} stores retrieved feeds.
+ */
+public class FeedStoreTest extends TestCase {
+
+    private static final long LAST_UPDATE = 1000;
+
+    private static final long RELEASED = 2000;
+
+    private Podcast podcast;
+    private FeedUpdate feed;
+
+    /** The result of every upsert, or null to fail. */
+    private List<Episode> upsertResult;
+
+    /** Thrown from every upsert if not null. */
+    private RuntimeException upsertException;
+
+    private int podcastUpdates;
+
+    /** Only upserts episodes. */
+    private final EpisodeDAO episodeDAO = new EpisodeDAO() {
+        @Override
+        public List<Episode> upsertEpisodes(Podcast podcast, Collection<Episode> episodes) {
+            if (upsertException != null) {
+                throw upsertException;
+            }
+            return upsertResult;
+        }
+
+        @Override
+        public Episode insertEpisode(Episode episode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Episode> insertEpisodes(Collection<Episode> episodes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int deleteEpisode(Episode episode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Episode> getAllEpisodes() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Episode> getEpisodes(Podcast podcast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Episode> getEpisodesReleasedBefore(Episode before, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Episode> getEpisodesReleasedAfter(Episode after, int count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Episode episode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int updateEpisodes(Collection<Episode> episodes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int updatePlayPositions(Collection<Episode> episodes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Episode getEpisode(long id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Episode getEpisodeByUrlOrGuid(String url, String guid) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addEpisodeChangedListener(OnEpisodeChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeEpisodeChangedListener(OnEpisodeChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    /** Only counts updates. */
+    private final PodcastDAO podcastDAO = new PodcastDAO() {
+        @Override
+        public int update(Podcast podcast) {
+            podcastUpdates++;
+            return 1;
+        }
+
+        @Override
+        public Podcast insertPodcast(Podcast podcast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Podcast getPodcastByUrl(String url) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int deletePodcast(Podcast podcast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int deleteAllPodcasts() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Podcast> getAllPodcasts() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Podcast getPodcastById(long podcastId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean localDeletePodcast(Podcast podcast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean setRemotePodcast(Podcast podcast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Podcast> getNonDeletedPodcasts() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Podcast> getLocallyAddedPodcasts() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Podcast> getLocallyDeletedPodcasts() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addPodcastChangedListener(OnPodcastChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removePodListChangeListener(OnPodcastChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        podcast = new Podcast();
+        podcast.setTitle("podcast");
+        podcast.setUrl("http://example.com/feed");
+        podcast.setLastUpdate(LAST_UPDATE);
+
+        final Episode episode = new Episode(podcast);
+        episode.setTitle("episode");
+        episode.setGuid("guid");
+        episode.setUrl("http://example.com/episode.mp3");
+        episode.setReleased(RELEASED);
+
+        feed = new FeedUpdate(new IFeed() {
+            @Override
+            public String getTitle() {
+                return "title";
+            }
+
+            @Override
+            public String getUrl() {
+                return podcast.getUrl();
+            }
+
+            @Override
+            public String getDescription() {
+                return null;
+            }
+
+            @Override
+            public String getLink() {
+                return null;
+            }
+
+            @Override
+            public IEpisode[] getEpisodes() {
+                return new IEpisode[] {episode};
+            }
+        }, podcast);
+
+        upsertResult = new ArrayList<Episode>(feed.getEpisodeList());
+        upsertException = null;
+        podcastUpdates = 0;
+    }
+
+    /**
+     * A stored feed advances the last update of its podcast.
+     */
+    public void testStoreFeed() throws IOException {
+        FeedStore.storeFeed(episodeDAO, podcastDAO, podcast, feed);
+        assertEquals(RELEASED, podcast.getLastUpdate());
+        assertEquals(1, podcastUpdates);
+    }
+
+    /**
+     * A failed upsert keeps the last update, so the episodes are retrieved
+     * again by the next refresh.
+     */
+    public void testUpsertFailureKeepsLastUpdate() {
+        upsertResult = null;
+        try {
+            FeedStore.storeFeed(episodeDAO, podcastDAO, podcast, feed);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            /* Expected. */
+        }
+
+        assertEquals(LAST_UPDATE, podcast.getLastUpdate());
+        assertEquals(0, podcastUpdates);
+    }
+
+    /**
+     * An exception thrown by the upsert is treated like a failed upsert.
+     */
+    public void testUpsertExceptionKeepsLastUpdate() {
+        upsertException = new IllegalStateException("database closed");
+        try {
+            FeedStore.storeFeed(episodeDAO, podcastDAO, podcast, feed);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("database closed", e.getMessage());
+        }
+
+        assertEquals(LAST_UPDATE, podcast.getLastUpdate());
+        assertEquals(0, podcastUpdates);
+    }
+}
@@ -0,0 +1,160 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import at.ac.tuwien.detlef.domain.Podcast;
+import at.ac.tuwien.detlef.gpodder.PodcastDetailsFetcher.DetailsSource;
+
+import com.dragontek.mygpoclient.simple.IPodcast;
+
+/**
+ * Tests the {@link PodcastDetailsFetcher} against a source with a fixed
+ * latency.
+ */
+public class PodcastDetailsFetcherTest extends TestCase {
+
+    private static final int LATENCY_MS = 200;
+
+    private static final int MAX_PARALLEL = 8;
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    /** Answers every url but "broken" after LATENCY_MS. */
+    private final DetailsSource source = new DetailsSource() {
+        @Override
+        public IPodcast getPodcastData(String hostname, String url) throws IOException {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(LATENCY_MS);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+
+            if (url.equals("broken")) {
+                throw new IOException("not found");
+            }
+
+            Podcast p = new Podcast();
+            p.setUrl(url);
+            p.setTitle("title of " + url);
+            return p;
+        }
+    };
+
+    private static List<String> urls(int count) {
+        List<String> urls = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("http://example.com/" + i);
+        }
+        return urls;
+    }
+
+    /**
+     * Many podcasts are fetched concurrently and returned in order.
+     */
+    public void testParallel() {
+        PodcastDetailsFetcher fetcher = new PodcastDetailsFetcher(source, MAX_PARALLEL, 60000);
+        List<String> urls = urls(4 * MAX_PARALLEL);
+
+        long start = System.currentTimeMillis();
+        List<IPodcast> details = fetcher.fetch(null, urls);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(urls.size(), details.size());
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(urls.get(i), details.get(i).getUrl());
+        }
+
+        /* Serially this would take urls.size() * LATENCY_MS. */
+
+        assertTrue("took " + elapsed + " ms", elapsed < urls.size() * LATENCY_MS / 2);
+    }
+
+    /**
+     * Duplicate urls are requested once, and cached details are not requested
+     * again.
+     */
+    public void testDedupAndCache() {
+        PodcastDetailsFetcher fetcher = new PodcastDetailsFetcher(source, MAX_PARALLEL, 60000);
+
+        List<IPodcast> details = fetcher.fetch(null, Arrays.asList("a", "b", "a"));
+        assertEquals(2, details.size());
+        assertEquals(2, requests.get());
+
+        details = fetcher.fetch(null, Arrays.asList("b", "c"));
+        assertEquals(2, details.size());
+        assertEquals(3, requests.get());
+
+        /* Another host is another podcast. */
+
+        fetcher.fetch("other.example.com", Arrays.asList("a"));
+        assertEquals(4, requests.get());
+    }
+
+    /**
+     * Concurrent callers share a running request.
+     */
+    public void testSharedRequest() throws Exception {
+        final PodcastDetailsFetcher fetcher =
+            new PodcastDetailsFetcher(source, MAX_PARALLEL, 60000);
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                fetcher.fetch(null, Arrays.asList("a"));
+            }
+        };
+        other.start();
+        fetcher.fetch(null, Arrays.asList("a"));
+        other.join();
+
+        assertEquals(1, requests.get());
+    }
+
+    /**
+     * Failed podcasts are left out and requested again next time.
+     */
+    public void testFailure() {
+        PodcastDetailsFetcher fetcher = new PodcastDetailsFetcher(source, MAX_PARALLEL, 60000);
+
+        List<IPodcast> details = fetcher.fetch(null, Arrays.asList("a", "broken"));
+        assertEquals(1, details.size());
+        assertEquals("a", details.get(0).getUrl());
+
+        fetcher.fetch(null, Arrays.asList("broken"));
+        assertEquals(3, requests.get());
+    }
+
+    /**
+     * Expired details are requested again.
+     */
+    public void testExpiry() {
+        PodcastDetailsFetcher fetcher = new PodcastDetailsFetcher(source, MAX_PARALLEL, 0);
+
+        fetcher.fetch(null, Arrays.asList("a"));
+        fetcher.fetch(null, Arrays.asList("a"));
+        assertEquals(2, requests.get());
+    }
+}
@@ -0,0 +1,159 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.gpodder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * A minimal stand-in for the feed service's /parse end point. Every request is
+ * answered after a fixed delay with one empty feed per requested url, which
+ * is enough to measure how the refresh behaves on a high-latency link.
+ */
+public class StubFeedServer implements Runnable {
+
+    private static final String TAG = StubFeedServer.class.getName();
+
+    private final ServerSocket socket;
+    private final int latencyMs;
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @param latencyMs The time every response is delayed.
+     */
+    public StubFeedServer(int latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return The host name to be passed to the FeedServiceClient.
+     */
+    public String getHost() {
+        return "http://127.0.0.1:" + socket.getLocalPort();
+    }
+
+    /**
+     * @return The number of requests answered so far.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* Nothing to do. */
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                }).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), "UTF-8"));
+
+            int contentLength = 0;
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+
+            char[] body = new char[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int n = in.read(body, read, contentLength - read);
+                if (n == -1) {
+                    break;
+                }
+                read += n;
+            }
+
+            Thread.sleep(latencyMs);
+
+            StringBuilder json = new StringBuilder("[");
+            for (String param : new String(body, 0, read).split("&")) {
+                if (!param.startsWith("url=")) {
+                    continue;
+                }
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                String url = URLDecoder.decode(param.substring(4), "UTF-8");
+                json.append("{\"url\":\"").append(url)
+                .append("\",\"title\":\"stub\",\"episodes\":[]}");
+            }
+            json.append(']');
+
+            byte[] payload = json.toString().getBytes("UTF-8");
+            OutputStream out = client.getOutputStream();
+            out.write(String.format("HTTP/1.1 200 OK\r\n"
+                                    + "Content-Type: application/json\r\n"
+                                    + "Content-Length: %d\r\n"
+                                    + "Connection: close\r\n\r\n", payload.length)
+                      .getBytes("UTF-8"));
+            out.write(payload);
+            out.flush();
+
+            requests.incrementAndGet();
+        } catch (Exception e) {
+            Log.w(TAG, e.toString());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* Nothing to do. */
+            }
+        }
+    }
+}
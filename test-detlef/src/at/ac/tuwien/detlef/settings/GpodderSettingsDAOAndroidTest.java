@@ -0,0 +1,133 @@
+/* *************************************************************************
+ *  Copyright 2012 The detlef developers                                   *
+ *                                                                         *
+ *  This program is free software: you can redistribute it and/or modify   *
+ *  it under the terms of the GNU General Public License as published by   *
+ *  the Free Software Foundation, either version 2 of the License, or      *
+ *  (at your option) any later version.                                    *
+ *                                                                         *
+ *  This program is distributed in the hope that it will be useful,        *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of         *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the          *
+ *  GNU General Public License for more details.                           *
+ *                                                                         *
+ *  You should have received a copy of the GNU General Public License      *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.  *
+ ************************************************************************* */
+
+
+package at.ac.tuwien.detlef.settings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import android.content.SharedPreferences;
+
+/**
+ * Tests how {@link GpodderSettingsDAOAndroid} reads the settings.
+ */
+public class GpodderSettingsDAOAndroidTest extends TestCase {
+
+    /** The stored int preferences, all others are missing. */
+    private final Map<String, Integer> ints = new HashMap<String, Integer>();
+
+    /** Only reads, from ints. */
+    private final SharedPreferences prefs = new SharedPreferences() {
+        @Override
+        public int getInt(String key, int defValue) {
+            return ints.containsKey(key) ? ints.get(key) : defValue;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return ints;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return ints.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private GpodderSettings read() {
+        HashMap<String, Object> dependencies = new HashMap<String, Object>();
+        dependencies.put("sharedPreferences", prefs);
+
+        GpodderSettingsDAO dao = new GpodderSettingsDAOAndroid();
+        dao.setDependencies(dependencies);
+        return dao.getSettings();
+    }
+
+    /**
+     * A stored batch size is used as is.
+     */
+    public void testEpisodeActionSyncBatchSize() {
+        assertEquals(GpodderSettingsDAO.DEFAULT_EPISODE_ACTION_SYNC_BATCH_SIZE,
+                     read().getEpisodeActionSyncBatchSize());
+
+        ints.put(GpodderSettingsDAO.KEY_EPISODE_ACTION_SYNC_BATCH_SIZE, 1);
+        assertEquals(1, read().getEpisodeActionSyncBatchSize());
+    }
+
+    /**
+     * A batch size of 0 or less would never upload anything, the default is
+     * used instead.
+     */
+    public void testNonPositiveBatchSizesFallBackToDefault() {
+        ints.put(GpodderSettingsDAO.KEY_EPISODE_ACTION_SYNC_BATCH_SIZE, 0);
+        ints.put(GpodderSettingsDAO.KEY_FEED_REFRESH_BATCH_SIZE, -1);
+        ints.put(GpodderSettingsDAO.KEY_FEED_REFRESH_PARALLEL, 0);
+
+        GpodderSettings settings = read();
+        assertEquals(GpodderSettingsDAO.DEFAULT_EPISODE_ACTION_SYNC_BATCH_SIZE,
+                     settings.getEpisodeActionSyncBatchSize());
+        assertEquals(GpodderSettingsDAO.DEFAULT_FEED_REFRESH_BATCH_SIZE,
+                     settings.getFeedRefreshBatchSize());
+        assertEquals(GpodderSettingsDAO.DEFAULT_FEED_REFRESH_PARALLEL,
+                     settings.getMaxParallelFeedRefreshes());
+    }
+}